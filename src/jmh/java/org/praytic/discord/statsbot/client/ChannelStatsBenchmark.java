@@ -0,0 +1,83 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.cloud.datastore.Entity;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.summarizingInt;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Compares the per-request {@code groupingBy} pipelines that channel stats used to run over all
+ * messages with the {@link ChannelAggregate} recount used to seed the stored counters.
+ * The 10M fixture needs a large heap, see {@link Fork#jvmArgsAppend()}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms12g", "-Xmx12g"})
+public class ChannelStatsBenchmark {
+
+    @Param({"10000", "1000000", "10000000"})
+    private int messages;
+
+    @Param({"1000"})
+    private int authors;
+
+    private List<Entity> channelMessages;
+
+    @Setup
+    public void setUp() {
+        channelMessages = MessageFixtures.messages(messages, authors);
+    }
+
+    @Benchmark
+    public double groupingByMessagesPerDay() {
+        return channelMessages
+                .stream()
+                .collect(groupingBy(
+                        entity -> entity.getTimestamp("timestamp").getSeconds() / 86400,
+                        summarizingInt(entity -> 1)))
+                .values()
+                .stream()
+                .mapToLong(IntSummaryStatistics::getSum)
+                .average()
+                .orElse(0.0);
+    }
+
+    @Benchmark
+    public List<Map.Entry<String, Long>> groupingByTopAuthors() {
+        return channelMessages
+                .stream()
+                .collect(groupingBy(
+                        entity -> entity.getString("author"),
+                        summarizingInt(entity -> 1)))
+                .entrySet()
+                .stream()
+                .map(entry -> Map.entry(entry.getKey(), entry.getValue().getSum()))
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(10)
+                .collect(toList());
+    }
+
+    @Benchmark
+    public void aggregate(Blackhole blackhole) {
+        ChannelAggregate aggregate = new ChannelAggregate();
+        for (Entity entity : channelMessages) {
+            aggregate.add(entity.getString("author"), entity.getTimestamp("timestamp").getSeconds());
+        }
+        blackhole.consume((double) aggregate.getMessagesCount() / aggregate.getDays().size());
+        blackhole.consume(aggregate.getAuthors()
+                .entrySet()
+                .stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(10)
+                .collect(toList()));
+    }
+}
@@ -0,0 +1,65 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.cloud.NoCredentials;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Entity;
+import com.mewna.catnip.entity.message.Message;
+import com.mewna.catnip.entity.user.User;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Cost of mapping a gateway message to its {@code message} entity. Messages are stub-only mocks,
+ * so the score includes a small constant overhead of the mocked accessors.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EntityMappingBenchmark {
+
+    private static final int MESSAGES = 1024;
+
+    private DatastoreClient datastoreClient;
+    private Message[] messages;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        datastoreClient = new DatastoreClient(DatastoreOptions.newBuilder()
+                .setProjectId("benchmark")
+                .setCredentials(NoCredentials.getInstance())
+                .build()
+                .getService(), null, new SimpleMeterRegistry());
+        messages = new Message[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            User author = mock(User.class, withSettings().stubOnly());
+            when(author.id()).thenReturn(String.valueOf(600000000000000000L + i % 100));
+            Message message = mock(Message.class, withSettings().stubOnly());
+            when(message.id()).thenReturn(String.valueOf(800000000000000000L + i));
+            when(message.channelId()).thenReturn(MessageFixtures.CHANNEL);
+            when(message.guildId()).thenReturn("500000000000000000");
+            when(message.author()).thenReturn(author);
+            when(message.content()).thenReturn("Synthetic message number " + i + " with some typical chat content");
+            when(message.timestamp()).thenReturn(OffsetDateTime.ofInstant(Instant.ofEpochSecond(1_500_000_000L + i * 60L), ZoneOffset.UTC));
+            messages[i] = message;
+        }
+    }
+
+    @Benchmark
+    public Entity messageEntity() {
+        Message message = messages[next++ & (MESSAGES - 1)];
+        return datastoreClient.messageEntity(message, null);
+    }
+}
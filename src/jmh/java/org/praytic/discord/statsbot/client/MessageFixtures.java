@@ -0,0 +1,41 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Synthetic {@code message} entities shaped like the ones written by {@link DatastoreClient}.
+ */
+final class MessageFixtures {
+
+    static final String CHANNEL = "700000000000000000";
+    private static final long START = 1_500_000_000L;
+    private static final int DAYS = 3 * 365;
+
+    private MessageFixtures() {
+    }
+
+    /**
+     * @param count   number of messages
+     * @param authors number of distinct authors, picked with a skewed distribution like real channels
+     */
+    static List<Entity> messages(int count, int authors) {
+        SplittableRandom random = new SplittableRandom(42);
+        List<Entity> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long author = (long) (authors * Math.pow(random.nextDouble(), 3));
+            long second = START + random.nextLong(DAYS * 86400L);
+            messages.add(Entity.newBuilder(Key.newBuilder("benchmark", "message", 800000000000000000L + i).build())
+                    .set("channel", CHANNEL)
+                    .set("author", String.valueOf(600000000000000000L + author))
+                    .set("timestamp", Timestamp.ofTimeSecondsAndNanos(second, 0))
+                    .build());
+        }
+        return messages;
+    }
+}
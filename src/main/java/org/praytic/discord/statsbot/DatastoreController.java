@@ -1,35 +1,148 @@
 package org.praytic.discord.statsbot;
 
 import com.google.cloud.Timestamp;
-import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.Entity;
+import com.mewna.catnip.Catnip;
 import lombok.RequiredArgsConstructor;
+import org.praytic.discord.statsbot.client.BackgroundJobs;
 import org.praytic.discord.statsbot.client.DatastoreClient;
-import org.springframework.stereotype.Controller;
+import org.praytic.discord.statsbot.client.EntityDeleter;
+import org.praytic.discord.statsbot.client.HistoryTransfer;
+import org.praytic.discord.statsbot.config.WebConfig;
+import org.praytic.discord.statsbot.model.BackgroundJob;
+import org.praytic.discord.statsbot.model.StoredMessage;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 @RequiredArgsConstructor
 @RestController
 @RequestMapping("/datastore")
 class DatastoreController {
 
+    private final Catnip catnip;
     private final DatastoreClient datastoreClient;
+    private final EntityDeleter entityDeleter;
+    private final BackgroundJobs backgroundJobs;
+    private final HistoryTransfer historyTransfer;
 
     @GetMapping
-    public Entity getObject(@RequestParam("kind") String kind,
-                            @RequestParam("key") String key) {
-        return datastoreClient.getEntity(kind, key);
+    public Mono<Entity> getObject(@RequestParam("kind") String kind,
+                                  @RequestParam("key") String key) {
+        return BlockingCalls.call(() -> datastoreClient.getEntity(kind, key));
+    }
+
+    /**
+     * Streams all entities of the kind page by page.
+     */
+    @GetMapping(value = "/entities", produces = {WebConfig.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE})
+    public Flux<Entity> getEntities(@RequestParam("kind") String kind,
+                                    @RequestParam(value = "guild", required = false) String guild,
+                                    @RequestParam(value = "channel", required = false) String channel) {
+        return datastoreClient.streamEntities(kind, guild, channel)
+                .subscribeOn(Schedulers.boundedElastic());
     }
 
     @DeleteMapping
-    public void deleteGuildEntity(@RequestParam("kind") String kind,
-                                  @RequestParam(value = "guild", required = false) String guild,
-                                  @RequestParam(value = "channel", required = false) String channel) {
-        datastoreClient.clearEntity(kind, guild, channel);
+    public BackgroundJob deleteGuildEntity(@RequestParam("kind") String kind,
+                                         @RequestParam(value = "guild", required = false) String guild,
+                                         @RequestParam(value = "channel", required = false) String channel) {
+        return entityDeleter.start(kind, guild, channel);
+    }
+
+    @GetMapping("/deletions")
+    public Flux<BackgroundJob> getDeletionJobs() {
+        return Flux.fromIterable(backgroundJobs.getJobs())
+                .filter(job -> job.getType().equals("deletion"));
+    }
+
+    @GetMapping("/deletions/{job-id}")
+    public Mono<BackgroundJob> getDeletionJob(@PathVariable("job-id") String jobId) {
+        return Mono.justOrEmpty(backgroundJobs.getJob(jobId));
+    }
+
+    @DeleteMapping("/deletions/{job-id}")
+    public Mono<BackgroundJob> cancelDeletionJob(@PathVariable("job-id") String jobId) {
+        return Mono.justOrEmpty(backgroundJobs.cancel(jobId));
+    }
+
+    @GetMapping("/messages/{message-id}")
+    public Mono<StoredMessage> getMessage(@PathVariable("message-id") String messageId) {
+        return BlockingCalls.call(() -> datastoreClient.readMessage(messageId));
+    }
+
+    /**
+     * @return a job with the number of migrated messages as its result
+     */
+    @PostMapping("/migrations")
+    public BackgroundJob migrateChannel(@RequestParam("channel") String channel) {
+        return backgroundJobs.submit("message-migration", channel, () -> datastoreClient.migrateChannel(channel));
+    }
+
+    /**
+     * Rewrites reactions and mentions of the channel still stored under old keys. Custom emojis are
+     * renamed to their ids by the emojis of the channel's guild in the cache, emojis of other guilds and
+     * deleted or ambiguously named ones keep their names.
+     *
+     * @return a job with the number of rewritten entities as its result
+     */
+    @PostMapping("/key-migrations")
+    public BackgroundJob migrateKeys(@RequestParam("channel") String channel) {
+        return backgroundJobs.submit("key-migration", channel, () -> {
+            String guild = datastoreClient.getChannelGuild(channel);
+            return datastoreClient.migrateKeys(channel, guild == null ? Collections.emptyMap() : customEmojiIds(guild));
+        });
+    }
+
+    /**
+     * Exports the history to local files, all kinds of the history are exported unless given.
+     */
+    @PostMapping("/exports")
+    public BackgroundJob exportHistory(@RequestParam("name") String name,
+                                       @RequestParam(value = "guild", required = false) String guild,
+                                       @RequestParam(value = "kind", required = false) List<String> kinds) {
+        try {
+            return historyTransfer.startExport(name, guild, kinds == null || kinds.isEmpty() ? HistoryTransfer.KINDS : kinds);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    @PostMapping("/imports")
+    public BackgroundJob importHistory(@RequestParam("name") String name,
+                                       @RequestParam(value = "rebuild", defaultValue = "true") boolean rebuild) {
+        try {
+            return historyTransfer.startImport(name, rebuild);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    private Map<String, String> customEmojiIds(String guild) {
+        Map<String, String> ids = new HashMap<>();
+        Set<String> ambiguous = new HashSet<>();
+        catnip.cache().emojis(guild).forEach(emoji -> {
+            if (ids.putIfAbsent(emoji.name(), emoji.id()) != null) {
+                ambiguous.add(emoji.name());
+            }
+        });
+        ids.keySet().removeAll(ambiguous);
+        return ids;
     }
 
     @GetMapping("/oldest-timestamp")
-    public Timestamp getOldestTimestamp(@RequestParam("kind") String kind) {
-        return datastoreClient.getOldestTimestamp(kind);
+    public Mono<Timestamp> getOldestTimestamp(@RequestParam("kind") String kind) {
+        return BlockingCalls.call(() -> datastoreClient.getOldestTimestamp(kind));
     }
-}
\ No newline at end of file
+}
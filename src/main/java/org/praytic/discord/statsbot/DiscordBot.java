@@ -2,8 +2,11 @@ package org.praytic.discord.statsbot;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
-@SpringBootApplication
+@EnableScheduling
+@SpringBootApplication(exclude = DataSourceAutoConfiguration.class)
 public class DiscordBot {
 
     public static void main(String[] args) {
@@ -1,20 +1,42 @@
 package org.praytic.discord.statsbot;
 
 import com.mewna.catnip.Catnip;
-import com.mewna.catnip.entity.Snowflake;
 import com.mewna.catnip.entity.channel.Channel;
-import com.mewna.catnip.entity.channel.GuildChannel;
 import com.mewna.catnip.entity.guild.Guild;
 import lombok.RequiredArgsConstructor;
+import org.praytic.discord.statsbot.client.BackgroundJobs;
+import org.praytic.discord.statsbot.client.CatchUpSync;
 import org.praytic.discord.statsbot.client.DiscordClient;
+import org.praytic.discord.statsbot.client.EngagementStore;
+import org.praytic.discord.statsbot.client.InitialLoader;
+import org.praytic.discord.statsbot.client.SketchStore;
+import org.praytic.discord.statsbot.config.WebConfig;
+import org.praytic.discord.statsbot.analytics.MessageAnalytics;
+import org.praytic.discord.statsbot.model.ApproximateStats;
+import org.praytic.discord.statsbot.model.BackgroundJob;
+import org.praytic.discord.statsbot.model.ChannelRangeStats;
 import org.praytic.discord.statsbot.model.ChannelStats;
-import org.springframework.stereotype.Controller;
+import org.praytic.discord.statsbot.model.ChannelWindowStats;
+import org.praytic.discord.statsbot.model.EngagementStats;
+import org.praytic.discord.statsbot.model.GuildStats;
+import org.praytic.discord.statsbot.model.InitialLoadStatus;
+import org.praytic.discord.statsbot.model.NamedEntity;
+import org.praytic.discord.statsbot.model.UserStats;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
-import java.util.Map;
-
-import static java.util.stream.Collectors.toMap;
+import java.time.LocalDate;
+import java.util.List;
 
+/**
+ * Stats endpoints. Blocking Datastore and REST calls run on the bounded elastic scheduler, lists are
+ * streamed as {@code application/x-ndjson} when requested and long operations return a job to poll.
+ */
 @RequiredArgsConstructor
 @RestController
 @RequestMapping("/bot")
@@ -22,35 +44,152 @@ class DiscordController {
 
     private final Catnip catnip;
     private final DiscordClient discordClient;
+    private final InitialLoader initialLoader;
+    private final CatchUpSync catchUpSync;
+    private final MessageAnalytics messageAnalytics;
+    private final SketchStore sketchStore;
+    private final EngagementStore engagementStore;
+    private final BackgroundJobs backgroundJobs;
+
+    @GetMapping(value = "/guilds", produces = {MediaType.APPLICATION_JSON_VALUE, WebConfig.APPLICATION_NDJSON_VALUE})
+    public Flux<NamedEntity> getGuilds() {
+        return Flux.fromIterable(catnip.cache().guilds())
+                .map(guild -> new NamedEntity(guild.id(), guild.name()));
+    }
+
+    @GetMapping("/guilds/{guild-id}/stats")
+    public Mono<GuildStats> getGuildStats(@PathVariable("guild-id") String guild) {
+        return BlockingCalls.call(() -> discordClient.getGuildStats(guild));
+    }
+
+    @GetMapping("/guilds/{guild-id}/stats/approximate")
+    public Mono<ApproximateStats> getApproximateGuildStats(@PathVariable("guild-id") String guild,
+                                                           @RequestParam("from") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+                                                           @RequestParam("to") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to) {
+        requireSketches();
+        return BlockingCalls.call(() -> discordClient.getApproximateGuildStats(guild, from, to));
+    }
+
+    @GetMapping("/guilds/{guild-id}/engagement")
+    public Mono<EngagementStats> getGuildEngagement(@PathVariable("guild-id") String guild) {
+        requireEngagement();
+        return BlockingCalls.call(() -> discordClient.getGuildEngagement(guild));
+    }
 
-    @GetMapping("/guilds")
-    public Map<String, String> getGuilds() {
-        return catnip
-                .cache()
-                .guilds()
-                .stream()
-                .collect(toMap(Snowflake::id, Guild::name));
-    }
-
-    @GetMapping("/channels")
-    public Map<String, String> getChannels(@RequestParam("guild") String guild) {
-        return catnip
-                .cache()
-                .guild(guild)
-                .channels()
-                .stream()
+    @GetMapping("/guilds/{guild-id}/interactions")
+    public Mono<List<UserStats>> getInteractions(@PathVariable("guild-id") String guild,
+                                                 @RequestParam("user") String user) {
+        requireEngagement();
+        return BlockingCalls.call(() -> discordClient.getInteractions(guild, user))
+                .onErrorMap(NumberFormatException.class,
+                        e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid user id " + user));
+    }
+
+    @PostMapping("/guilds/{guild-id}/stats/rebuild")
+    public BackgroundJob rebuildGuildStats(@PathVariable("guild-id") String guild) {
+        return backgroundJobs.submit("guild-stats-rebuild", guild, () -> {
+            discordClient.rebuildGuildStats(guild);
+            return null;
+        });
+    }
+
+    @GetMapping(value = "/channels", produces = {MediaType.APPLICATION_JSON_VALUE, WebConfig.APPLICATION_NDJSON_VALUE})
+    public Flux<NamedEntity> getChannels(@RequestParam("guild") String guild) {
+        Guild cachedGuild = catnip.cache().guild(guild);
+        if (cachedGuild == null) {
+            return Flux.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown guild " + guild));
+        }
+        return Flux.fromIterable(cachedGuild.channels())
                 .filter(Channel::isText)
                 .map(Channel::asTextChannel)
-                .collect(toMap(Snowflake::id, GuildChannel::name));
+                .map(channel -> new NamedEntity(channel.id(), channel.name()));
     }
 
     @PostMapping("/initial-load")
-    public void initialLoad(@RequestParam(value = "guild", required = false) String guild) {
-        discordClient.initialLoad(guild);
+    public Mono<InitialLoadStatus> initialLoad(@RequestParam("guild") String guild,
+                                               @RequestParam(value = "restart", defaultValue = "false") boolean restart) {
+        return BlockingCalls.call(() -> initialLoader.start(guild, restart));
+    }
+
+    @GetMapping("/initial-load")
+    public Mono<InitialLoadStatus> getInitialLoadStatus(@RequestParam("guild") String guild) {
+        return Mono.justOrEmpty(initialLoader.getStatus(guild));
+    }
+
+    /**
+     * @return whether the catch-up was started, {@code false} when it's already running
+     */
+    @PostMapping("/catch-up")
+    public Mono<Boolean> catchUp(@RequestParam("guild") String guild) {
+        return BlockingCalls.call(() -> catchUpSync.start(guild));
+    }
+
+    @GetMapping("/jobs")
+    public Flux<BackgroundJob> getJobs() {
+        return Flux.fromIterable(backgroundJobs.getJobs());
+    }
+
+    @GetMapping("/jobs/{job-id}")
+    public Mono<BackgroundJob> getJob(@PathVariable("job-id") String jobId) {
+        return Mono.justOrEmpty(backgroundJobs.getJob(jobId));
     }
 
     @GetMapping("/channels/{channel-id}/user-stats")
-    public ChannelStats getChannelStats(@PathVariable("channel-id") String channel) {
-        return discordClient.getChannelStats(channel);
+    public Mono<ChannelStats> getChannelStats(@PathVariable("channel-id") String channel) {
+        return BlockingCalls.call(() -> discordClient.getChannelStats(channel));
+    }
+
+    @GetMapping("/channels/{channel-id}/user-stats/window")
+    public Mono<ChannelWindowStats> getChannelStats(@PathVariable("channel-id") String channel,
+                                                    @RequestParam(value = "window", defaultValue = "7d") String window) {
+        return BlockingCalls.call(() -> discordClient.getChannelStats(channel, window))
+                .onErrorMap(IllegalArgumentException.class,
+                        e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage()));
+    }
+
+    @GetMapping("/channels/{channel-id}/user-stats/range")
+    public Mono<ChannelRangeStats> getChannelStats(@PathVariable("channel-id") String channel,
+                                                   @RequestParam("from") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+                                                   @RequestParam("to") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to) {
+        if (!messageAnalytics.isEnabled()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Time range stats require analytics.enabled=true");
+        }
+        return BlockingCalls.call(() -> discordClient.getChannelStats(channel, from, to))
+                .onErrorMap(IllegalStateException.class,
+                        e -> new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage()));
+    }
+
+    @GetMapping("/channels/{channel-id}/user-stats/approximate")
+    public Mono<ApproximateStats> getApproximateChannelStats(@PathVariable("channel-id") String channel,
+                                                             @RequestParam("from") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+                                                             @RequestParam("to") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to) {
+        requireSketches();
+        return BlockingCalls.call(() -> discordClient.getApproximateChannelStats(channel, from, to));
+    }
+
+    @GetMapping("/channels/{channel-id}/engagement")
+    public Mono<EngagementStats> getChannelEngagement(@PathVariable("channel-id") String channel) {
+        requireEngagement();
+        return BlockingCalls.call(() -> discordClient.getChannelEngagement(channel));
+    }
+
+    @PostMapping("/channels/{channel-id}/user-stats/rebuild")
+    public BackgroundJob rebuildChannelStats(@PathVariable("channel-id") String channel) {
+        return backgroundJobs.submit("channel-stats-rebuild", channel, () -> {
+            discordClient.rebuildChannelStats(channel);
+            return null;
+        });
+    }
+
+    private void requireEngagement() {
+        if (!engagementStore.isEnabled()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Engagement stats require analytics.engagement-enabled=true");
+        }
+    }
+
+    private void requireSketches() {
+        if (!sketchStore.isEnabled()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Approximate stats require analytics.sketches-enabled=true");
+        }
     }
-}
\ No newline at end of file
+}
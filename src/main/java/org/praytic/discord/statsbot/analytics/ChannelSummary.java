@@ -0,0 +1,19 @@
+package org.praytic.discord.statsbot.analytics;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.Map;
+
+@AllArgsConstructor
+@Data
+public class ChannelSummary {
+    private long messagesCount;
+    private long activeDays;
+    private long reactionsCount;
+    private long mentionsCount;
+    /**
+     * Messages per author id, ordered by the number of messages descending.
+     */
+    private Map<String, Long> topAuthors;
+}
@@ -0,0 +1,165 @@
+package org.praytic.discord.statsbot.analytics;
+
+import java.util.Arrays;
+
+/**
+ * Facts of the messages sent on one epoch day, stored column by column. Rows are appended under
+ * the partition lock and published through the volatile size of the columns, so scans run without
+ * locking. Removing a channel compacts into new columns, a running scan keeps reading the old ones.
+ */
+final class DayPartition {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final long day;
+    private LongIntHashMap rows = new LongIntHashMap(INITIAL_CAPACITY);
+    private volatile Columns columns = new Columns(INITIAL_CAPACITY);
+
+    DayPartition(long day) {
+        this.day = day;
+    }
+
+    long getDay() {
+        return day;
+    }
+
+    int size() {
+        return columns.size;
+    }
+
+    /**
+     * Adds the message, or updates its reaction and mention counts when it's already present.
+     *
+     * @return {@code true} when the message was added
+     */
+    synchronized boolean append(long message, int channel, int author, int secondOfDay, int reactionCount, int mentionCount) {
+        Columns current = columns;
+        int row = rows.get(message);
+        if (row >= 0) {
+            current.reactions[row] = Math.max(current.reactions[row], reactionCount);
+            current.mentions[row] = Math.max(current.mentions[row], mentionCount);
+            return false;
+        }
+        row = current.size;
+        if (row == current.messages.length) {
+            current = current.copy(current.messages.length * 2);
+            columns = current;
+        }
+        current.messages[row] = message;
+        current.channels[row] = channel;
+        current.authors[row] = author;
+        current.seconds[row] = secondOfDay;
+        current.reactions[row] = reactionCount;
+        current.mentions[row] = mentionCount;
+        rows.put(message, row);
+        current.size = row + 1;
+        return true;
+    }
+
+    synchronized void addReactions(long message, int delta) {
+        int row = rows.get(message);
+        if (row >= 0) {
+            int[] reactions = columns.reactions;
+            reactions[row] = Math.max(0, reactions[row] + delta);
+        }
+    }
+
+    /**
+     * Drops the messages of the channel.
+     *
+     * @return number of dropped messages
+     */
+    synchronized int removeChannel(int channel) {
+        Columns current = columns;
+        int kept = 0;
+        for (int row = 0; row < current.size; row++) {
+            if (current.channels[row] != channel) {
+                kept++;
+            }
+        }
+        int removed = current.size - kept;
+        if (removed == 0) {
+            return 0;
+        }
+        Columns compacted = new Columns(Math.max(INITIAL_CAPACITY, kept));
+        LongIntHashMap compactedRows = new LongIntHashMap(kept);
+        int target = 0;
+        for (int row = 0; row < current.size; row++) {
+            if (current.channels[row] == channel) {
+                continue;
+            }
+            compacted.messages[target] = current.messages[row];
+            compacted.channels[target] = current.channels[row];
+            compacted.authors[target] = current.authors[row];
+            compacted.seconds[target] = current.seconds[row];
+            compacted.reactions[target] = current.reactions[row];
+            compacted.mentions[target] = current.mentions[row];
+            compactedRows.put(current.messages[row], target);
+            target++;
+        }
+        compacted.size = kept;
+        rows = compactedRows;
+        columns = compacted;
+        return removed;
+    }
+
+    /**
+     * Adds the messages of the channel sent within {@code [fromSecond, toSecond)} of this day to the result.
+     */
+    void scan(int channel, int fromSecond, int toSecond, ScanResult result) {
+        Columns current = columns;
+        int rowCount = current.size;
+        int[] channelColumn = current.channels;
+        int[] authorColumn = current.authors;
+        int[] secondColumn = current.seconds;
+        int[] reactionColumn = current.reactions;
+        int[] mentionColumn = current.mentions;
+        long count = 0;
+        for (int row = 0; row < rowCount; row++) {
+            if (channelColumn[row] != channel || secondColumn[row] < fromSecond || secondColumn[row] >= toSecond) {
+                continue;
+            }
+            count++;
+            result.countAuthor(authorColumn[row]);
+            result.reactions += reactionColumn[row];
+            result.mentions += mentionColumn[row];
+        }
+        if (count > 0) {
+            result.messages += count;
+            result.activeDays++;
+        }
+    }
+
+    /**
+     * Rows below {@code size} are complete, a grown copy replaces the columns before its next row is written.
+     */
+    private static final class Columns {
+        private final long[] messages;
+        private final int[] channels;
+        private final int[] authors;
+        private final int[] seconds;
+        private final int[] reactions;
+        private final int[] mentions;
+        private volatile int size;
+
+        private Columns(int capacity) {
+            this(new long[capacity], new int[capacity], new int[capacity], new int[capacity], new int[capacity], new int[capacity], 0);
+        }
+
+        private Columns(long[] messages, int[] channels, int[] authors, int[] seconds, int[] reactions, int[] mentions, int size) {
+            this.messages = messages;
+            this.channels = channels;
+            this.authors = authors;
+            this.seconds = seconds;
+            this.reactions = reactions;
+            this.mentions = mentions;
+            this.size = size;
+        }
+
+        private Columns copy(int capacity) {
+            return new Columns(Arrays.copyOf(messages, capacity), Arrays.copyOf(channels, capacity),
+                    Arrays.copyOf(authors, capacity), Arrays.copyOf(seconds, capacity),
+                    Arrays.copyOf(reactions, capacity), Arrays.copyOf(mentions, capacity), size);
+        }
+    }
+}
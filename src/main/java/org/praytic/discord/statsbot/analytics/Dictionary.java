@@ -0,0 +1,48 @@
+package org.praytic.discord.statsbot.analytics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes snowflakes to dense {@code int} ids, so columns can store them as primitive ints
+ * and per-id counters can be plain arrays.
+ */
+final class Dictionary {
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final List<String> values = new ArrayList<>();
+
+    int encode(String value) {
+        Integer id = ids.get(value);
+        if (id != null) {
+            return id;
+        }
+        synchronized (values) {
+            return ids.computeIfAbsent(value, key -> {
+                values.add(key);
+                return values.size() - 1;
+            });
+        }
+    }
+
+    /**
+     * @return the id of the value or {@code -1} when the value was never encoded
+     */
+    int find(String value) {
+        return ids.getOrDefault(value, -1);
+    }
+
+    String decode(int id) {
+        synchronized (values) {
+            return values.get(id);
+        }
+    }
+
+    int size() {
+        synchronized (values) {
+            return values.size();
+        }
+    }
+}
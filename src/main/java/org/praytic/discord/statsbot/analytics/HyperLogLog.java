@@ -0,0 +1,120 @@
+package org.praytic.discord.statsbot.analytics;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.*;
+
+/**
+ * Mergeable estimate of the number of distinct values in constant memory: {@code 2^precision}
+ * one-byte registers with a standard error of about {@code 1.04 / sqrt(2^precision)}.
+ */
+public class HyperLogLog {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private static final byte DENSE = 0;
+    private static final byte SPARSE = 1;
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16) {
+            throw new IllegalArgumentException("Precision must be between 4 and 16: " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    public void add(String value) {
+        long hash = HASH.hashUnencodedChars(value).asLong();
+        int index = (int) (hash >>> (64 - precision));
+        // The marker bit bounds the rank when the remaining bits are all zero.
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // Linear counting is more accurate for small cardinalities.
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    public HyperLogLog merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Unable to merge precision " + other.precision + " into " + precision);
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Serializes the registers, only the non-empty ones when that's shorter.
+     */
+    public byte[] toBytes() {
+        int used = 0;
+        for (byte register : registers) {
+            if (register != 0) {
+                used++;
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            if (used * 3 < registers.length) {
+                out.writeByte(SPARSE);
+                out.writeByte(precision);
+                out.writeShort(used);
+                for (int i = 0; i < registers.length; i++) {
+                    if (registers[i] != 0) {
+                        out.writeShort(i);
+                        out.writeByte(registers[i]);
+                    }
+                }
+            } else {
+                out.writeByte(DENSE);
+                out.writeByte(precision);
+                out.write(registers);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            byte format = in.readByte();
+            HyperLogLog hll = new HyperLogLog(in.readByte());
+            if (format == SPARSE) {
+                int used = in.readUnsignedShort();
+                for (int i = 0; i < used; i++) {
+                    hll.registers[in.readUnsignedShort()] = in.readByte();
+                }
+            } else {
+                in.readFully(hll.registers);
+            }
+            return hll;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
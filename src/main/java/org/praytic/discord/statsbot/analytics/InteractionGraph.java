@@ -0,0 +1,266 @@
+package org.praytic.discord.statsbot.analytics;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Immutable weighted user-to-user interactions in compressed sparse row form. Users are sorted
+ * snowflakes, so a user is found with a binary search, and the interactions of user {@code u} are
+ * {@code targets[offsets[u]..offsets[u + 1])} with their counts in {@code weights}. The same edges are
+ * also indexed by target, {@code sources[inOffsets[u]..inOffsets[u + 1])} are the users who interacted
+ * with {@code u}, so the partners of a user are found without scanning the graph. Only the forward
+ * arrays are serialized, the reverse ones are rebuilt on load.
+ * <p>
+ * A graph is changed by adding it to a {@link Builder} together with the new interactions.
+ */
+public class InteractionGraph {
+
+    private static final InteractionGraph EMPTY = new InteractionGraph(new long[0], new int[1], new int[0], new long[0]);
+
+    private final long[] users;
+    private final int[] offsets;
+    private final int[] targets;
+    private final long[] weights;
+    private final int[] inOffsets;
+    private final int[] sources;
+    private final long[] inWeights;
+
+    private InteractionGraph(long[] users, int[] offsets, int[] targets, long[] weights) {
+        this.users = users;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+        this.inOffsets = new int[users.length + 1];
+        this.sources = new int[targets.length];
+        this.inWeights = new long[targets.length];
+        for (int target : targets) {
+            inOffsets[target + 1]++;
+        }
+        for (int i = 1; i < inOffsets.length; i++) {
+            inOffsets[i] += inOffsets[i - 1];
+        }
+        int[] next = Arrays.copyOf(inOffsets, users.length);
+        for (int source = 0; source < users.length; source++) {
+            for (int edge = offsets[source]; edge < offsets[source + 1]; edge++) {
+                int slot = next[targets[edge]]++;
+                sources[slot] = source;
+                inWeights[slot] = weights[edge];
+            }
+        }
+    }
+
+    public static InteractionGraph empty() {
+        return EMPTY;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int userCount() {
+        return users.length;
+    }
+
+    public int edgeCount() {
+        return targets.length;
+    }
+
+    /**
+     * @return interactions of the user with others in both directions, summed per user, in descending order
+     */
+    public Map<String, Long> partners(String user, int limit) {
+        int node = Arrays.binarySearch(users, Long.parseLong(user));
+        if (node < 0) {
+            return Collections.emptyMap();
+        }
+        Map<Integer, Long> counts = new HashMap<>();
+        for (int edge = offsets[node]; edge < offsets[node + 1]; edge++) {
+            counts.merge(targets[edge], weights[edge], Long::sum);
+        }
+        for (int edge = inOffsets[node]; edge < inOffsets[node + 1]; edge++) {
+            counts.merge(sources[edge], inWeights[edge], Long::sum);
+        }
+        Map<String, Long> partners = new LinkedHashMap<>();
+        counts.entrySet().stream()
+                .sorted(Map.Entry.<Integer, Long>comparingByValue().reversed())
+                .limit(limit)
+                .forEach(entry -> partners.put(Long.toString(users[entry.getKey()]), entry.getValue()));
+        return partners;
+    }
+
+    /**
+     * @return up to {@code limit} heaviest interactions in descending order
+     */
+    public List<Edge> top(int limit) {
+        PriorityQueue<Integer> top = new PriorityQueue<>(Comparator.comparingLong(edge -> weights[edge]));
+        for (int edge = 0; edge < targets.length; edge++) {
+            if (top.size() < limit) {
+                top.add(edge);
+            } else if (weights[edge] > weights[top.peek()]) {
+                top.poll();
+                top.add(edge);
+            }
+        }
+        List<Edge> edges = new ArrayList<>(top.size());
+        for (int edge : top) {
+            edges.add(new Edge(Long.toString(users[source(edge)]), Long.toString(users[targets[edge]]), weights[edge]));
+        }
+        edges.sort(Comparator.comparingLong(Edge::getCount).reversed());
+        return edges;
+    }
+
+    /**
+     * @return length of {@link #toBytes()}, without encoding the graph
+     */
+    public int encodedSize() {
+        return 8 + users.length * 12 + targets.length * 12;
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(users.length);
+            out.writeInt(targets.length);
+            for (long user : users) {
+                out.writeLong(user);
+            }
+            for (int i = 1; i < offsets.length; i++) {
+                out.writeInt(offsets[i]);
+            }
+            for (int edge = 0; edge < targets.length; edge++) {
+                out.writeInt(targets[edge]);
+                out.writeLong(weights[edge]);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static InteractionGraph fromBytes(byte[] bytes) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            long[] users = new long[in.readInt()];
+            int[] offsets = new int[users.length + 1];
+            int[] targets = new int[in.readInt()];
+            long[] weights = new long[targets.length];
+            for (int i = 0; i < users.length; i++) {
+                users[i] = in.readLong();
+            }
+            for (int i = 1; i < offsets.length; i++) {
+                offsets[i] = in.readInt();
+            }
+            for (int edge = 0; edge < targets.length; edge++) {
+                targets[edge] = in.readInt();
+                weights[edge] = in.readLong();
+            }
+            return new InteractionGraph(users, offsets, targets, weights);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int source(int edge) {
+        int source = Arrays.binarySearch(offsets, edge);
+        if (source < 0) {
+            return -source - 2;
+        }
+        // Users without interactions share the offset of the next user.
+        while (offsets[source + 1] == edge) {
+            source++;
+        }
+        return source;
+    }
+
+    @AllArgsConstructor
+    @Data
+    public static class Edge {
+        private String from;
+        private String to;
+        private long count;
+    }
+
+    /**
+     * Collects interaction counts, counts of the same pair of users are summed. A negative count
+     * subtracts interactions, pairs left without a positive count are not part of the built graph.
+     */
+    public static class Builder {
+
+        private final Map<Long, Map<Long, Long>> edges = new HashMap<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Interactions of a user with themselves are ignored.
+         */
+        public Builder add(String from, String to, long count) {
+            long source = Long.parseLong(from);
+            long target = Long.parseLong(to);
+            if (source != target) {
+                add(source, target, count);
+            }
+            return this;
+        }
+
+        public Builder addAll(InteractionGraph graph) {
+            for (int source = 0; source < graph.users.length; source++) {
+                for (int edge = graph.offsets[source]; edge < graph.offsets[source + 1]; edge++) {
+                    add(graph.users[source], graph.users[graph.targets[edge]], graph.weights[edge]);
+                }
+            }
+            return this;
+        }
+
+        public Builder addAll(Builder other) {
+            other.edges.forEach((source, targets) -> targets.forEach((target, count) -> add(source, target, count)));
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return edges.isEmpty();
+        }
+
+        /**
+         * @param maxEdges only the heaviest interactions are kept above this number
+         */
+        public InteractionGraph build(int maxEdges) {
+            List<long[]> flat = new ArrayList<>();
+            edges.forEach((source, targets) -> targets.forEach((target, count) -> {
+                if (count > 0) {
+                    flat.add(new long[]{source, target, count});
+                }
+            }));
+            if (flat.size() > maxEdges) {
+                flat.sort(Comparator.comparingLong((long[] edge) -> edge[2]).reversed());
+                flat.subList(maxEdges, flat.size()).clear();
+            }
+            long[] users = flat.stream()
+                    .flatMapToLong(edge -> Arrays.stream(edge, 0, 2))
+                    .distinct()
+                    .sorted()
+                    .toArray();
+            flat.sort(Comparator.comparingLong((long[] edge) -> edge[0]).thenComparingLong(edge -> edge[1]));
+
+            int[] offsets = new int[users.length + 1];
+            int[] targets = new int[flat.size()];
+            long[] weights = new long[flat.size()];
+            for (int edge = 0; edge < flat.size(); edge++) {
+                long[] entry = flat.get(edge);
+                offsets[Arrays.binarySearch(users, entry[0]) + 1]++;
+                targets[edge] = Arrays.binarySearch(users, entry[1]);
+                weights[edge] = entry[2];
+            }
+            for (int i = 1; i < offsets.length; i++) {
+                offsets[i] += offsets[i - 1];
+            }
+            return new InteractionGraph(users, offsets, targets, weights);
+        }
+
+        private void add(long source, long target, long count) {
+            edges.computeIfAbsent(source, key -> new HashMap<>()).merge(target, count, Long::sum);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package org.praytic.discord.statsbot.analytics;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mewna.catnip.entity.message.Message;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.config.properties.AnalyticsProperties;
+import org.praytic.discord.statsbot.storage.MessageStore;
+import org.praytic.discord.statsbot.storage.Snowflakes;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * In-memory message facts for fast channel stats over arbitrary time ranges. Messages are kept in
+ * column arrays partitioned by epoch day, with channel and author snowflakes encoded to ints, and
+ * a query scans the partitions of its range in parallel.
+ * <p>
+ * The engine is fed by the ingest path and the initial load. A channel is loaded from the
+ * {@link MessageStore} in the background the first time it's queried, and has no summary until it's
+ * loaded. Reaction and mention counts of loaded messages are only known for messages ingested since.
+ * Only messages of loaded channels are kept, at most {@code analytics.max-channels} of them, the least
+ * recently queried channel is dropped beyond it.
+ */
+@Slf4j
+@Component
+public class MessageAnalytics {
+
+    private static final int SECONDS_PER_DAY = 86400;
+    private static final int WARM_THREADS = 2;
+
+    private final MessageStore messageStore;
+    private final AnalyticsProperties properties;
+    private final Dictionary channels = new Dictionary();
+    private final Dictionary authors = new Dictionary();
+    private final ConcurrentNavigableMap<Long, DayPartition> partitions = new ConcurrentSkipListMap<>();
+    /**
+     * Loaded and loading channels in the order they were queried, guarded by itself.
+     */
+    private final Map<String, CompletableFuture<Void>> warmedChannels = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Keys of {@code warmedChannels}, read by the ingest path without locking.
+     */
+    private final Set<String> trackedChannels = ConcurrentHashMap.newKeySet();
+    private final ForkJoinPool scanPool;
+    private final ExecutorService warmExecutor;
+
+    public MessageAnalytics(MessageStore messageStore, AnalyticsProperties properties) {
+        this.messageStore = messageStore;
+        this.properties = properties;
+        this.scanPool = new ForkJoinPool(properties.getParallelism());
+        this.warmExecutor = Executors.newFixedThreadPool(WARM_THREADS,
+                new ThreadFactoryBuilder().setNameFormat("analytics-warm-%d").setDaemon(true).build());
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    public void record(Message msg) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (!trackedChannels.contains(msg.channelId())) {
+            return;
+        }
+        int reactionsCount = msg.reactions().stream().mapToInt(Message.Reaction::count).sum();
+        append(msg.id(), msg.channelId(), msg.author().id(), msg.timestamp().toEpochSecond(),
+                reactionsCount, msg.mentionedUsers().size());
+    }
+
+    public void recordReaction(String messageId, int delta) {
+        if (!isEnabled()) {
+            return;
+        }
+        long id = Long.parseLong(messageId);
+        DayPartition partition = partitions.get(Math.floorDiv(snowflakeEpochSecond(id), SECONDS_PER_DAY));
+        if (partition != null) {
+            partition.addReactions(id, delta);
+        }
+    }
+
+    /**
+     * @param from inclusive start of the range
+     * @param to   exclusive end of the range
+     * @return the summary, or empty while the messages of the channel are loaded
+     */
+    public Optional<ChannelSummary> summarize(String channel, Instant from, Instant to, int topAuthorsLimit) {
+        if (!warm(channel)) {
+            return Optional.empty();
+        }
+        int channelId = channels.find(channel);
+        long fromSecond = from.getEpochSecond();
+        long toSecond = to.getEpochSecond();
+        if (channelId < 0 || fromSecond >= toSecond) {
+            return Optional.of(new ChannelSummary(0, 0, 0, 0, Collections.emptyMap()));
+        }
+
+        List<DayPartition> range = new ArrayList<>(partitions.subMap(
+                Math.floorDiv(fromSecond, SECONDS_PER_DAY), true,
+                Math.floorDiv(toSecond - 1, SECONDS_PER_DAY), true).values());
+        ScanResult result = scanPool.invoke(new ScanTask(range, 0, range.size(), channelId, fromSecond, toSecond));
+        return Optional.of(new ChannelSummary(result.messages, result.activeDays, result.reactions, result.mentions,
+                topAuthors(result.authorCounts, topAuthorsLimit)));
+    }
+
+    @PreDestroy
+    public void close() {
+        warmExecutor.shutdownNow();
+        scanPool.shutdown();
+    }
+
+    /**
+     * Marks the channel as recently queried and starts loading it unless it's loaded or loading.
+     *
+     * @return whether the channel is loaded
+     */
+    private boolean warm(String channel) {
+        CompletableFuture<Void> warming;
+        boolean start = false;
+        List<String> evicted = new ArrayList<>();
+        synchronized (warmedChannels) {
+            warming = warmedChannels.get(channel);
+            if (warming == null) {
+                warming = new CompletableFuture<>();
+                warmedChannels.put(channel, warming);
+                trackedChannels.add(channel);
+                start = true;
+                Iterator<String> eldest = warmedChannels.keySet().iterator();
+                while (warmedChannels.size() > properties.getMaxChannels()) {
+                    String dropped = eldest.next();
+                    eldest.remove();
+                    trackedChannels.remove(dropped);
+                    evicted.add(dropped);
+                }
+            }
+        }
+        evicted.forEach(this::evict);
+        if (start) {
+            CompletableFuture<Void> loading = warming;
+            warmExecutor.execute(() -> load(channel, loading));
+        }
+        return warming.isDone() && !warming.isCompletedExceptionally();
+    }
+
+    /**
+     * Buffered writes are flushed first, so messages ingested before the channel was tracked aren't missed.
+     */
+    private void load(String channel, CompletableFuture<Void> loading) {
+        try {
+            messageStore.flush();
+            long count = messageStore.streamChannelMessages(channel)
+                    .doOnNext(message -> append(message.getId(), channel, message.getAuthor(), message.getEpochSecond(), 0, 0))
+                    .count()
+                    .block();
+            log.info("Loaded {} messages of channel [{}] into analytics", count, channel);
+            loading.complete(null);
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.warn("Unable to load messages of channel [{}] into analytics: {}", channel, e.getMessage());
+            synchronized (warmedChannels) {
+                if (warmedChannels.remove(channel, loading)) {
+                    trackedChannels.remove(channel);
+                }
+            }
+            loading.completeExceptionally(e);
+        }
+        if (!trackedChannels.contains(channel)) {
+            // Dropped while it was loading.
+            evict(channel);
+        }
+    }
+
+    private void evict(String channel) {
+        int channelId = channels.find(channel);
+        if (channelId < 0) {
+            return;
+        }
+        long removed = 0;
+        for (DayPartition partition : partitions.values()) {
+            removed += partition.removeChannel(channelId);
+        }
+        log.info("Dropped {} messages of channel [{}] from analytics", removed, channel);
+    }
+
+    private void append(String messageId, String channel, String author, long epochSecond, int reactionsCount, int mentionsCount) {
+        long day = Math.floorDiv(epochSecond, SECONDS_PER_DAY);
+        partitions.computeIfAbsent(day, DayPartition::new).append(Long.parseLong(messageId),
+                channels.encode(channel), authors.encode(author), (int) Math.floorMod(epochSecond, SECONDS_PER_DAY),
+                reactionsCount, mentionsCount);
+    }
+
+    private Map<String, Long> topAuthors(int[] authorCounts, int limit) {
+        PriorityQueue<Integer> top = new PriorityQueue<>(Comparator.comparingInt(author -> authorCounts[author]));
+        for (int author = 0; author < authorCounts.length; author++) {
+            if (authorCounts[author] == 0) {
+                continue;
+            }
+            if (top.size() < limit) {
+                top.add(author);
+            } else if (authorCounts[author] > authorCounts[top.peek()]) {
+                top.poll();
+                top.add(author);
+            }
+        }
+        List<Integer> ordered = new ArrayList<>(top);
+        ordered.sort(Comparator.comparingInt((Integer author) -> authorCounts[author]).reversed());
+        Map<String, Long> result = new LinkedHashMap<>();
+        ordered.forEach(author -> result.put(authors.decode(author), (long) authorCounts[author]));
+        return result;
+    }
+
+    private static long snowflakeEpochSecond(long snowflake) {
+        return Snowflakes.epochMilli(snowflake) / 1000;
+    }
+
+    private class ScanTask extends RecursiveTask<ScanResult> {
+
+        private final List<DayPartition> range;
+        private final int from;
+        private final int to;
+        private final int channel;
+        private final long fromSecond;
+        private final long toSecond;
+
+        private ScanTask(List<DayPartition> range, int from, int to, int channel, long fromSecond, long toSecond) {
+            this.range = range;
+            this.from = from;
+            this.to = to;
+            this.channel = channel;
+            this.fromSecond = fromSecond;
+            this.toSecond = toSecond;
+        }
+
+        @Override
+        protected ScanResult compute() {
+            long rows = 0;
+            for (int i = from; i < to; i++) {
+                rows += range.get(i).size();
+            }
+            if (to - from > 1 && rows > properties.getScanThreshold()) {
+                int middle = (from + to) >>> 1;
+                ScanTask left = new ScanTask(range, from, middle, channel, fromSecond, toSecond);
+                left.fork();
+                ScanResult right = new ScanTask(range, middle, to, channel, fromSecond, toSecond).compute();
+                return right.merge(left.join());
+            }
+            ScanResult result = new ScanResult(authors.size());
+            for (int i = from; i < to; i++) {
+                DayPartition partition = range.get(i);
+                long dayStart = partition.getDay() * SECONDS_PER_DAY;
+                int fromSecondOfDay = (int) Math.max(0, fromSecond - dayStart);
+                int toSecondOfDay = (int) Math.min(SECONDS_PER_DAY, toSecond - dayStart);
+                partition.scan(channel, fromSecondOfDay, toSecondOfDay, result);
+            }
+            return result;
+        }
+    }
+}
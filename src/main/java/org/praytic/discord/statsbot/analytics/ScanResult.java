@@ -0,0 +1,41 @@
+package org.praytic.discord.statsbot.analytics;
+
+import java.util.Arrays;
+
+/**
+ * Partial result of a scan, merged pairwise by the fork-join tasks.
+ */
+final class ScanResult {
+
+    long messages;
+    long activeDays;
+    long reactions;
+    long mentions;
+    int[] authorCounts;
+
+    ScanResult(int authors) {
+        authorCounts = new int[authors];
+    }
+
+    void countAuthor(int author) {
+        if (author >= authorCounts.length) {
+            // The author was encoded after the scan started.
+            authorCounts = Arrays.copyOf(authorCounts, Math.max(author + 1, authorCounts.length * 2));
+        }
+        authorCounts[author]++;
+    }
+
+    ScanResult merge(ScanResult other) {
+        messages += other.messages;
+        activeDays += other.activeDays;
+        reactions += other.reactions;
+        mentions += other.mentions;
+        if (other.authorCounts.length > authorCounts.length) {
+            authorCounts = Arrays.copyOf(authorCounts, other.authorCounts.length);
+        }
+        for (int author = 0; author < other.authorCounts.length; author++) {
+            authorCounts[author] += other.authorCounts[author];
+        }
+        return this;
+    }
+}
@@ -0,0 +1,151 @@
+package org.praytic.discord.statsbot.analytics;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Space-Saving summary of the most frequent items with a fixed number of counters. An item that
+ * isn't tracked replaces the smallest counter and inherits its count as the error, so every
+ * estimate overcounts by at most its error. Counters are also kept ordered by count, so an offer
+ * takes {@code O(log capacity)}.
+ */
+public class SpaceSaving {
+
+    private static final Comparator<Counter> BY_COUNT =
+            Comparator.comparingLong((Counter counter) -> counter.count).thenComparing(counter -> counter.item);
+
+    private final int capacity;
+    private final Map<String, Counter> counters;
+    private final TreeSet<Counter> byCount = new TreeSet<>(BY_COUNT);
+
+    public SpaceSaving(int capacity) {
+        this.capacity = capacity;
+        this.counters = new HashMap<>(capacity * 2);
+    }
+
+    public void offer(String item, long count) {
+        Counter counter = counters.get(item);
+        if (counter != null) {
+            byCount.remove(counter);
+            counter.count += count;
+            byCount.add(counter);
+        } else if (counters.size() < capacity) {
+            put(new Counter(item, count, 0));
+        } else {
+            Counter replaced = byCount.pollFirst();
+            counters.remove(replaced.item);
+            put(new Counter(item, replaced.count + count, replaced.count));
+        }
+    }
+
+    /**
+     * Subtracts removed occurrences of a tracked item. The true count of an item that isn't tracked only
+     * gets further below the smallest count, so such items are left as they are.
+     */
+    public void decrement(String item, long count) {
+        Counter counter = counters.get(item);
+        if (counter == null) {
+            return;
+        }
+        byCount.remove(counter);
+        counter.count = Math.max(0, counter.count - count);
+        counter.error = Math.min(counter.error, counter.count);
+        byCount.add(counter);
+    }
+
+    /**
+     * Adds the counts of the other summary. Items missing from a full summary may have been counted up
+     * to its smallest count, which is added to their error.
+     */
+    public SpaceSaving merge(SpaceSaving other) {
+        long minThis = isFull() ? byCount.first().count : 0;
+        long minOther = other.isFull() ? other.byCount.first().count : 0;
+        Map<String, Counter> merged = new HashMap<>(counters.size() + other.counters.size());
+        counters.values().forEach(counter ->
+                merged.put(counter.item, new Counter(counter.item, counter.count, counter.error + minOther)));
+        other.counters.values().forEach(counter -> {
+            Counter existing = merged.get(counter.item);
+            if (existing == null) {
+                merged.put(counter.item, new Counter(counter.item, counter.count, counter.error + minThis));
+            } else {
+                existing.count += counter.count;
+                existing.error += counter.error - minOther;
+            }
+        });
+        counters.clear();
+        byCount.clear();
+        merged.values().stream()
+                .sorted(BY_COUNT.reversed())
+                .limit(capacity)
+                .forEach(this::put);
+        return this;
+    }
+
+    /**
+     * @return estimated counts of up to {@code limit} most frequent items in descending order
+     */
+    public Map<String, Long> top(int limit) {
+        Map<String, Long> top = new LinkedHashMap<>();
+        Iterator<Counter> descending = byCount.descendingIterator();
+        while (descending.hasNext() && top.size() < limit) {
+            Counter counter = descending.next();
+            top.put(counter.item, counter.count);
+        }
+        return top;
+    }
+
+    public long error(String item) {
+        Counter counter = counters.get(item);
+        return counter == null ? 0 : counter.error;
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(capacity);
+            out.writeInt(counters.size());
+            for (Counter counter : counters.values()) {
+                out.writeUTF(counter.item);
+                out.writeLong(counter.count);
+                out.writeLong(counter.error);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static SpaceSaving fromBytes(byte[] bytes) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            SpaceSaving summary = new SpaceSaving(in.readInt());
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                summary.put(new Counter(in.readUTF(), in.readLong(), in.readLong()));
+            }
+            return summary;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean isFull() {
+        return counters.size() >= capacity;
+    }
+
+    private void put(Counter counter) {
+        counters.put(counter.item, counter);
+        byCount.add(counter);
+    }
+
+    private static final class Counter {
+        private final String item;
+        private long count;
+        private long error;
+
+        private Counter(String item, long count, long error) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.config.properties.BotProperties;
+import org.praytic.discord.statsbot.model.BackgroundJob;
+import org.praytic.discord.statsbot.model.JobState;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs long operations requested over REST in the background, so the request returns a job
+ * that can be polled instead of holding a connection until the operation completes. At most
+ * {@code bot.job-concurrency} jobs run at once, the others wait for a thread. Finished jobs can be
+ * polled for {@code bot.job-retention}.
+ */
+@Slf4j
+@Component
+public class BackgroundJobs {
+
+    private final BotProperties properties;
+    private final ExecutorService jobExecutor;
+    private final Map<String, BackgroundJob> jobs = new ConcurrentHashMap<>();
+
+    public BackgroundJobs(BotProperties properties) {
+        this.properties = properties;
+        this.jobExecutor = Executors.newFixedThreadPool(properties.getJobConcurrency(),
+                new ThreadFactoryBuilder().setNameFormat("background-job-%d").build());
+    }
+
+    public BackgroundJob submit(String type, String target, Callable<?> task) {
+        return submit(type, target, job -> task.call());
+    }
+
+    /**
+     * Submits a task that reports its progress or stops once cancellation is requested.
+     */
+    public BackgroundJob submit(String type, String target, Task task) {
+        BackgroundJob job = new BackgroundJob(UUID.randomUUID().toString(), type, target);
+        jobs.put(job.getId(), job);
+        jobExecutor.execute(() -> run(job, task));
+        return job;
+    }
+
+    @Nullable
+    public BackgroundJob getJob(String id) {
+        return jobs.get(id);
+    }
+
+    public Collection<BackgroundJob> getJobs() {
+        return jobs.values();
+    }
+
+    /**
+     * Requests the job to stop, it's cancelled once its task returns. Only tasks checking
+     * {@link BackgroundJob#isCancelRequested()} stop early.
+     */
+    @Nullable
+    public BackgroundJob cancel(String id) {
+        BackgroundJob job = jobs.get(id);
+        if (job != null) {
+            job.setCancelRequested(true);
+        }
+        return job;
+    }
+
+    @Scheduled(fixedDelay = 60000)
+    public void expireFinishedJobs() {
+        Instant expired = Instant.now().minus(properties.getJobRetention());
+        jobs.values().removeIf(job -> job.getFinishedAt() != null && job.getFinishedAt().isBefore(expired));
+    }
+
+    @PreDestroy
+    public void close() {
+        jobs.values().forEach(job -> job.setCancelRequested(true));
+        jobExecutor.shutdownNow();
+    }
+
+    private void run(BackgroundJob job, Task task) {
+        log.info("Running {} job [{}] for [{}]", job.getType(), job.getId(), job.getTarget());
+        try {
+            job.setResult(task.run(job));
+            job.setState(job.isCancelRequested() ? JobState.CANCELLED : JobState.COMPLETED);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.setState(JobState.CANCELLED);
+        } catch (Exception e) {
+            log.error("{} job [{}] for [{}] failed", job.getType(), job.getId(), job.getTarget(), e);
+            job.setError(e.getMessage());
+            job.setState(JobState.FAILED);
+        }
+        job.setFinishedAt(Instant.now());
+        log.info("{} job [{}] for [{}] finished as {}", job.getType(), job.getId(), job.getTarget(), job.getState());
+    }
+
+    @FunctionalInterface
+    public interface Task {
+        /**
+         * @return the result of the job
+         */
+        Object run(BackgroundJob job) throws Exception;
+    }
+}
@@ -0,0 +1,145 @@
+package org.praytic.discord.statsbot.client;
+
+import com.mewna.catnip.Catnip;
+import com.mewna.catnip.entity.channel.Channel;
+import com.mewna.catnip.entity.channel.GuildChannel;
+import com.mewna.catnip.entity.message.Message;
+import com.mewna.catnip.shard.DiscordEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Completable;
+import io.reactivex.schedulers.Schedulers;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.config.properties.BotProperties;
+import org.praytic.discord.statsbot.storage.MessageStore;
+import org.praytic.discord.statsbot.storage.Snowflakes;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Fetches the messages sent while the bot was not connected. Whenever a shard becomes ready, i.e. on
+ * startup and when a session couldn't be resumed, every text channel of its guilds is read forward
+ * from its {@link SyncCheckpoints sync checkpoint} up to the moment the shard became ready, so the
+ * cost depends on the downtime and not on the channel history. Newer messages arrive over the gateway.
+ * Channels without a checkpoint are left to the initial load.
+ * <p>
+ * Counters are kept in step with the stored messages, not with the checkpoint, which is written later. So
+ * after a crash the messages already stored past the checkpoint are skipped instead of counted again.
+ */
+@Slf4j
+@Component
+public class CatchUpSync {
+
+    private static final int PAGE_SIZE = 100;
+
+    private final Catnip catnip;
+    private final SyncCheckpoints syncCheckpoints;
+    private final MessageIngest messageIngest;
+    private final MessageStore messageStore;
+    private final RestGateway restGateway;
+    private final BotProperties botProperties;
+    private final Counter fetchedMessages;
+    private final Counter storedMessages;
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+
+    public CatchUpSync(Catnip catnip, SyncCheckpoints syncCheckpoints, MessageIngest messageIngest, MessageStore messageStore,
+                       RestGateway restGateway, BotProperties botProperties, MeterRegistry meterRegistry) {
+        this.catnip = catnip;
+        this.syncCheckpoints = syncCheckpoints;
+        this.messageIngest = messageIngest;
+        this.messageStore = messageStore;
+        this.restGateway = restGateway;
+        this.botProperties = botProperties;
+        this.fetchedMessages = meterRegistry.counter("bot.catch-up.messages");
+        this.storedMessages = meterRegistry.counter("bot.catch-up.stored");
+        catnip.observable(DiscordEvent.READY)
+                .doOnError(error -> log.error("Error occurred when shard became ready.", error))
+                .subscribe(ready -> ready.guilds().forEach(guild -> start(guild.id())));
+    }
+
+    /**
+     * Starts catching up the guild unless it's already running.
+     *
+     * @return whether the catch-up was started
+     */
+    public boolean start(String guild) {
+        if (!running.add(guild)) {
+            return false;
+        }
+        long cutoff = Snowflakes.first(System.currentTimeMillis());
+        Map<String, Long> ingested = syncCheckpoints.snapshot();
+        syncCheckpoints.pause(guild);
+        restGateway.fetchAll("guild-channels", guild, guild, RestGateway.Priority.BACKFILL,
+                        () -> catnip.rest().guild().getGuildChannels(guild))
+                .filter(Channel::isText)
+                .toFlowable(BackpressureStrategy.BUFFER)
+                .flatMapCompletable(channel -> catchUp(channel, ingested.get(channel.id()), cutoff).subscribeOn(Schedulers.io()),
+                        false, botProperties.getCatchUpConcurrency())
+                .doFinally(() -> {
+                    syncCheckpoints.resume(guild);
+                    running.remove(guild);
+                })
+                .subscribe(() -> log.info("Catch-up of guild {} completed", guild),
+                        error -> log.error("Error occurred during catch-up of guild {}.", guild, error));
+        return true;
+    }
+
+    /**
+     * @param ingested newest message of the channel ingested by this process, if any
+     * @param cutoff   snowflake of the moment the shard became ready
+     */
+    private Completable catchUp(GuildChannel channel, @Nullable Long ingested, long cutoff) {
+        return Completable.fromAction(() -> {
+            Long stored = syncCheckpoints.getStored(channel.id());
+            if (stored == null && ingested == null) {
+                return;
+            }
+            long after = Math.max(stored == null ? 0 : stored, ingested == null ? 0 : ingested);
+            long count = 0;
+            boolean reachedCutoff = false;
+            while (!reachedCutoff) {
+                String cursor = Long.toString(after);
+                List<Message> page = new ArrayList<>(PAGE_SIZE);
+                restGateway.stream("channel-messages", channel.id(), RestGateway.Priority.BACKFILL, () ->
+                        catnip.rest().channel().getChannelMessages(channel.id(), null, cursor, null, PAGE_SIZE))
+                        .blockingForEach(page::add);
+                // Pages are returned newest first, they are ingested in the order they were sent.
+                page.sort(Comparator.comparingLong(msg -> Long.parseLong(msg.id())));
+                Set<String> alreadyStored = messageStore.findStored(page.stream().map(Message::id).collect(Collectors.toList()));
+                for (Message msg : page) {
+                    long id = Long.parseLong(msg.id());
+                    if (id >= cutoff) {
+                        reachedCutoff = true;
+                        break;
+                    }
+                    after = id;
+                    if (alreadyStored.contains(msg.id())) {
+                        storedMessages.increment();
+                        continue;
+                    }
+                    messageIngest.ingest(msg, channel.guildId(), null);
+                    fetchedMessages.increment();
+                    count++;
+                }
+                if (page.size() < PAGE_SIZE) {
+                    break;
+                }
+            }
+            if (count > 0) {
+                log.info("Caught up {} messages in channel {}:{}", count, channel.name(), channel.id());
+            }
+        }).onErrorComplete(error -> {
+            log.warn("Unable to catch up channel {}:{}: {}", channel.name(), channel.id(), error.getMessage());
+            return true;
+        });
+    }
+}
@@ -0,0 +1,40 @@
+package org.praytic.discord.statsbot.client;
+
+import lombok.Getter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Message counters of a single channel: total, per day (epoch day) and per author.
+ */
+@Getter
+public class ChannelAggregate {
+
+    private long messagesCount;
+    private final Map<Long, Long> days = new HashMap<>();
+    private final Map<String, Long> authors = new HashMap<>();
+
+    public void add(String author, long epochSecond) {
+        add(author, epochSecond, 1);
+    }
+
+    public void add(String author, long epochSecond, long count) {
+        messagesCount += count;
+        days.merge(Math.floorDiv(epochSecond, 86400), count, Long::sum);
+        authors.merge(author, count, Long::sum);
+    }
+
+    /**
+     * Counts messages of the author without counting them in the totals and days.
+     */
+    public void addAuthor(String author, long count) {
+        authors.merge(author, count, Long::sum);
+    }
+
+    public void merge(ChannelAggregate other) {
+        messagesCount += other.messagesCount;
+        other.days.forEach((day, count) -> days.merge(day, count, Long::sum));
+        other.authors.forEach((author, count) -> authors.merge(author, count, Long::sum));
+    }
+}
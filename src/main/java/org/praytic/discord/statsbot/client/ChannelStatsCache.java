@@ -0,0 +1,137 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import lombok.Value;
+import org.praytic.discord.statsbot.config.properties.BotProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Computed channel stats by channel and view (all time, window or date range), and guild stats by guild.
+ * Concurrent requests for the same missing entry wait for a single computation. Entries of a channel or
+ * guild are dropped when its counters change, i.e. when pending counters are flushed or the live analytics
+ * receive an event. Channel totals are guild counters too, so their flush drops the entries of the guild.
+ * <p>
+ * Keys are indexed by channel, so dropping the entries of a channel doesn't scan the whole cache. A view
+ * that an event changes predictably, like the all time stats on a new message, can be patched in place.
+ */
+@Component
+public class ChannelStatsCache {
+
+    private final Cache<StatsKey, Object> stats;
+    private final Cache<String, String> channelNames;
+    private final Map<String, Set<StatsKey>> channelKeys = new ConcurrentHashMap<>();
+
+    public ChannelStatsCache(BotProperties botProperties, MeterRegistry meterRegistry) {
+        this.stats = CacheBuilder.newBuilder()
+                .maximumSize(botProperties.getStatsCacheSize())
+                .expireAfterWrite(botProperties.getStatsCacheTtl())
+                .recordStats()
+                .removalListener((RemovalNotification<StatsKey, Object> notification) -> {
+                    // Invalidated keys are removed from the index by the invalidation.
+                    if (notification.wasEvicted()) {
+                        unindex(notification.getKey());
+                    }
+                })
+                .build();
+        this.channelNames = CacheBuilder.newBuilder()
+                .maximumSize(botProperties.getStatsCacheSize())
+                .expireAfterWrite(botProperties.getStatsCacheTtl())
+                .recordStats()
+                .build();
+        GuavaCacheMetrics.monitor(meterRegistry, stats, "channel-stats");
+        GuavaCacheMetrics.monitor(meterRegistry, channelNames, "channel-names");
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T get(String channel, String view, Callable<T> loader) {
+        StatsKey key = new StatsKey(channel, view);
+        return (T) load(stats, key, () -> {
+            T value = loader.call();
+            channelKeys.compute(channel, (ignored, keys) -> {
+                Set<StatsKey> indexed = keys != null ? keys : ConcurrentHashMap.newKeySet();
+                indexed.add(key);
+                return indexed;
+            });
+            return value;
+        });
+    }
+
+    public String getChannelName(String channel, Callable<String> loader) {
+        return load(channelNames, channel, loader);
+    }
+
+    public void invalidate(String channel) {
+        invalidate(channel, key -> true);
+    }
+
+    /**
+     * Drops the entries of the channel except the view, which is replaced by the patched value. A patch
+     * returning {@code null} drops the view too.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void invalidate(String channel, String view, UnaryOperator<T> patch) {
+        StatsKey patched = new StatsKey(channel, view);
+        if (stats.asMap().computeIfPresent(patched, (key, value) -> patch.apply((T) value)) == null) {
+            unindex(patched);
+        }
+        invalidate(channel, key -> !key.equals(patched));
+    }
+
+    public void invalidateChannelName(String channel) {
+        channelNames.invalidate(channel);
+    }
+
+    private void invalidate(String channel, Predicate<StatsKey> filter) {
+        Set<StatsKey> keys = channelKeys.get(channel);
+        if (keys == null) {
+            return;
+        }
+        for (StatsKey key : keys) {
+            if (filter.test(key)) {
+                keys.remove(key);
+                stats.invalidate(key);
+            }
+        }
+        channelKeys.computeIfPresent(channel, (ignored, remaining) -> remaining.isEmpty() ? null : remaining);
+    }
+
+    private void unindex(StatsKey key) {
+        if (stats.asMap().containsKey(key)) {
+            // The key was loaded again since.
+            return;
+        }
+        channelKeys.computeIfPresent(key.getChannel(), (ignored, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    private static <K, V> V load(Cache<K, V> cache, K key, Callable<? extends V> loader) {
+        try {
+            return cache.get(key, loader);
+        } catch (UncheckedExecutionException e) {
+            throw (RuntimeException) e.getCause();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    @Value
+    private static class StatsKey {
+        String channel;
+        String view;
+    }
+}
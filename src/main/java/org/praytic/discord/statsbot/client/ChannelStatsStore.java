@@ -0,0 +1,335 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.cloud.datastore.*;
+import com.google.common.collect.Lists;
+import com.mewna.catnip.entity.message.Message;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.storage.MessageStore;
+import org.praytic.discord.statsbot.storage.Snowflakes;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.stream.Collectors.toSet;
+
+/**
+ * Pre-aggregated message counters per channel. Live messages are counted in memory and periodically
+ * added to the stored counters, a full recount of stored messages is done only by {@link #rebuild(String)}.
+ * <ul>
+ *     <li>{@code channel-stats} - total messages and number of days with messages, keyed by channel</li>
+ *     <li>{@code channel-day-stats} - messages per epoch day, keyed by {@code channel:day}</li>
+ *     <li>{@code channel-author-stats} - messages per author, keyed by {@code channel:author}</li>
+ * </ul>
+ * Messages are also counted in the time buckets of {@link RollupStore}.
+ * <p>
+ * A flush that fails after some of its transactions committed retries only the rest, and a rebuild counts
+ * a message either in the recount or in the live counters, never in both.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class ChannelStatsStore {
+
+    static final String CHANNEL_KIND = "channel-stats";
+    static final String DAY_KIND = "channel-day-stats";
+    static final String AUTHOR_KIND = "channel-author-stats";
+    private static final int MAX_BATCH_SIZE = 500;
+
+    private final Datastore datastore;
+    private final MessageStore messageStore;
+    private final RollupStore rollupStore;
+    private final ChannelStatsCache channelStatsCache;
+    private final MeterRegistry meterRegistry;
+    private final PendingCounters<String, PendingChannel> pending =
+            new PendingCounters<>("channel stats", 1, PendingChannel::merge, channel -> channel);
+    private final Map<String, Rebuild> rebuilds = new ConcurrentHashMap<>();
+
+    public void record(Message msg) {
+        long epochSecond = msg.timestamp().toEpochSecond();
+        pending.compute(msg.channelId(), (channel, pendingChannel) -> {
+            Rebuild rebuild = rebuilds.get(channel);
+            if (rebuild != null && Long.parseLong(msg.id()) <= rebuild.boundary) {
+                // Stored late, the recount skips it since it's counted here.
+                rebuild.late.add(msg.id());
+            }
+            if (pendingChannel == null) {
+                pendingChannel = new PendingChannel(msg.guildId());
+            }
+            pendingChannel.aggregate.add(msg.author().id(), epochSecond);
+            rollupStore.record(channel, msg.author().id(), epochSecond);
+            return pendingChannel;
+        });
+    }
+
+    @Nullable
+    public Entity getTotals(String channel) {
+        return datastore.get(datastore.newKeyFactory().setKind(CHANNEL_KIND).newKey(channel));
+    }
+
+    public List<Entity> getTopAuthors(String channel, int limit) {
+        Query<Entity> query = Query.newGqlQueryBuilder(
+                Query.ResultType.ENTITY,
+                "SELECT * FROM `" + AUTHOR_KIND + "` WHERE channel=@channel ORDER BY messagesCount DESC LIMIT @limit")
+                .setBinding("channel", channel)
+                .setBinding("limit", limit)
+                .build();
+        List<Entity> entities = new ArrayList<>();
+        datastore.run(query).forEachRemaining(entities::add);
+        return entities;
+    }
+
+    /**
+     * @return ids of the channels of the guild with stats
+     */
+    public List<String> getGuildChannels(String guild) {
+        Query<Key> query = Query.newGqlQueryBuilder(
+                Query.ResultType.KEY,
+                "SELECT __key__ FROM `" + CHANNEL_KIND + "` WHERE guild=@guild")
+                .setBinding("guild", guild)
+                .build();
+        List<String> channels = new ArrayList<>();
+        datastore.run(query).forEachRemaining(channel -> channels.add(channel.getName()));
+        return channels;
+    }
+
+    /**
+     * Recounts the stored messages of the channel up to the moment the rebuild started and replaces its
+     * counters. Newer messages stay in the live counters, which are flushed once the recount is stored.
+     * The rebuild waits for a running flush of the channel and its counters are written in transactions,
+     * so no flush commits counts taken before the rebuild over the recount.
+     */
+    public void rebuild(String channel) throws InterruptedException {
+        Rebuild rebuild = new Rebuild(Snowflakes.last(System.currentTimeMillis()));
+        // Discarded counts are of messages saved before, which the store flush below saves for the recount.
+        pending.exclusive(channel, () -> pending.compute(channel, (key, pendingChannel) -> {
+            rollupStore.hold(channel);
+            rebuilds.put(channel, rebuild);
+            return null;
+        }));
+        String guild = null;
+        try {
+            messageStore.flush();
+            guild = messageStore.getChannelGuild(channel);
+            Map<RollupStore.Bucket, Long> buckets = new HashMap<>();
+            ChannelAggregate aggregate = messageStore.streamChannelMessages(channel)
+                    .filter(message -> Long.parseLong(message.getId()) <= rebuild.boundary
+                            && !rebuild.late.contains(message.getId()))
+                    .reduce(new ChannelAggregate(), (result, message) -> {
+                        result.add(message.getAuthor(), message.getEpochSecond());
+                        RollupStore.add(buckets, channel, message.getAuthor(), message.getEpochSecond(), 1);
+                        return result;
+                    })
+                    .block();
+
+            Set<Key> dayKeys = aggregate.getDays().keySet().stream().map(day -> dayKey(channel, day)).collect(toSet());
+            Set<Key> authorKeys = aggregate.getAuthors().keySet().stream().map(author -> authorKey(channel, author)).collect(toSet());
+            deleteStale(DAY_KIND, channel, dayKeys);
+            deleteStale(AUTHOR_KIND, channel, authorKeys);
+
+            List<FullEntity<?>> days = new ArrayList<>();
+            aggregate.getDays().forEach((day, count) -> days.add(dayEntity(channel, day, null, count)));
+            days.add(channelEntity(channel, guild, null, aggregate.getMessagesCount(), aggregate.getDays().size()));
+            put(CHANNEL_KIND, days);
+            List<FullEntity<?>> authors = new ArrayList<>();
+            aggregate.getAuthors().forEach((author, count) -> authors.add(authorEntity(channel, author, null, count)));
+            put(AUTHOR_KIND, authors);
+            rollupStore.replace(channel, buckets);
+            log.info("Rebuilt stats for channel [{}] - {} messages, {} days, {} authors, {} messages stored late",
+                    channel, aggregate.getMessagesCount(), dayKeys.size(), authorKeys.size(), rebuild.late.size());
+        } finally {
+            rebuilds.remove(channel);
+            rollupStore.release(channel);
+            channelStatsCache.invalidate(channel);
+            if (guild != null) {
+                channelStatsCache.invalidate(guild);
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${datastore.stats-flush-delay:5000}")
+    public void flush() {
+        pending.flush(rebuilds::containsKey, batch -> batch.forEach(this::flush));
+    }
+
+    /**
+     * The channel totals and day buckets are written in one transaction, the authors in transactions of up to
+     * 500 entities each, so a failure may leave some of them written. Authors that weren't written are left
+     * pending to be retried, a failure of the totals leaves all counters pending.
+     */
+    private void flush(String channel, PendingChannel pendingChannel) {
+        ChannelAggregate aggregate = pendingChannel.aggregate;
+        if (!pendingChannel.authorsOnly) {
+            flushTotals(channel, pendingChannel);
+        }
+        List<String> authors = new ArrayList<>(aggregate.getAuthors().keySet());
+        int written = 0;
+        try {
+            for (List<String> batch : Lists.partition(authors, MAX_BATCH_SIZE)) {
+                flushAuthors(channel, batch, aggregate.getAuthors());
+                written += batch.size();
+            }
+        } catch (DatastoreException e) {
+            log.warn("Unable to update {} authors of channel [{}], will retry. Reason: {}",
+                    authors.size() - written, channel, e.getMessage());
+            PendingChannel unflushed = new PendingChannel(pendingChannel.guild, true);
+            authors.subList(written, authors.size())
+                    .forEach(author -> unflushed.aggregate.addAuthor(author, aggregate.getAuthors().get(author)));
+            pending.merge(channel, unflushed);
+            return;
+        } finally {
+            channelStatsCache.invalidate(channel);
+            if (pendingChannel.guild != null) {
+                // Guild stats rank the channels by their totals.
+                channelStatsCache.invalidate(pendingChannel.guild);
+            }
+        }
+        log.debug("Updated stats for channel [{}] with {} messages", channel, aggregate.getMessagesCount());
+    }
+
+    private void flushTotals(String channel, PendingChannel pendingChannel) {
+        ChannelAggregate aggregate = pendingChannel.aggregate;
+        // Day buckets are updated together with the channel totals to keep the number of active days consistent.
+        transactionTimer(CHANNEL_KIND).record(() -> datastore.runInTransaction(transaction -> {
+            List<Long> days = new ArrayList<>(aggregate.getDays().keySet());
+            List<Entity> dayEntities = transaction.fetch(days.stream().map(day -> dayKey(channel, day)).toArray(Key[]::new));
+            Entity channelEntity = transaction.get(datastore.newKeyFactory().setKind(CHANNEL_KIND).newKey(channel));
+            List<FullEntity<?>> updates = new ArrayList<>();
+            long newDays = 0;
+            for (int i = 0; i < days.size(); i++) {
+                Entity dayEntity = dayEntities.get(i);
+                if (dayEntity == null) {
+                    newDays++;
+                }
+                updates.add(dayEntity(channel, days.get(i), dayEntity, aggregate.getDays().get(days.get(i))));
+            }
+            updates.add(channelEntity(channel, pendingChannel.guild, channelEntity, aggregate.getMessagesCount(), newDays));
+            transaction.put(updates.toArray(new FullEntity<?>[0]));
+            return null;
+        }));
+    }
+
+    private void flushAuthors(String channel, List<String> authors, Map<String, Long> counts) {
+        transactionTimer(AUTHOR_KIND).record(() -> datastore.runInTransaction(transaction -> {
+            List<Entity> authorEntities = transaction.fetch(authors.stream().map(author -> authorKey(channel, author)).toArray(Key[]::new));
+            List<FullEntity<?>> updates = new ArrayList<>();
+            for (int i = 0; i < authors.size(); i++) {
+                updates.add(authorEntity(channel, authors.get(i), authorEntities.get(i), counts.get(authors.get(i))));
+            }
+            transaction.put(updates.toArray(new FullEntity<?>[0]));
+            return null;
+        }));
+    }
+
+    private void put(String kind, List<FullEntity<?>> entities) {
+        for (List<FullEntity<?>> batch : Lists.partition(entities, MAX_BATCH_SIZE)) {
+            transactionTimer(kind).record(() -> datastore.runInTransaction(transaction -> {
+                transaction.put(batch.toArray(new FullEntity<?>[0]));
+                return null;
+            }));
+        }
+    }
+
+    private void deleteStale(String kind, String channel, Set<Key> actual) {
+        Query<Key> query = Query.newGqlQueryBuilder(
+                Query.ResultType.KEY,
+                "SELECT __key__ FROM `" + kind + "` WHERE channel=@channel")
+                .setBinding("channel", channel)
+                .build();
+        List<Key> stale = new ArrayList<>();
+        datastore.run(query).forEachRemaining(key -> {
+            if (!actual.contains(key)) {
+                stale.add(key);
+            }
+        });
+        Lists.partition(stale, MAX_BATCH_SIZE).forEach(keys -> datastore.delete(keys.toArray(new Key[0])));
+    }
+
+    private Timer transactionTimer(String kind) {
+        return Timer.builder("datastore.transaction").tag("kind", kind).register(meterRegistry);
+    }
+
+    private Key dayKey(String channel, long day) {
+        return datastore.newKeyFactory().setKind(DAY_KIND).newKey(channel + ":" + day);
+    }
+
+    private Key authorKey(String channel, String author) {
+        return datastore.newKeyFactory().setKind(AUTHOR_KIND).newKey(channel + ":" + author);
+    }
+
+    private FullEntity<Key> channelEntity(String channel, @Nullable String guild, @Nullable Entity existing, long messages, long days) {
+        Entity.Builder builder = Entity.newBuilder(datastore.newKeyFactory().setKind(CHANNEL_KIND).newKey(channel))
+                .set("channel", channel)
+                .set("messagesCount", messages + count(existing, "messagesCount"))
+                .set("days", days + count(existing, "days"));
+        if (guild != null) {
+            builder.set("guild", guild);
+        } else if (existing != null && existing.contains("guild")) {
+            builder.set("guild", existing.getString("guild"));
+        }
+        return builder.build();
+    }
+
+    private FullEntity<Key> dayEntity(String channel, long day, @Nullable Entity existing, long messages) {
+        return Entity.newBuilder(dayKey(channel, day))
+                .set("channel", channel)
+                .set("day", day)
+                .set("messagesCount", messages + count(existing, "messagesCount"))
+                .build();
+    }
+
+    private FullEntity<Key> authorEntity(String channel, String author, @Nullable Entity existing, long messages) {
+        return Entity.newBuilder(authorKey(channel, author))
+                .set("channel", channel)
+                .set("author", author)
+                .set("messagesCount", messages + count(existing, "messagesCount"))
+                .build();
+    }
+
+    private static long count(@Nullable Entity entity, String property) {
+        return entity != null && entity.contains(property) ? entity.getLong(property) : 0;
+    }
+
+    private static class PendingChannel {
+        private final String guild;
+        /**
+         * Set when the totals and days of these counters are already written.
+         */
+        private final boolean authorsOnly;
+        private final ChannelAggregate aggregate = new ChannelAggregate();
+
+        private PendingChannel(@Nullable String guild) {
+            this(guild, false);
+        }
+
+        private PendingChannel(@Nullable String guild, boolean authorsOnly) {
+            this.guild = guild;
+            this.authorsOnly = authorsOnly;
+        }
+
+        private PendingChannel merge(PendingChannel other) {
+            if (authorsOnly && !other.authorsOnly) {
+                return other.merge(this);
+            }
+            aggregate.merge(other.aggregate);
+            return this;
+        }
+    }
+
+    private static class Rebuild {
+        /**
+         * Snowflake of the start of the rebuild, newer messages are left to the live counters.
+         */
+        private final long boundary;
+        private final Set<String> late = ConcurrentHashMap.newKeySet();
+
+        private Rebuild(long boundary) {
+            this.boundary = boundary;
+        }
+    }
+}
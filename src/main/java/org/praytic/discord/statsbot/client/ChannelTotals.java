@@ -0,0 +1,63 @@
+package org.praytic.discord.statsbot.client;
+
+import lombok.Value;
+
+import javax.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * All time stats of a channel as cached by {@link ChannelStatsCache}, with authors by id so a new message
+ * can be applied to the cached stats instead of computing them again.
+ */
+@Value
+class ChannelTotals {
+    long messagesCount;
+    long activeDays;
+    /**
+     * Messages per author id, ordered by the number of messages descending.
+     */
+    Map<String, Long> topAuthors;
+    int topAuthorsLimit;
+    /**
+     * Newest day (UTC epoch day) known to the totals, later days have no messages yet.
+     */
+    long newestDay;
+    boolean newestDayActive;
+    /**
+     * Whether the totals come from the live analytics. Totals of the stored counters change only when
+     * the counters are flushed.
+     */
+    boolean live;
+
+    /**
+     * @return the totals including the message, or {@code null} when they can't be updated exactly and
+     * have to be computed again
+     */
+    @Nullable
+    ChannelTotals withMessage(String author, long day) {
+        if (!live || day < newestDay) {
+            return null;
+        }
+        Long count = topAuthors.get(author);
+        if (count == null && topAuthors.size() >= topAuthorsLimit) {
+            // An author outside the top may overtake the last one.
+            return null;
+        }
+        long updated = count == null ? 1 : count + 1;
+        Map<String, Long> authors = new LinkedHashMap<>();
+        topAuthors.forEach((topAuthor, messages) -> {
+            if (topAuthor.equals(author)) {
+                return;
+            }
+            if (!authors.containsKey(author) && messages < updated) {
+                authors.put(author, updated);
+            }
+            authors.put(topAuthor, messages);
+        });
+        authors.putIfAbsent(author, updated);
+        boolean newDay = day > newestDay || !newestDayActive;
+        return new ChannelTotals(messagesCount + 1, activeDays + (newDay ? 1 : 0), authors, topAuthorsLimit,
+                day, true, true);
+    }
+}
@@ -2,52 +2,41 @@ package org.praytic.discord.statsbot.client;
 
 import com.google.cloud.Timestamp;
 import com.google.cloud.datastore.*;
+import com.google.common.collect.Lists;
 import com.mewna.catnip.entity.message.Message;
-import com.mewna.catnip.entity.message.ReactionUpdate;
 import com.mewna.catnip.entity.user.User;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.model.StoredMessage;
+import org.praytic.discord.statsbot.storage.MessageCodec;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import javax.annotation.Nullable;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Objects;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
 
 @Slf4j
 @RequiredArgsConstructor
 @Component
 public class DatastoreClient {
 
-    private final Datastore datastore;
+    private static final int MESSAGE_PAGE_SIZE = 1000;
+    private static final int MAX_DELETE_SIZE = 500;
+    /**
+     * Queries of the entities of single messages run at once.
+     */
+    private static final int MESSAGE_QUERY_CONCURRENCY = 16;
 
-    public void clearEntity(String kind, String guild, String channel) {
-        String gql = String.format("SELECT * FROM `%s`", kind);
-        if (guild != null || channel != null) {
-            gql += " WHERE";
-        }
-        if (guild != null) {
-            gql += String.format(" guild=\"%s\"", guild);
-        }
-        if (guild != null && channel != null) {
-            gql += " AND";
-        }
-        if (channel != null) {
-            gql += String.format(" channel=\"%s\"", channel);
-        }
-        Query<Entity> query = Query.newGqlQueryBuilder(Query.ResultType.ENTITY, gql)
-                .setAllowLiteral(true).build();
-        log.info("Running deletion query for entities: {}", gql);
-        QueryResults<Entity> results = datastore.run(query);
-        int count = 0;
-        while (results.hasNext()) {
-            Entity entity = results.next();
-            datastore.delete(entity.getKey());
-            count++;
-            log.debug("Deleted entity with key [{}]", entity.getKey());
-        }
-        log.info("Done deleting entities for guild [{}] and channel [{}] - {} {}s deleted", guild, channel, count, kind);
-    }
+    private final Datastore datastore;
+    private final DatastoreWriteBuffer datastoreWriteBuffer;
+    private final MeterRegistry meterRegistry;
 
     public Entity getEntity(String kind, String key) {
         return datastore.get(datastore.newKeyFactory().setKind(kind).newKey(key));
@@ -65,37 +54,23 @@ public class DatastoreClient {
         }
     }
 
-    public void uploadEntity(Message.Reaction reaction, Message msg) {
-        int rawKey = Objects.hash(reaction.emoji().name(), msg.id());
-        Key reactionKey = datastore.newKeyFactory().setKind("reaction").newKey(rawKey);
-        FullEntity reactionEntity = Entity.newBuilder(reactionKey)
-                .set("emoji", reaction.emoji().name())
-                .set("count", reaction.count())
-                .set("message", msg.id())
-                .build();
-        datastore.put(reactionEntity);
-    }
-
-    public void uploadEntity(ReactionUpdate reaction, String msgId) {
-        int rawKey = Objects.hash(reaction.emoji().name(), msgId);
-        Key reactionKey = datastore.newKeyFactory().setKind("reaction").newKey(rawKey);
-        FullEntity reactionEntity = Entity.newBuilder(reactionKey)
-                .set("emoji", reaction.emoji().name())
-                .set("count", 1)
-                .set("message", msgId)
-                .build();
-        datastore.put(reactionEntity);
+    /**
+     * Keyed by {@code message:emoji}, see {@link MessageCodec#emojiKey}, and counted by {@link ReactionCounter}.
+     * Entities stored before were keyed by a 32-bit hash, which collides, until rewritten by
+     * {@link #migrateKeys(String, Map)}.
+     */
+    public Key reactionKey(String emoji, String msgId) {
+        return datastore.newKeyFactory().setKind("reaction").newKey(msgId + ":" + emoji);
     }
 
     public void uploadEntity(User mentionedUser, Message msg) {
-        int rawKey = Objects.hash(mentionedUser.id(), msg.id());
-        Key mentionKey = datastore.newKeyFactory().setKind("mention").newKey(rawKey);
+        Key mentionKey = datastore.newKeyFactory().setKind("mention").newKey(msg.id() + ":" + mentionedUser.id());
         FullEntity reactionEntity = Entity.newBuilder(mentionKey)
                 .set("author", msg.author().id())
                 .set("mentionedUser", mentionedUser.id())
                 .set("message", msg.id())
                 .build();
-        datastore.put(reactionEntity);
+        datastoreWriteBuffer.write(reactionEntity);
     }
 
     public void uploadEntity(Message.Attachment attachment, Message msg) {
@@ -104,11 +79,20 @@ public class DatastoreClient {
                 .set("author", msg.author().id())
                 .set("fileName", attachment.fileName())
                 .set("url", attachment.proxyUrl())
+                .set("message", msg.id())
                 .build();
-        datastore.put(attachmentEntity);
+        datastoreWriteBuffer.write(attachmentEntity);
     }
 
     public void uploadEntity(Message msg, @Nullable String guildId) {
+        uploadEntity(msg, guildId, null);
+    }
+
+    public void uploadEntity(Message msg, @Nullable String guildId, @Nullable Runnable onPersisted) {
+        datastoreWriteBuffer.write(messageEntity(msg, guildId), onPersisted);
+    }
+
+    Entity messageEntity(Message msg, @Nullable String guildId) {
         Key messageKey = datastore.newKeyFactory().setKind("message").newKey(msg.id());
         Entity.Builder msgEntityBuilder = Entity.newBuilder(messageKey)
                 .set("content", com.google.cloud.datastore.Value.fromPb(com.google.datastore.v1.Value.newBuilder().setExcludeFromIndexes(true).setStringValue(msg.content()).build()))
@@ -120,21 +104,404 @@ public class DatastoreClient {
         } else if (guildId != null) {
             msgEntityBuilder.set("guild", guildId);
         }
-        datastore.put(msgEntityBuilder.build());
+        return msgEntityBuilder.build();
+    }
+
+    public void uploadCompactEntity(Message msg, @Nullable String guildId, @Nullable Runnable onPersisted) {
+        datastoreWriteBuffer.write(compactMessageEntity(MessageCodec.fromMessage(msg, guildId)), onPersisted);
+    }
+
+    /**
+     * Only the queried fields are properties, the rest of the message is in the {@code payload} blob.
+     */
+    Entity compactMessageEntity(StoredMessage msg) {
+        Entity.Builder builder = Entity.newBuilder(datastore.newKeyFactory().setKind("message").newKey(msg.getId()))
+                .set("channel", msg.getChannel())
+                .set("author", msg.getAuthor())
+                .set("timestamp", Timestamp.ofTimeSecondsAndNanos(msg.getTimestamp().getEpochSecond(), msg.getTimestamp().getNano()))
+                .set("payload", BlobValue.newBuilder(Blob.copyFrom(MessageCodec.encode(msg))).setExcludeFromIndexes(true).build());
+        if (msg.getGuild() != null) {
+            builder.set("guild", msg.getGuild());
+        }
+        return builder.build();
     }
 
-    public List<Entity> getChannelMessages(String channel) {
+    /**
+     * Reads a message in either format. In the compact format the {@code reaction} entities kept by
+     * {@link ReactionCounter} hold only the changes since the message was stored and are added to the
+     * embedded counts, emojis with no reactions left are dropped. Attachments of messages in the entities
+     * format aren't read and are not returned.
+     */
+    @Nullable
+    public StoredMessage readMessage(String id) {
+        Entity entity = datastore.get(datastore.newKeyFactory().setKind("message").newKey(id));
+        if (entity == null) {
+            return null;
+        }
+        StoredMessage msg = toStoredMessage(entity);
+        if (!entity.contains("payload")) {
+            runByMessage("mention", id).forEachRemaining(mention -> msg.getMentionedUsers().add(mention.getString("mentionedUser")));
+        }
+        List<Entity> reactions = new ArrayList<>();
+        runByMessage("reaction", id).forEachRemaining(reactions::add);
+        addReactions(msg, reactions);
+        return msg;
+    }
+
+    /**
+     * Streams the messages of the channel in either format, read like {@link #readMessage(String)}. Messages
+     * are fetched lazily in pages, then the reactions and mentions of the messages of a page.
+     */
+    public Flux<StoredMessage> streamStoredMessages(String channel) {
+        EntityQuery.Builder query = channelMessagesQuery(channel);
+        return Mono.fromCallable(() -> fetchPage("message", query, null))
+                .expand(page -> page.next == null
+                        ? Mono.empty()
+                        : Mono.fromCallable(() -> fetchPage("message", query, page.next)))
+                .concatMapIterable(page -> readPage(page.entities));
+    }
+
+    /**
+     * Rewrites the messages of the channel stored as separate entities in the compact format and deletes
+     * their {@code mention} entities. {@code reaction} entities are kept as they hold the reaction counts,
+     * so reactions are not embedded into the migrated messages. Messages are read a page at a time, then
+     * the mentions of the messages of the page, and the mentions of a message are deleted only once its
+     * compact entity is persisted.
+     *
+     * @return number of migrated messages
+     */
+    public long migrateChannel(String channel) throws InterruptedException {
+        EntityQuery.Builder query = channelMessagesQuery(channel);
+        long migrated = 0;
+        Page<Entity> page = null;
+        do {
+            page = fetchPage("message", query, page == null ? null : page.next);
+            migrated += migratePage(page.entities);
+        } while (page.next != null);
+        log.info("Migrated {} messages of channel [{}] to the compact format", migrated, channel);
+        return migrated;
+    }
+
+    private int migratePage(List<Entity> entities) throws InterruptedException {
+        List<Entity> legacy = legacyMessages(entities);
+        if (legacy.isEmpty()) {
+            return 0;
+        }
+        Map<String, List<Entity>> mentions = fetchByMessage("mention", legacy);
+        Queue<Key> persisted = new ConcurrentLinkedQueue<>();
+        for (Entity entity : legacy) {
+            StoredMessage msg = toStoredMessage(entity);
+            List<Key> mentionKeys = new ArrayList<>();
+            mentions.getOrDefault(msg.getId(), Collections.emptyList()).forEach(mention -> {
+                msg.getMentionedUsers().add(mention.getString("mentionedUser"));
+                mentionKeys.add(mention.getKey());
+            });
+            datastoreWriteBuffer.write(compactMessageEntity(msg), () -> persisted.addAll(mentionKeys));
+        }
+        datastoreWriteBuffer.flush();
+        for (List<Key> keys : Lists.partition(new ArrayList<>(persisted), MAX_DELETE_SIZE)) {
+            datastore.delete(keys.toArray(new Key[0]));
+        }
+        return legacy.size();
+    }
+
+    /**
+     * Rewrites the reactions and mentions of the channel's messages still keyed by the old 32-bit hash to
+     * {@code message:emoji} and {@code message:user} keys, and reactions of custom emojis stored under the
+     * emoji name to the key of its id, see {@link MessageCodec#emojiKey}. Reactions embedded in compact
+     * messages are renamed as well. An entity and the ones it replaces are written in one transaction, and
+     * counts of reactions that end up under the same key are added, as they are when a message is read.
+     *
+     * @param emojiIds ids of custom emojis by name, names not in it are kept
+     * @return number of rewritten entities
+     */
+    public long migrateKeys(String channel, Map<String, String> emojiIds) throws InterruptedException {
+        EntityQuery.Builder query = channelMessagesQuery(channel);
+        long migrated = 0;
+        Page<Entity> page = null;
+        do {
+            page = fetchPage("message", query, page == null ? null : page.next);
+            List<String> ids = new ArrayList<>(page.entities.size());
+            for (Entity entity : page.entities) {
+                ids.add(entity.getKey().getName());
+                if (entity.contains("payload")) {
+                    renameEmbeddedReactions(entity, emojiIds);
+                }
+            }
+            migrated += rewriteKeys("reaction", ids, reaction -> reaction.getString("message") + ":"
+                    + emojiIds.getOrDefault(reaction.getString("emoji"), reaction.getString("emoji")));
+            migrated += rewriteKeys("mention", ids, mention -> mention.getString("message") + ":" + mention.getString("mentionedUser"));
+        } while (page.next != null);
+        datastoreWriteBuffer.flush();
+        log.info("Migrated keys of {} reactions and mentions of channel [{}]", migrated, channel);
+        return migrated;
+    }
+
+    private void renameEmbeddedReactions(Entity entity, Map<String, String> emojiIds) {
+        StoredMessage msg = toStoredMessage(entity);
+        if (msg.getReactions().keySet().stream().noneMatch(emojiIds::containsKey)) {
+            return;
+        }
+        Map<String, Integer> reactions = new LinkedHashMap<>();
+        msg.getReactions().forEach((emoji, count) -> reactions.merge(emojiIds.getOrDefault(emoji, emoji), count, Integer::sum));
+        msg.getReactions().clear();
+        msg.getReactions().putAll(reactions);
+        datastoreWriteBuffer.write(compactMessageEntity(msg));
+    }
+
+    /**
+     * @param name key the entity should have
+     */
+    private int rewriteKeys(String kind, List<String> messages, Function<Entity, String> name) {
+        Map<String, List<Entity>> moves = new LinkedHashMap<>();
+        streamByMessage(kind, Flux.fromIterable(messages)).toIterable().forEach(entity -> {
+            String target = name.apply(entity);
+            if (!target.equals(entity.getKey().getName())) {
+                moves.computeIfAbsent(target, key -> new ArrayList<>()).add(entity);
+            }
+        });
+        int rewritten = 0;
+        Map<String, List<Entity>> batch = new LinkedHashMap<>();
+        int mutations = 0;
+        for (Map.Entry<String, List<Entity>> move : moves.entrySet()) {
+            if (mutations + move.getValue().size() + 1 > MAX_DELETE_SIZE && !batch.isEmpty()) {
+                rewritten += rewriteBatch(kind, batch);
+                batch.clear();
+                mutations = 0;
+            }
+            batch.put(move.getKey(), move.getValue());
+            mutations += move.getValue().size() + 1;
+        }
+        if (!batch.isEmpty()) {
+            rewritten += rewriteBatch(kind, batch);
+        }
+        return rewritten;
+    }
+
+    private int rewriteBatch(String kind, Map<String, List<Entity>> moves) {
+        KeyFactory keyFactory = datastore.newKeyFactory().setKind(kind);
+        Timer.builder("datastore.transaction").tag("kind", kind).register(meterRegistry).record(() -> datastore.runInTransaction(transaction -> {
+            moves.forEach((target, sources) -> {
+                Key key = keyFactory.newKey(target);
+                Entity existing = transaction.get(key);
+                Entity.Builder builder = Entity.newBuilder(key, existing != null ? existing : sources.get(0));
+                if ("reaction".equals(kind)) {
+                    long count = existing != null ? existing.getLong("count") : 0;
+                    for (Entity source : sources) {
+                        count += source.getLong("count");
+                    }
+                    builder.set("emoji", target.substring(target.indexOf(':') + 1)).set("count", count);
+                }
+                transaction.put(builder.build());
+                transaction.delete(sources.stream().map(Entity::getKey).toArray(Key[]::new));
+            });
+            return null;
+        }));
+        return moves.values().stream().mapToInt(List::size).sum();
+    }
+
+    private List<StoredMessage> readPage(List<Entity> entities) {
+        if (entities.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<String, List<Entity>> reactions = fetchByMessage("reaction", entities);
+        List<Entity> legacy = legacyMessages(entities);
+        Map<String, List<Entity>> mentions = legacy.isEmpty()
+                ? Collections.emptyMap()
+                : fetchByMessage("mention", legacy);
+        List<StoredMessage> messages = new ArrayList<>(entities.size());
+        for (Entity entity : entities) {
+            StoredMessage msg = toStoredMessage(entity);
+            mentions.getOrDefault(msg.getId(), Collections.emptyList())
+                    .forEach(mention -> msg.getMentionedUsers().add(mention.getString("mentionedUser")));
+            addReactions(msg, reactions.getOrDefault(msg.getId(), Collections.emptyList()));
+            messages.add(msg);
+        }
+        return messages;
+    }
+
+    /**
+     * Fills everything but the mentions and reaction changes kept as separate entities.
+     */
+    private static StoredMessage toStoredMessage(Entity entity) {
+        StoredMessage msg = new StoredMessage();
+        msg.setId(entity.getKey().getName());
+        msg.setChannel(entity.getString("channel"));
+        msg.setGuild(entity.contains("guild") ? entity.getString("guild") : null);
+        msg.setAuthor(entity.getString("author"));
+        msg.setTimestamp(entity.getTimestamp("timestamp").toDate().toInstant());
+        if (entity.contains("payload")) {
+            MessageCodec.decode(entity.getBlob("payload").toByteArray(), msg);
+        } else {
+            msg.setContent(entity.getString("content"));
+        }
+        return msg;
+    }
+
+    private static void addReactions(StoredMessage msg, List<Entity> reactions) {
+        reactions.forEach(reaction ->
+                msg.getReactions().merge(reaction.getString("emoji"), (int) reaction.getLong("count"), Integer::sum));
+        msg.getReactions().values().removeIf(count -> count <= 0);
+    }
+
+    private static List<Entity> legacyMessages(List<Entity> entities) {
+        List<Entity> legacy = new ArrayList<>();
+        for (Entity entity : entities) {
+            if (!entity.contains("payload")) {
+                legacy.add(entity);
+            }
+        }
+        return legacy;
+    }
+
+    /**
+     * Queries the entities of every message by its {@code message} property, a few messages at a time, so
+     * the cost depends only on the messages and not on the entities of other channels stored meanwhile.
+     */
+    private Map<String, List<Entity>> fetchByMessage(String kind, List<Entity> messages) {
+        Map<String, List<Entity>> entities = new ConcurrentHashMap<>();
+        streamByMessage(kind, Flux.fromIterable(messages).map(message -> message.getKey().getName()))
+                .doOnNext(entity -> entities.computeIfAbsent(entity.getString("message"), id -> new ArrayList<>()).add(entity))
+                .blockLast();
+        return entities;
+    }
+
+    /**
+     * Streams the {@code reaction}, {@code mention} or {@code attachment} entities of the messages, with
+     * one query per message. Entities stored before they were linked to their message aren't found.
+     */
+    public Flux<Entity> streamByMessage(String kind, Flux<String> messages) {
+        return messages.flatMapSequential(message -> Mono.fromCallable(() -> {
+                    List<Entity> entities = new ArrayList<>();
+                    queryTimer(kind).record(() -> runByMessage(kind, message).forEachRemaining(entities::add));
+                    return entities;
+                }).subscribeOn(Schedulers.boundedElastic()), MESSAGE_QUERY_CONCURRENCY)
+                .concatMapIterable(entities -> entities);
+    }
+
+    /**
+     * Streams the author and timestamp of every message in the channel. Messages are fetched lazily
+     * in pages with a projection query, so only the pages being consumed are held in memory.
+     */
+    public Flux<ProjectionEntity> streamChannelMessages(String channel) {
+        return Mono.fromCallable(() -> fetchChannelMessages(channel, null))
+                .expand(page -> page.next == null
+                        ? Mono.empty()
+                        : Mono.fromCallable(() -> fetchChannelMessages(channel, page.next)))
+                .concatMapIterable(page -> page.entities);
+    }
+
+    /**
+     * Streams all entities of the kind, optionally only of a guild and channel. Entities are fetched
+     * lazily in pages, so a dump of a large kind is never held in memory as a whole.
+     */
+    public Flux<Entity> streamEntities(String kind, @Nullable String guild, @Nullable String channel) {
+        List<StructuredQuery.Filter> filters = new ArrayList<>();
+        if (guild != null) {
+            filters.add(StructuredQuery.PropertyFilter.eq("guild", guild));
+        }
+        if (channel != null) {
+            filters.add(StructuredQuery.PropertyFilter.eq("channel", channel));
+        }
+        EntityQuery.Builder query = Query.newEntityQueryBuilder()
+                .setKind(kind)
+                .setLimit(MESSAGE_PAGE_SIZE);
+        if (filters.size() == 1) {
+            query.setFilter(filters.get(0));
+        } else if (filters.size() == 2) {
+            query.setFilter(StructuredQuery.CompositeFilter.and(filters.get(0), filters.get(1)));
+        }
+        return Mono.fromCallable(() -> fetchPage(kind, query, null))
+                .expand(page -> page.next == null
+                        ? Mono.empty()
+                        : Mono.fromCallable(() -> fetchPage(kind, query, page.next)))
+                .concatMapIterable(page -> page.entities);
+    }
+
+    /**
+     * Looks the messages up by key, in either format.
+     *
+     * @return ids of the messages that are stored
+     */
+    public Set<String> getStoredMessageIds(Collection<String> ids) {
+        KeyFactory keyFactory = datastore.newKeyFactory().setKind("message");
+        Set<String> stored = new HashSet<>();
+        for (List<String> batch : Lists.partition(new ArrayList<>(ids), MESSAGE_PAGE_SIZE)) {
+            Key[] keys = batch.stream().map(keyFactory::newKey).toArray(Key[]::new);
+            queryTimer("message").record(() -> datastore.get(keys)
+                    .forEachRemaining(entity -> stored.add(entity.getKey().getName())));
+        }
+        return stored;
+    }
+
+    /**
+     * Returns the guild of the channel taken from any of its stored messages.
+     */
+    @Nullable
+    public String getChannelGuild(String channel) {
         Query<Entity> query = Query.newGqlQueryBuilder(
                 Query.ResultType.ENTITY,
-                "SELECT * FROM `message` WHERE channel=@channel")
+                "SELECT * FROM `message` WHERE channel=@channel LIMIT 1")
                 .setBinding("channel", channel)
                 .build();
         QueryResults<Entity> queryResults = datastore.run(query);
-        List<Entity> entities = new ArrayList<>();
-        while (queryResults.hasNext()) {
+        if (queryResults.hasNext()) {
             Entity entity = queryResults.next();
-            entities.add(entity);
+            return entity.contains("guild") ? entity.getString("guild") : null;
+        } else {
+            return null;
+        }
+    }
+
+    private EntityQuery.Builder channelMessagesQuery(String channel) {
+        return Query.newEntityQueryBuilder()
+                .setKind("message")
+                .setFilter(StructuredQuery.PropertyFilter.eq("channel", channel))
+                .setOrderBy(StructuredQuery.OrderBy.asc("__key__"))
+                .setLimit(MESSAGE_PAGE_SIZE);
+    }
+
+    private QueryResults<Entity> runByMessage(String kind, String message) {
+        return datastore.run(Query.newGqlQueryBuilder(
+                Query.ResultType.ENTITY,
+                "SELECT * FROM `" + kind + "` WHERE message=@message")
+                .setBinding("message", message)
+                .build());
+    }
+
+    private Page<ProjectionEntity> fetchChannelMessages(String channel, @Nullable Cursor cursor) {
+        ProjectionEntityQuery.Builder query = Query.newProjectionEntityQueryBuilder()
+                .setKind("message")
+                .setProjection("author", "timestamp")
+                .setFilter(StructuredQuery.PropertyFilter.eq("channel", channel))
+                .setLimit(MESSAGE_PAGE_SIZE);
+        return fetchPage("message", query, cursor);
+    }
+
+    private <T> Page<T> fetchPage(String kind, StructuredQuery.Builder<T> query, @Nullable Cursor cursor) {
+        // The builder is shared between pages, so the cursor of every page is set explicitly.
+        query.setStartCursor(cursor);
+        StructuredQuery<T> built = query.build();
+        List<T> entities = new ArrayList<>(MESSAGE_PAGE_SIZE);
+        QueryResults<T> queryResults = queryTimer(kind).record(() -> {
+            QueryResults<T> results = datastore.run(built);
+            results.forEachRemaining(entities::add);
+            return results;
+        });
+        return new Page<>(entities, entities.size() < MESSAGE_PAGE_SIZE ? null : queryResults.getCursorAfter());
+    }
+
+    private Timer queryTimer(String kind) {
+        return Timer.builder("datastore.query").tag("kind", kind).register(meterRegistry);
+    }
+
+    private static class Page<T> {
+        private final List<T> entities;
+        private final Cursor next;
+
+        private Page(List<T> entities, @Nullable Cursor next) {
+            this.entities = entities;
+            this.next = next;
         }
-        return entities;
     }
 }
@@ -0,0 +1,261 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.IncompleteKey;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.config.properties.DatastoreProperties;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind buffer for Datastore puts. Entities are collected into batches which are flushed
+ * when the batch is full or when the oldest buffered entity has waited for the flush interval.
+ * Writers block when the buffer is full, so producers are slowed down to the Datastore write rate.
+ * Once the buffer is closed or its writer has stopped, writes and flushes fail instead of waiting.
+ */
+@Slf4j
+@Component
+public class DatastoreWriteBuffer {
+
+    private final Datastore datastore;
+    private final DatastoreProperties properties;
+    private final BlockingQueue<PendingWrite> queue;
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final Timer flushTimer;
+    private final DistributionSummary batchSize;
+    private final Counter retries;
+    private final Counter dropped;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    public DatastoreWriteBuffer(Datastore datastore, DatastoreProperties properties, MeterRegistry meterRegistry) {
+        this.datastore = datastore;
+        this.properties = properties;
+        this.queue = new ArrayBlockingQueue<>(properties.getWriteQueueCapacity());
+        this.flushTimer = meterRegistry.timer("datastore.write.flush");
+        this.batchSize = meterRegistry.summary("datastore.write.batch.size");
+        this.retries = meterRegistry.counter("datastore.write.retries");
+        this.dropped = meterRegistry.counter("datastore.write.dropped");
+        meterRegistry.gauge("datastore.write.queue.size", queue, BlockingQueue::size);
+        this.flusher = new Thread(this::run, "datastore-writer");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Buffers the entity for the next batch. Blocks while the buffer is full.
+     *
+     * @throws IllegalStateException if the buffer is closed
+     */
+    public void write(FullEntity<?> entity) {
+        write(entity, null);
+    }
+
+    /**
+     * Buffers the entity for the next batch. Blocks while the buffer is full.
+     *
+     * @param onPersisted called on the writer thread once the entity is stored
+     * @throws IllegalStateException if the buffer is closed
+     */
+    public void write(FullEntity<?> entity, @Nullable Runnable onPersisted) {
+        PendingWrite write = new PendingWrite(entity, onPersisted);
+        try {
+            do {
+                checkOpen();
+            } while (!queue.offer(write, properties.getWriteFlushInterval().toMillis(), TimeUnit.MILLISECONDS));
+            enqueued.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for space in the write buffer", e);
+        }
+    }
+
+    /**
+     * Blocks until every entity written before this call has been flushed.
+     *
+     * @throws IllegalStateException if the writer has stopped, so the entities may never be flushed
+     */
+    public void flush() throws InterruptedException {
+        long target = enqueued.get();
+        synchronized (completed) {
+            while (completed.get() < target) {
+                if (!flusher.isAlive()) {
+                    throw new IllegalStateException("Datastore writer stopped with "
+                            + (target - completed.get()) + " entities unflushed");
+                }
+                completed.wait(properties.getWriteFlushInterval().toMillis());
+            }
+        }
+        if (!flusher.isAlive()) {
+            throw new IllegalStateException("Datastore writer stopped");
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        running = false;
+        flusher.join();
+    }
+
+    private void run() {
+        try {
+            writeBatches();
+        } finally {
+            abandon();
+        }
+    }
+
+    private void writeBatches() {
+        int maxBatchSize = properties.getWriteBatchSize();
+        long flushInterval = properties.getWriteFlushInterval().toNanos();
+        List<PendingWrite> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(flushInterval, TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + flushInterval;
+                while (batch.size() < maxBatchSize) {
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatchSize || remaining <= 0 || !running) {
+                        break;
+                    }
+                    PendingWrite next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                }
+                long start = System.nanoTime();
+                put(batch);
+                flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                batchSize.record(batch.size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Datastore writer interrupted, {} entities left unflushed", queue.size() + batch.size());
+                dropped.increment(batch.size());
+                return;
+            } catch (RuntimeException e) {
+                log.error("Unexpected error while flushing {} entities", batch.size(), e);
+                dropped.increment(batch.size());
+            } finally {
+                complete(batch.size());
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Counts the entities the stopped writer left in the queue as dropped, so no flush waits for them.
+     */
+    private void abandon() {
+        List<PendingWrite> left = new ArrayList<>();
+        queue.drainTo(left);
+        if (!left.isEmpty()) {
+            log.error("Datastore writer stopped, dropping {} buffered entities", left.size());
+            dropped.increment(left.size());
+        }
+        complete(left.size());
+    }
+
+    private void checkOpen() {
+        if (!running || !flusher.isAlive()) {
+            throw new IllegalStateException("Datastore write buffer is closed");
+        }
+    }
+
+    private void put(List<PendingWrite> batch) throws InterruptedException {
+        // A single commit may not contain several mutations of the same entity, the latest one wins.
+        Map<IncompleteKey, FullEntity<?>> entities = new LinkedHashMap<>();
+        batch.forEach(write -> entities.put(write.entity.getKey(), write.entity));
+        Set<IncompleteKey> failed = new HashSet<>();
+        put(new ArrayList<>(entities.values()), 0, failed);
+        for (PendingWrite write : batch) {
+            if (write.onPersisted != null && !failed.contains(write.entity.getKey())) {
+                try {
+                    write.onPersisted.run();
+                } catch (RuntimeException e) {
+                    log.error("Callback of persisted entity with key [{}] failed", write.entity.getKey(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Retries retryable errors with backoff and gives up on the whole batch once the retries are used up.
+     * Other errors are caused by the batch itself, e.g. its size or an invalid entity, so the batch is split
+     * to store every entity but the refused ones.
+     */
+    private void put(List<FullEntity<?>> entities, int attempt, Set<IncompleteKey> failed) throws InterruptedException {
+        try {
+            datastore.put(entities.toArray(new FullEntity<?>[0]));
+            log.debug("Flushed {} entities to datastore", entities.size());
+        } catch (DatastoreException e) {
+            if (e.isRetryable()) {
+                if (attempt < properties.getWriteMaxRetries()) {
+                    retries.increment();
+                    log.warn("Retrying put of {} entities, attempt {}. Reason: {}", entities.size(), attempt + 1, e.getMessage());
+                    Thread.sleep(100L << attempt);
+                    put(entities, attempt + 1, failed);
+                } else {
+                    drop(entities, failed);
+                    log.error("Unable to put {} entities after {} retries", entities.size(), attempt, e);
+                }
+            } else if (entities.size() > 1) {
+                int half = entities.size() / 2;
+                put(new ArrayList<>(entities.subList(0, half)), 0, failed);
+                put(new ArrayList<>(entities.subList(half, entities.size())), 0, failed);
+            } else {
+                drop(entities, failed);
+                log.error("Unable to put entity with key [{}]", entities.get(0).getKey(), e);
+            }
+        }
+    }
+
+    private void drop(List<FullEntity<?>> entities, Set<IncompleteKey> failed) {
+        dropped.increment(entities.size());
+        entities.forEach(entity -> failed.add(entity.getKey()));
+    }
+
+    private void complete(int count) {
+        synchronized (completed) {
+            completed.addAndGet(count);
+            completed.notifyAll();
+        }
+    }
+
+    private static final class PendingWrite {
+        private final FullEntity<?> entity;
+        private final Runnable onPersisted;
+
+        private PendingWrite(FullEntity<?> entity, @Nullable Runnable onPersisted) {
+            this.entity = entity;
+            this.onPersisted = onPersisted;
+        }
+    }
+}
@@ -1,24 +1,49 @@
 package org.praytic.discord.statsbot.client;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.cloud.datastore.Entity;
 import com.mewna.catnip.Catnip;
 import com.mewna.catnip.entity.builder.EmbedBuilder;
 import com.mewna.catnip.entity.channel.Channel;
 import com.mewna.catnip.entity.channel.ChannelMention;
-import com.mewna.catnip.entity.channel.TextChannel;
-import com.mewna.catnip.rest.ResponseException;
+import com.mewna.catnip.entity.channel.GuildChannel;
+import com.mewna.catnip.entity.guild.Guild;
+import com.mewna.catnip.entity.message.Message;
 import com.mewna.catnip.shard.DiscordEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.analytics.ChannelSummary;
+import org.praytic.discord.statsbot.analytics.InteractionGraph;
+import org.praytic.discord.statsbot.analytics.MessageAnalytics;
+import org.praytic.discord.statsbot.model.ApproximateStats;
+import org.praytic.discord.statsbot.model.ChannelRangeStats;
+import org.praytic.discord.statsbot.model.ChannelWindowStats;
+import org.praytic.discord.statsbot.model.EngagementStats;
+import org.praytic.discord.statsbot.model.GuildStats;
+import org.praytic.discord.statsbot.model.Interaction;
+import org.praytic.discord.statsbot.model.RankedItem;
 import org.praytic.discord.statsbot.model.ChannelStats;
 import org.praytic.discord.statsbot.model.UserStats;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutorService;
+import java.util.function.UnaryOperator;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.*;
 
@@ -26,94 +51,339 @@ import static java.util.stream.Collectors.*;
 @Component
 public class DiscordClient {
 
+    private static final Pattern WINDOW = Pattern.compile("(\\d+)([hdwm])");
+
     private final Catnip catnip;
-    private final DatastoreClient datastoreClient;
+    private final MessageIngest messageIngest;
+    private final ChannelStatsStore channelStatsStore;
+    private final RollupStore rollupStore;
+    private final GuildStatsStore guildStatsStore;
+    private final SketchStore sketchStore;
+    private final EngagementStore engagementStore;
+    private final UserNameResolver userNameResolver;
+    private final ReactionCounter reactionCounter;
+    private final MessageAnalytics messageAnalytics;
+    private final ChannelStatsCache channelStatsCache;
+    private final RestGateway restGateway;
     private final ObjectMapper objectMapper;
+    private final ShardIngest shardIngest;
+    private final ExecutorService commandExecutor;
+    private final MeterRegistry meterRegistry;
+    private final Counter rejectedCommands;
+    private final Timer messagePersistTimer;
 
-    public DiscordClient(Catnip catnip, DatastoreClient datastoreClient, ObjectMapper objectMapper) {
+    public DiscordClient(Catnip catnip, MessageIngest messageIngest, ChannelStatsStore channelStatsStore,
+                         RollupStore rollupStore, GuildStatsStore guildStatsStore, SketchStore sketchStore,
+                         EngagementStore engagementStore,
+                         UserNameResolver userNameResolver, ReactionCounter reactionCounter,
+                         MessageAnalytics messageAnalytics, ChannelStatsCache channelStatsCache,
+                         RestGateway restGateway, ObjectMapper objectMapper,
+                         ShardIngest shardIngest,
+                         @Qualifier("commandExecutor") ExecutorService commandExecutor,
+                         MeterRegistry meterRegistry) {
         this.catnip = catnip;
-        this.datastoreClient = datastoreClient;
+        this.messageIngest = messageIngest;
+        this.channelStatsStore = channelStatsStore;
+        this.rollupStore = rollupStore;
+        this.guildStatsStore = guildStatsStore;
+        this.sketchStore = sketchStore;
+        this.engagementStore = engagementStore;
+        this.userNameResolver = userNameResolver;
+        this.reactionCounter = reactionCounter;
+        this.messageAnalytics = messageAnalytics;
+        this.channelStatsCache = channelStatsCache;
+        this.restGateway = restGateway;
         this.objectMapper = objectMapper;
+        this.shardIngest = shardIngest;
+        this.commandExecutor = commandExecutor;
+        this.meterRegistry = meterRegistry;
+        this.rejectedCommands = meterRegistry.counter("bot.commands.rejected");
+        this.messagePersistTimer = meterRegistry.timer("bot.event.persist", "event", DiscordEvent.MESSAGE_CREATE.key());
         addCommandHandler(catnip);
         addPerMessageLoad(catnip);
         addPerReactionLoad(catnip);
+        addChannelUpdates(catnip);
     }
 
-    public void initialLoad(String guild) {
-        catnip.rest().guild().getGuildChannels(guild)
-                .filter(Channel::isText)
-                .doOnError(error -> log.error("Error occurred during initial load.", error))
-                .subscribe(channel -> {
-                    try {
-                        log.info("Updating channel {}:{} in guild {}:{}",
-                                channel.name(), channel.id(),
-                                channel.guild().name(), channel.guildId());
-                        TextChannel textChannel = channel.asTextChannel();
-                        final AtomicInteger counter = new AtomicInteger(0);
-
-                        textChannel.fetchMessages().limit(Integer.MAX_VALUE).fetchWhile(msg -> {
-                            msg.reactions().forEach(reaction -> datastoreClient.uploadEntity(reaction, msg));
-                            msg.mentionedUsers().forEach(mention -> datastoreClient.uploadEntity(mention, msg));
-                            msg.attachments().forEach(attachment -> datastoreClient.uploadEntity(attachment, msg));
-                            datastoreClient.uploadEntity(msg, channel.guildId());
-
-                            int cur = counter.incrementAndGet();
-                            if (cur % 1000 == 0) {
-                                log.info("Messages processed for guild {}:{} in channel {}:{} - {}",
-                                        channel.guild().name(), channel.guildId(), channel.name(), channel.id(), cur);
-                            }
-                            return true;
-                        }).subscribe();
-                        log.info("Total messages processed for guild {}:{} in channel {}:{} - {}",
-                                channel.guild().name(), channel.guildId(), channel.name(), channel.id(), counter.get());
-                    } catch (ResponseException e) {
-                        log.warn("Unable to fetch channel {}:{}. Error code {}. Reason: {}",
-                                channel.name(), channel.id(), e.statusCode(), e.statusMessage());
-                    }
-                });
+    public ChannelStats getChannelStats(String channel) {
+        ChannelTotals totals = channelStatsCache.get(channel, "all", () -> computeChannelTotals(channel));
+        return new ChannelStats(
+                getChannelName(channel),
+                (int) totals.getMessagesCount(),
+                totals.getActiveDays() == 0 ? 0.0 : (double) totals.getMessagesCount() / totals.getActiveDays(),
+                toUserStats(totals.getTopAuthors()));
     }
 
-    public ChannelStats getChannelStats(String channel) {
-        List<Entity> channelMessages = datastoreClient.getChannelMessages(channel);
-        String channelName = catnip.rest().channel().getChannelById(channel).blockingGet().asTextChannel().name();
-        double messagesPerDayStats = channelMessages
-                .stream()
-                .collect(groupingBy(
-                        entity -> entity.getTimestamp("timestamp").getSeconds() / 86400,
-                        summarizingInt(entity -> 1)))
-                .values()
+    /**
+     * Stats of the messages sent from the start of {@code from} to the end of {@code to} (UTC).
+     */
+    public ChannelRangeStats getChannelStats(String channel, LocalDate from, LocalDate to) {
+        return channelStatsCache.get(channel, "range:" + from + ":" + to, () -> computeChannelStats(channel, from, to));
+    }
+
+    /**
+     * Stats of the messages sent within the window before now, e.g. {@code 24h}, {@code 7d}, {@code 2w} or {@code 3m}.
+     * The window is rounded out to whole hours.
+     */
+    public ChannelWindowStats getChannelStats(String channel, String window) {
+        Instant from = windowStart(window, Instant.now());
+        return channelStatsCache.get(channel, "window:" + window, () -> computeChannelStats(channel, window, from));
+    }
+
+    /**
+     * Leaderboards of the guild: top authors, channels, emojis and mentioned users.
+     */
+    public GuildStats getGuildStats(String guild) {
+        return channelStatsCache.get(guild, "guild", () -> computeGuildStats(guild));
+    }
+
+    /**
+     * Approximate stats of the channel between the dates (UTC), inclusive.
+     */
+    public ApproximateStats getApproximateChannelStats(String channel, LocalDate from, LocalDate to) {
+        return channelStatsCache.get(channel, "sketch:" + from + ":" + to, () -> {
+            SketchStore.Sketches sketches = statsPhase("sketches").record(() ->
+                    sketchStore.getChannelSketches(channel, from.toEpochDay(), to.toEpochDay()));
+            return toApproximateStats(getChannelName(channel), from, to, sketches);
+        });
+    }
+
+    /**
+     * Approximate stats of all channels of the guild between the dates (UTC), inclusive.
+     */
+    public ApproximateStats getApproximateGuildStats(String guild, LocalDate from, LocalDate to) {
+        return channelStatsCache.get(guild, "sketch:" + from + ":" + to, () -> {
+            SketchStore.Sketches sketches = statsPhase("sketches").record(() ->
+                    sketchStore.getGuildSketches(guild, from.toEpochDay(), to.toEpochDay()));
+            Guild cachedGuild = catnip.cache().guild(guild);
+            return toApproximateStats(cachedGuild != null ? cachedGuild.name() : guild, from, to, sketches);
+        });
+    }
+
+    /**
+     * Most reacted messages and most used emojis of the channel.
+     */
+    public EngagementStats getChannelEngagement(String channel) {
+        EngagementStore.Engagement engagement = statsPhase("engagement").record(() -> engagementStore.getChannel(channel));
+        return toEngagementStats(getChannelName(channel), engagement);
+    }
+
+    /**
+     * Most reacted messages, most used emojis and the strongest interactions between users of the guild.
+     */
+    public EngagementStats getGuildEngagement(String guild) {
+        EngagementStore.Engagement engagement = statsPhase("engagement").record(() -> engagementStore.getGuild(guild));
+        Guild cachedGuild = catnip.cache().guild(guild);
+        return toEngagementStats(cachedGuild != null ? cachedGuild.name() : guild, engagement);
+    }
+
+    /**
+     * Users of the guild the user interacts with most, in either direction.
+     */
+    public List<UserStats> getInteractions(String guild, String user) {
+        return toUserStats(engagementStore.getGuild(guild).getGraph().partners(user, 10));
+    }
+
+    private EngagementStats toEngagementStats(String name, EngagementStore.Engagement engagement) {
+        List<InteractionGraph.Edge> edges = engagement.getGraph().top(10);
+        Map<String, String> userNames = statsPhase("user-names").record(() -> userNameResolver.resolve(edges
                 .stream()
-                .mapToLong(IntSummaryStatistics::getSum)
-                .average()
-                .orElse(0.0);
-        int messagesCount = channelMessages.size();
-        List<UserStats> topUsersByTotalMessages = channelMessages
+                .flatMap(edge -> Stream.of(edge.getFrom(), edge.getTo()))
+                .collect(toSet())));
+        return new EngagementStats(
+                name,
+                ranked(engagement.getMessages().top(10)),
+                ranked(engagement.getEmojis().top(10)),
+                edges.stream()
+                        .map(edge -> new Interaction(userNames.get(edge.getFrom()), userNames.get(edge.getTo()), edge.getCount()))
+                        .collect(toList()));
+    }
+
+    private static List<RankedItem> ranked(Map<String, Long> counts) {
+        return counts.entrySet()
                 .stream()
-                .collect(groupingBy(
-                        entity -> entity.getString("author"),
-                        summarizingInt(entity -> 1)))
-                .entrySet()
+                .map(entry -> new RankedItem(entry.getKey(), entry.getValue()))
+                .collect(toList());
+    }
+
+    private ApproximateStats toApproximateStats(String name, LocalDate from, LocalDate to, SketchStore.Sketches sketches) {
+        return new ApproximateStats(
+                name,
+                from,
+                to,
+                sketches.getUsers().estimate(),
+                toUserStats(sketches.getAuthors().top(10)),
+                sketches.getEmojis().top(10).entrySet()
+                        .stream()
+                        .map(entry -> new RankedItem(entry.getKey(), entry.getValue()))
+                        .collect(toList()));
+    }
+
+    public void rebuildGuildStats(String guild) throws InterruptedException {
+        guildStatsStore.rebuildAuthors(guild);
+    }
+
+    private GuildStats computeGuildStats(String guild) {
+        Guild cachedGuild = catnip.cache().guild(guild);
+        String guildName = cachedGuild != null
+                ? cachedGuild.name()
+                : restGateway.fetch("guild", guild, guild, RestGateway.Priority.INTERACTIVE,
+                        () -> catnip.rest().guild().getGuild(guild)).blockingGet().name();
+        Map<String, Long> topAuthors = statsPhase("guild-top-authors").record(() ->
+                ranking(guildStatsStore.getTop(GuildStatsStore.Ranking.AUTHORS, guild, 10), GuildStatsStore.Ranking.AUTHORS));
+        Map<String, Long> topMentions = statsPhase("guild-top-mentions").record(() ->
+                ranking(guildStatsStore.getTop(GuildStatsStore.Ranking.MENTIONS, guild, 10), GuildStatsStore.Ranking.MENTIONS));
+        Map<String, Long> topEmojis = statsPhase("guild-top-emojis").record(() ->
+                ranking(guildStatsStore.getTop(GuildStatsStore.Ranking.EMOJIS, guild, 10), GuildStatsStore.Ranking.EMOJIS));
+        List<RankedItem> topChannels = statsPhase("guild-top-channels").record(() -> guildStatsStore.getTopChannels(guild, 10))
                 .stream()
-                .map(entry -> {
-                    try {
-                        return new UserStats(
-                                catnip.rest().user().getUser(entry.getKey()).blockingGet().username(),
-                                entry.getValue().getSum());
-                    } catch (ResponseException e) {
-                        return new UserStats(
-                                entry.getKey(),
-                                entry.getValue().getSum());
-                    }
+                .map(entity -> {
+                    GuildChannel channel = catnip.cache().channel(guild, entity.getString("channel"));
+                    return new RankedItem(channel != null ? channel.name() : entity.getString("channel"),
+                            entity.getLong("messagesCount"));
                 })
-                .sorted(Comparator.comparing(UserStats::getMessagesCount).reversed())
-                .limit(10)
                 .collect(toList());
 
-        return new ChannelStats(
+        Set<String> userIds = new HashSet<>(topAuthors.keySet());
+        userIds.addAll(topMentions.keySet());
+        Map<String, String> userNames = statsPhase("user-names").record(() -> userNameResolver.resolve(userIds));
+        return new GuildStats(
+                guildName,
+                topAuthors.entrySet()
+                        .stream()
+                        .map(entry -> new UserStats(userNames.get(entry.getKey()), entry.getValue()))
+                        .collect(toList()),
+                topChannels,
+                topEmojis.entrySet()
+                        .stream()
+                        .map(entry -> new RankedItem(entry.getKey(), entry.getValue()))
+                        .collect(toList()),
+                topMentions.entrySet()
+                        .stream()
+                        .map(entry -> new RankedItem(userNames.get(entry.getKey()), entry.getValue()))
+                        .collect(toList()));
+    }
+
+    private static Map<String, Long> ranking(List<Entity> entities, GuildStatsStore.Ranking ranking) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        entities.forEach(entity -> result.put(
+                entity.getString(ranking.getNameProperty()),
+                entity.getLong(ranking.getCountProperty())));
+        return result;
+    }
+
+    private ChannelTotals computeChannelTotals(String channel) {
+        Instant now = Instant.now();
+        LocalDate today = now.atZone(ZoneOffset.UTC).toLocalDate();
+        Optional<ChannelSummary> analyzed = messageAnalytics.isEnabled()
+                ? statsPhase("analytics").record(() ->
+                        messageAnalytics.summarize(channel, Instant.EPOCH, now.plus(1, ChronoUnit.DAYS), 10))
+                : Optional.empty();
+        // The stored counters are used until the messages of the channel are loaded into analytics.
+        if (analyzed.isPresent()) {
+            ChannelSummary summary = analyzed.get();
+            // Whether today has messages, so the totals can count a new active day when a message arrives.
+            Optional<ChannelSummary> todays = messageAnalytics.summarize(channel,
+                    today.atStartOfDay(ZoneOffset.UTC).toInstant(), now.plus(1, ChronoUnit.DAYS), 1);
+            return new ChannelTotals(summary.getMessagesCount(), summary.getActiveDays(), summary.getTopAuthors(), 10,
+                    today.toEpochDay(), todays.map(todaySummary -> todaySummary.getMessagesCount() > 0).orElse(false),
+                    todays.isPresent());
+        }
+        Entity totals = statsPhase("totals").record(() -> channelStatsStore.getTotals(channel));
+        long messagesCount = totals == null ? 0 : totals.getLong("messagesCount");
+        long days = totals == null ? 0 : totals.getLong("days");
+        List<Entity> topAuthors = statsPhase("top-authors").record(() -> channelStatsStore.getTopAuthors(channel, 10));
+        Map<String, Long> authors = new LinkedHashMap<>();
+        topAuthors.forEach(entity -> authors.put(entity.getString("author"), entity.getLong("messagesCount")));
+        return new ChannelTotals(messagesCount, days, authors, 10, today.toEpochDay(), false, false);
+    }
+
+    private ChannelRangeStats computeChannelStats(String channel, LocalDate from, LocalDate to) {
+        String channelName = getChannelName(channel);
+        ChannelSummary summary = statsPhase("analytics").record(() -> messageAnalytics.summarize(channel,
+                from.atStartOfDay(ZoneOffset.UTC).toInstant(),
+                to.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant(),
+                10))
+                .orElseThrow(() -> new IllegalStateException("Messages of channel " + channel + " are being loaded, try again later"));
+        long days = ChronoUnit.DAYS.between(from, to) + 1;
+        return new ChannelRangeStats(
+                channelName,
+                from,
+                to,
+                summary.getMessagesCount(),
+                days <= 0 ? 0.0 : (double) summary.getMessagesCount() / days,
+                summary.getReactionsCount(),
+                summary.getMentionsCount(),
+                toUserStats(summary.getTopAuthors()));
+    }
+
+    private ChannelWindowStats computeChannelStats(String channel, String window, Instant from) {
+        Instant now = Instant.now();
+        String channelName = getChannelName(channel);
+        RollupStore.WindowTotals totals = statsPhase("rollups").record(() ->
+                rollupStore.getTotals(channel, from.getEpochSecond(), now.getEpochSecond()));
+        Map<String, Long> topAuthors = totals.getAuthors().entrySet()
+                .stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(10)
+                .collect(toMap(Map.Entry::getKey, Map.Entry::getValue, Long::sum, LinkedHashMap::new));
+        double days = (totals.getTo() - totals.getFrom()) / 86400.0;
+        return new ChannelWindowStats(
                 channelName,
-                messagesCount,
-                messagesPerDayStats,
-                topUsersByTotalMessages);
+                window,
+                Instant.ofEpochSecond(totals.getFrom()),
+                Instant.ofEpochSecond(totals.getTo()),
+                totals.getMessagesCount(),
+                days == 0 ? 0.0 : totals.getMessagesCount() / days,
+                toUserStats(topAuthors));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the window is malformed
+     */
+    static Instant windowStart(String window, Instant now) {
+        Matcher matcher = WINDOW.matcher(window);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid window " + window + ", expected e.g. 24h, 7d, 2w or 3m");
+        }
+        long amount = Long.parseLong(matcher.group(1));
+        ZonedDateTime end = now.atZone(ZoneOffset.UTC);
+        switch (matcher.group(2)) {
+            case "h":
+                return end.minusHours(amount).toInstant();
+            case "d":
+                return end.minusDays(amount).toInstant();
+            case "w":
+                return end.minusWeeks(amount).toInstant();
+            default:
+                return end.minusMonths(amount).toInstant();
+        }
+    }
+
+    public void rebuildChannelStats(String channel) throws InterruptedException {
+        channelStatsStore.rebuild(channel);
+    }
+
+    private String getChannelName(String channel) {
+        return channelStatsCache.getChannelName(channel, () ->
+                statsPhase("channel-name").record(() -> getChannel(channel).asTextChannel().name()));
+    }
+
+    private Channel getChannel(String channel) {
+        return restGateway.fetch("channel", channel, channel, RestGateway.Priority.INTERACTIVE,
+                () -> catnip.rest().channel().getChannelById(channel)).blockingGet();
+    }
+
+    private Timer statsPhase(String phase) {
+        return Timer.builder("bot.channel-stats").tag("phase", phase).register(meterRegistry);
+    }
+
+    private List<UserStats> toUserStats(Map<String, Long> authors) {
+        Map<String, String> userNames = statsPhase("user-names").record(() -> userNameResolver.resolve(authors.keySet()));
+        return authors.entrySet()
+                .stream()
+                .map(entry -> new UserStats(userNames.get(entry.getKey()), entry.getValue()))
+                .collect(toList());
     }
 
 
@@ -121,54 +391,136 @@ public class DiscordClient {
         catnip.observable(DiscordEvent.MESSAGE_CREATE)
                 .doOnError(error -> log.error("Error occurred when message was created.", error))
                 .subscribe(msg -> {
-                    log.info("New message {} from {}", msg.id(), msg.author());
-                    datastoreClient.uploadEntity(msg, msg.guildId());
-                    msg.mentionedUsers().forEach(mention -> datastoreClient.uploadEntity(mention, msg));
+                    long received = System.nanoTime();
+                    shardIngest.execute(msg.guildId(), () -> {
+                        log.debug("New message {} from {}", msg.id(), msg.author());
+                        messageIngest.ingest(msg, msg.guildId(), () ->
+                                messagePersistTimer.record(System.nanoTime() - received, TimeUnit.NANOSECONDS));
+                    });
                 });
     }
 
     private void addPerReactionLoad(Catnip catnip) {
         catnip.observable(DiscordEvent.MESSAGE_REACTION_ADD)
                 .doOnError(error -> log.error("Error occurred when reaction was added.", error))
-                .subscribe(reaction -> {
-                    log.info("New reaction {} from {}", reaction.emoji().id(), reaction.user());
-                    datastoreClient.uploadEntity(reaction, reaction.messageId());
+                .subscribe(reaction -> shardIngest.execute(reaction.guildId(), () -> {
+                    log.debug("New reaction {} from {}", reaction.emoji().id(), reaction.user());
+                    reactionCounter.add(reaction);
+                    guildStatsStore.recordReaction(reaction, 1);
+                    sketchStore.recordReaction(reaction);
+                    engagementStore.recordReaction(reaction);
+                    if (messageAnalytics.isEnabled()) {
+                        messageAnalytics.recordReaction(reaction.messageId(), 1);
+                        // Reactions don't change the all time stats.
+                        channelStatsCache.invalidate(reaction.channelId(), "all", UnaryOperator.identity());
+                    }
+                }));
+        catnip.observable(DiscordEvent.MESSAGE_REACTION_REMOVE)
+                .doOnError(error -> log.error("Error occurred when reaction was removed.", error))
+                .subscribe(reaction -> shardIngest.execute(reaction.guildId(), () -> {
+                    log.debug("Removed reaction {} from {}", reaction.emoji().id(), reaction.user());
+                    reactionCounter.remove(reaction);
+                    guildStatsStore.recordReaction(reaction, -1);
+                    engagementStore.removeReaction(reaction);
+                    if (messageAnalytics.isEnabled()) {
+                        messageAnalytics.recordReaction(reaction.messageId(), -1);
+                        channelStatsCache.invalidate(reaction.channelId(), "all", UnaryOperator.identity());
+                    }
+                }));
+    }
+
+    private void addChannelUpdates(Catnip catnip) {
+        catnip.observable(DiscordEvent.CHANNEL_UPDATE)
+                .mergeWith(catnip.observable(DiscordEvent.CHANNEL_DELETE))
+                .doOnError(error -> log.error("Error occurred when channel was updated.", error))
+                .subscribe(channel -> {
+                    channelStatsCache.invalidateChannelName(channel.id());
+                    restGateway.invalidate("channel", channel.id());
                 });
     }
 
     private void addCommandHandler(Catnip catnip) {
         catnip.observable(DiscordEvent.MESSAGE_CREATE)
-                .filter(msg -> msg.content().startsWith("!channelstats"))
+                .filter(msg -> msg.content().startsWith("!channelstats") || msg.content().startsWith("!guildstats"))
                 .doOnError(error -> log.error("Error occurred during message command.", error))
                 .subscribe(msg -> {
-                    List<String> channelMentions = new ArrayList<>();
-                    Matcher matcher = Pattern.compile("<#!?(\\d+)>").matcher(msg.content());
-                    while (matcher.find()) {
-                        channelMentions.add(matcher.group(1));
-                    }
-
-                    if (channelMentions.size() != 1) {
+                    try {
+                        commandExecutor.execute(() -> {
+                            try {
+                                handleCommand(msg);
+                            } catch (Exception e) {
+                                log.error("Error occurred during message command {}.", msg.id(), e);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        rejectedCommands.increment();
+                        log.warn("Command queue is full, rejecting command {} from {}", msg.id(), msg.author());
                         msg.channel().sendMessage(new EmbedBuilder()
-                                .title("Invalid request")
-                                .description("Please mention a single channel after command. Example: `!channelstats #general`")
+                                .title("Busy")
+                                .description("Too many requests are being processed. Please try again later.")
                                 .build());
-                    } else {
-                        String channelMention = channelMentions.get(0);
-                        Channel channel = catnip.rest().channel().getChannelById(channelMention).blockingGet();
-                        if (!channel.isText()) {
-                            msg.channel().sendMessage(new EmbedBuilder()
-                                    .title("Invalid request")
-                                    .description("Please specify text channel. Other types of channels are not supported.`")
-                                    .build());
-                        } else {
-                            ChannelStats channelStats = getChannelStats(channelMention);
-                            msg.channel().sendMessage(new EmbedBuilder()
-                                    .title("Channel stats")
-                                    .description(String.format("```json\n%s\n```",
-                                            objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(channelStats)))
-                                    .build());
-                        }
                     }
                 }, Throwable::printStackTrace);
     }
+
+    private void handleCommand(Message msg) throws JsonProcessingException {
+        if (msg.content().startsWith("!guildstats")) {
+            handleGuildCommand(msg);
+            return;
+        }
+        List<String> channelMentions = new ArrayList<>();
+        Matcher matcher = Pattern.compile("<#!?(\\d+)>").matcher(msg.content());
+        while (matcher.find()) {
+            channelMentions.add(matcher.group(1));
+        }
+
+        String window = null;
+        for (String argument : msg.content().split("\\s+")) {
+            if (WINDOW.matcher(argument).matches()) {
+                window = argument;
+            }
+        }
+
+        if (channelMentions.size() != 1) {
+            msg.channel().sendMessage(new EmbedBuilder()
+                    .title("Invalid request")
+                    .description("Please mention a single channel after command. Example: `!channelstats #general` " +
+                            "or `!channelstats #general 7d`")
+                    .build());
+        } else {
+            String channelMention = channelMentions.get(0);
+            Channel channel = getChannel(channelMention);
+            if (!channel.isText()) {
+                msg.channel().sendMessage(new EmbedBuilder()
+                        .title("Invalid request")
+                        .description("Please specify text channel. Other types of channels are not supported.`")
+                        .build());
+            } else {
+                Object channelStats = window == null
+                        ? getChannelStats(channelMention)
+                        : getChannelStats(channelMention, window);
+                msg.channel().sendMessage(new EmbedBuilder()
+                        .title(window == null ? "Channel stats" : "Channel stats for the last " + window)
+                        .description(String.format("```json\n%s\n```",
+                                objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(channelStats)))
+                        .build());
+            }
+        }
+    }
+
+    private void handleGuildCommand(Message msg) throws JsonProcessingException {
+        if (msg.guildId() == null) {
+            msg.channel().sendMessage(new EmbedBuilder()
+                    .title("Invalid request")
+                    .description("Guild stats are available only in guild channels.")
+                    .build());
+            return;
+        }
+        GuildStats guildStats = getGuildStats(msg.guildId());
+        msg.channel().sendMessage(new EmbedBuilder()
+                .title("Guild stats")
+                .description(String.format("```json\n%s\n```",
+                        objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(guildStats)))
+                .build());
+    }
 }
@@ -0,0 +1,334 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.cloud.datastore.*;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.mewna.catnip.entity.message.Message;
+import com.mewna.catnip.entity.message.ReactionUpdate;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.analytics.InteractionGraph;
+import org.praytic.discord.statsbot.analytics.SpaceSaving;
+import org.praytic.discord.statsbot.config.properties.AnalyticsProperties;
+import org.praytic.discord.statsbot.model.StoredMessage;
+import org.praytic.discord.statsbot.storage.MessageCodec;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Precomputed engagement stored as {@code engagement} entities keyed by {@code guild:id} and {@code channel:id}:
+ * Space-Saving summaries of the most reacted messages and most used emojis, and for guilds the
+ * {@link InteractionGraph} of its users. A mention is an interaction of the author with the mentioned user,
+ * a reaction one of the reacting user with the author of the message.
+ * <p>
+ * New interactions are collected in memory and merged into the stored entities by a scheduled flush, which
+ * also refreshes the cached entities, so queries never read the {@code mention} and {@code reaction} kinds.
+ * Reactions are attributed only to authors of messages seen recently, since reaction events carry no author.
+ * Removed reactions are subtracted from the graph and from the summaries that still track the message or emoji.
+ * The graph of a guild is pruned to its heaviest interactions when the entity would not fit in Datastore.
+ * Enabled with {@code analytics.engagement-enabled}.
+ */
+@Slf4j
+@Component
+public class EngagementStore {
+
+    static final String KIND = "engagement";
+    private static final int MAX_BATCH_SIZE = 500;
+    /**
+     * Datastore refuses entities over 1 MiB, the rest is left for the key and property names.
+     */
+    private static final int MAX_ENCODED_SIZE = 1_000_000;
+
+    private final Datastore datastore;
+    private final AnalyticsProperties properties;
+    private final MeterRegistry meterRegistry;
+    private final PendingCounters<String, Pending> pending = new PendingCounters<>("engagements", 1, Pending::merge);
+    private final Cache<String, Engagement> engagements;
+    private final Cache<String, String> messageAuthors;
+
+    public EngagementStore(Datastore datastore, AnalyticsProperties properties, MeterRegistry meterRegistry) {
+        this.datastore = datastore;
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+        this.engagements = CacheBuilder.newBuilder()
+                .maximumSize(properties.getEngagementCacheSize())
+                .build();
+        this.messageAuthors = CacheBuilder.newBuilder()
+                .maximumSize(properties.getMessageAuthorCacheSize())
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return properties.isEngagementEnabled();
+    }
+
+    public void recordMessage(Message msg, @Nullable String guild) {
+        if (!isEnabled()) {
+            return;
+        }
+        String guildId = msg.guildId() != null ? msg.guildId() : guild;
+        messageAuthors.put(msg.id(), msg.author().id());
+        record(channelKey(msg.channelId()), guildId, current -> offerReactions(current, msg));
+        if (guildId == null) {
+            return;
+        }
+        record(guildKey(guildId), guildId, current -> {
+            offerReactions(current, msg);
+            msg.mentionedUsers().forEach(mention -> current.interactions.add(msg.author().id(), mention.id(), 1));
+        });
+    }
+
+    public void recordReaction(ReactionUpdate reaction) {
+        if (!isEnabled()) {
+            return;
+        }
+        String author = messageAuthors.getIfPresent(reaction.messageId());
+        record(channelKey(reaction.channelId()), reaction.guildId(), current -> {
+            current.messages.offer(reaction.messageId(), 1);
+            current.emojis.offer(MessageCodec.emojiKey(reaction.emoji()), 1);
+        });
+        if (reaction.guildId() == null) {
+            return;
+        }
+        record(guildKey(reaction.guildId()), reaction.guildId(), current -> {
+            current.messages.offer(reaction.messageId(), 1);
+            current.emojis.offer(MessageCodec.emojiKey(reaction.emoji()), 1);
+            if (author != null) {
+                current.interactions.add(reaction.userId(), author, 1);
+            }
+        });
+    }
+
+    /**
+     * Counts a stored message, when the guild is recounted after its history is imported.
+     */
+    public void recordStored(StoredMessage msg) {
+        if (!isEnabled()) {
+            return;
+        }
+        record(channelKey(msg.getChannel()), msg.getGuild(), current -> offerReactions(current, msg));
+        if (msg.getGuild() == null) {
+            return;
+        }
+        record(guildKey(msg.getGuild()), msg.getGuild(), current -> {
+            offerReactions(current, msg);
+            msg.getMentionedUsers().forEach(mention -> current.interactions.add(msg.getAuthor(), mention, 1));
+        });
+    }
+
+    public void removeReaction(ReactionUpdate reaction) {
+        if (!isEnabled()) {
+            return;
+        }
+        String author = messageAuthors.getIfPresent(reaction.messageId());
+        record(channelKey(reaction.channelId()), reaction.guildId(), current -> current.remove(reaction));
+        if (reaction.guildId() == null) {
+            return;
+        }
+        record(guildKey(reaction.guildId()), reaction.guildId(), current -> {
+            current.remove(reaction);
+            if (author != null) {
+                current.interactions.add(reaction.userId(), author, -1);
+            }
+        });
+    }
+
+    public Engagement getChannel(String channel) {
+        return get(channelKey(channel));
+    }
+
+    public Engagement getGuild(String guild) {
+        return get(guildKey(guild));
+    }
+
+    /**
+     * Deletes the engagement of the guild and its channels, before its history is loaded again.
+     */
+    public void clear(String guild) {
+        pending.removeIf((scope, current) -> guild.equals(current.guild));
+        Query<Key> query = Query.newGqlQueryBuilder(
+                Query.ResultType.KEY,
+                "SELECT __key__ FROM `" + KIND + "` WHERE guild=@guild")
+                .setBinding("guild", guild)
+                .build();
+        List<Key> keys = new ArrayList<>();
+        datastore.run(query).forEachRemaining(keys::add);
+        Lists.partition(keys, MAX_BATCH_SIZE).forEach(batch -> datastore.delete(batch.toArray(new Key[0])));
+        engagements.invalidateAll();
+        log.info("Cleared engagement of guild [{}] - {} entities", guild, keys.size());
+    }
+
+    @Scheduled(fixedDelayString = "${datastore.stats-flush-delay:5000}")
+    public void flush() {
+        pending.flush(batch -> batch.forEach((scope, current) -> {
+            Engagement merged = transactionTimer().record(() -> datastore.runInTransaction(transaction -> {
+                Entity existing = transaction.get(key(scope));
+                Engagement engagement = merge(existing == null ? newEngagement(current.guild) : fromEntity(existing), current);
+                transaction.put(toEntity(scope, engagement));
+                return engagement;
+            }));
+            engagements.put(scope, merged);
+        }));
+    }
+
+    private static void offerReactions(Pending current, Message msg) {
+        msg.reactions().forEach(reaction -> {
+            current.messages.offer(msg.id(), reaction.count());
+            current.emojis.offer(MessageCodec.emojiKey(reaction.emoji()), reaction.count());
+        });
+    }
+
+    private static void offerReactions(Pending current, StoredMessage msg) {
+        msg.getReactions().forEach((emoji, count) -> {
+            current.messages.offer(msg.getId(), count);
+            current.emojis.offer(emoji, count);
+        });
+    }
+
+    private void record(String scope, @Nullable String guild, Consumer<Pending> update) {
+        pending.compute(scope, (key, current) -> {
+            if (current == null) {
+                current = new Pending(guild, properties.getSketchCapacity());
+            }
+            update.accept(current);
+            return current;
+        });
+    }
+
+    private Engagement get(String scope) {
+        try {
+            return engagements.get(scope, () -> {
+                Entity entity = Timer.builder("datastore.query").tag("kind", KIND).register(meterRegistry)
+                        .record(() -> datastore.get(key(scope)));
+                return entity == null ? newEngagement(null) : fromEntity(entity);
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to load engagement of " + scope, e.getCause());
+        }
+    }
+
+    private Engagement merge(Engagement stored, Pending current) {
+        InteractionGraph graph = current.interactions.isEmpty()
+                ? stored.graph
+                : InteractionGraph.builder()
+                .addAll(stored.graph)
+                .addAll(current.interactions)
+                .build(properties.getGraphMaxEdges());
+        SpaceSaving messages = stored.messages.merge(current.messages);
+        SpaceSaving emojis = stored.emojis.merge(current.emojis);
+        current.removedMessages.forEach(messages::decrement);
+        current.removedEmojis.forEach(emojis::decrement);
+        int sketchesSize = messages.toBytes().length + emojis.toBytes().length;
+        while (graph.edgeCount() > 0 && sketchesSize + graph.encodedSize() > MAX_ENCODED_SIZE) {
+            log.warn("Engagement graph of guild [{}] with {} interactions is too large, keeping the heaviest half",
+                    current.guild, graph.edgeCount());
+            graph = InteractionGraph.builder().addAll(graph).build(graph.edgeCount() / 2);
+        }
+        return new Engagement(stored.guild != null ? stored.guild : current.guild, graph, messages, emojis);
+    }
+
+    private Engagement newEngagement(@Nullable String guild) {
+        return new Engagement(guild, InteractionGraph.empty(),
+                new SpaceSaving(properties.getSketchCapacity()),
+                new SpaceSaving(properties.getSketchCapacity()));
+    }
+
+    private Key key(String scope) {
+        return datastore.newKeyFactory().setKind(KIND).newKey(scope);
+    }
+
+    private FullEntity<Key> toEntity(String scope, Engagement engagement) {
+        Entity.Builder builder = Entity.newBuilder(key(scope))
+                .set("messages", blob(engagement.messages.toBytes()))
+                .set("emojis", blob(engagement.emojis.toBytes()))
+                .set("graph", blob(engagement.graph.toBytes()));
+        if (engagement.guild != null) {
+            builder.set("guild", engagement.guild);
+        }
+        return builder.build();
+    }
+
+    private static BlobValue blob(byte[] bytes) {
+        return BlobValue.newBuilder(Blob.copyFrom(bytes)).setExcludeFromIndexes(true).build();
+    }
+
+    private static Engagement fromEntity(Entity entity) {
+        return new Engagement(
+                entity.contains("guild") ? entity.getString("guild") : null,
+                InteractionGraph.fromBytes(entity.getBlob("graph").toByteArray()),
+                SpaceSaving.fromBytes(entity.getBlob("messages").toByteArray()),
+                SpaceSaving.fromBytes(entity.getBlob("emojis").toByteArray()));
+    }
+
+    private Timer transactionTimer() {
+        return Timer.builder("datastore.transaction").tag("kind", KIND).register(meterRegistry);
+    }
+
+    private static String channelKey(String channel) {
+        return "channel:" + channel;
+    }
+
+    private static String guildKey(String guild) {
+        return "guild:" + guild;
+    }
+
+    private static class Pending {
+        @Nullable
+        private final String guild;
+        private final SpaceSaving messages;
+        private final SpaceSaving emojis;
+        private final InteractionGraph.Builder interactions = InteractionGraph.builder();
+        private final Map<String, Long> removedMessages = new HashMap<>();
+        private final Map<String, Long> removedEmojis = new HashMap<>();
+
+        private Pending(@Nullable String guild, int capacity) {
+            this.guild = guild;
+            this.messages = new SpaceSaving(capacity);
+            this.emojis = new SpaceSaving(capacity);
+        }
+
+        private void remove(ReactionUpdate reaction) {
+            removedMessages.merge(reaction.messageId(), 1L, Long::sum);
+            removedEmojis.merge(MessageCodec.emojiKey(reaction.emoji()), 1L, Long::sum);
+        }
+
+        private Pending merge(Pending other) {
+            messages.merge(other.messages);
+            emojis.merge(other.emojis);
+            interactions.addAll(other.interactions);
+            other.removedMessages.forEach((message, count) -> removedMessages.merge(message, count, Long::sum));
+            other.removedEmojis.forEach((emoji, count) -> removedEmojis.merge(emoji, count, Long::sum));
+            return this;
+        }
+    }
+
+    /**
+     * Engagement of a channel or guild, channels have an empty graph.
+     */
+    @Getter
+    public static class Engagement {
+        @Nullable
+        private final String guild;
+        private final InteractionGraph graph;
+        private final SpaceSaving messages;
+        private final SpaceSaving emojis;
+
+        private Engagement(@Nullable String guild, InteractionGraph graph, SpaceSaving messages, SpaceSaving emojis) {
+            this.guild = guild;
+            this.graph = graph;
+            this.messages = messages;
+            this.emojis = emojis;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.cloud.datastore.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.config.properties.DatastoreProperties;
+import org.praytic.discord.statsbot.model.BackgroundJob;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Deletes entities of a kind in {@link BackgroundJobs}. Keys are read with a keys-only query and deleted
+ * in batches of up to 500 keys, with several batches of a job in flight at once. The job's progress is
+ * the number of deleted entities.
+ */
+@Slf4j
+@Component
+public class EntityDeleter {
+
+    private static final int MAX_BATCH_SIZE = 500;
+
+    private final Datastore datastore;
+    private final DatastoreProperties properties;
+    private final BackgroundJobs backgroundJobs;
+    private final ExecutorService batchExecutor;
+    private final Timer deleteTimer;
+    private final DistributionSummary batchSize;
+
+    public EntityDeleter(Datastore datastore, DatastoreProperties properties, BackgroundJobs backgroundJobs,
+                         MeterRegistry meterRegistry) {
+        this.datastore = datastore;
+        this.properties = properties;
+        this.backgroundJobs = backgroundJobs;
+        this.deleteTimer = meterRegistry.timer("datastore.delete");
+        this.batchSize = meterRegistry.summary("datastore.delete.batch.size");
+        this.batchExecutor = Executors.newFixedThreadPool(properties.getDeleteConcurrency(),
+                new ThreadFactoryBuilder().setNameFormat("entity-delete-%d").build());
+    }
+
+    public BackgroundJob start(String kind, @Nullable String guild, @Nullable String channel) {
+        String target = kind + (guild != null ? " guild=" + guild : "") + (channel != null ? " channel=" + channel : "");
+        return backgroundJobs.submit("deletion", target, job -> delete(job, kind, guild, channel));
+    }
+
+    @PreDestroy
+    public void close() {
+        batchExecutor.shutdown();
+    }
+
+    private long delete(BackgroundJob job, String kind, @Nullable String guild, @Nullable String channel)
+            throws InterruptedException {
+        String gql = String.format("SELECT __key__ FROM `%s`", kind);
+        if (guild != null || channel != null) {
+            gql += " WHERE";
+        }
+        if (guild != null) {
+            gql += " guild=@guild";
+        }
+        if (guild != null && channel != null) {
+            gql += " AND";
+        }
+        if (channel != null) {
+            gql += " channel=@channel";
+        }
+        GqlQuery.Builder<Key> query = Query.newGqlQueryBuilder(Query.ResultType.KEY, gql);
+        if (guild != null) {
+            query.setBinding("guild", guild);
+        }
+        if (channel != null) {
+            query.setBinding("channel", channel);
+        }
+        log.info("Deleting entities in job [{}]: {}", job.getId(), gql);
+
+        int concurrency = properties.getDeleteConcurrency();
+        Semaphore inFlight = new Semaphore(concurrency);
+        AtomicReference<DatastoreException> failure = new AtomicReference<>();
+        QueryResults<Key> results = datastore.run(query.build());
+        List<Key> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (results.hasNext() && !job.isCancelRequested() && failure.get() == null) {
+            batch.add(results.next());
+            if (batch.size() == MAX_BATCH_SIZE || !results.hasNext()) {
+                inFlight.acquire();
+                Key[] keys = batch.toArray(new Key[0]);
+                batch.clear();
+                batchExecutor.execute(() -> {
+                    try {
+                        deleteTimer.record(() -> datastore.delete(keys));
+                        batchSize.record(keys.length);
+                        job.getProgress().addAndGet(keys.length);
+                        log.debug("Deleted {} entities in job [{}]", keys.length, job.getId());
+                    } catch (DatastoreException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        }
+        inFlight.acquire(concurrency);
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return job.getProgress().get();
+    }
+}
@@ -0,0 +1,292 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.cloud.datastore.*;
+import com.google.common.collect.Lists;
+import com.mewna.catnip.entity.message.Message;
+import com.mewna.catnip.entity.message.ReactionUpdate;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.model.StoredMessage;
+import org.praytic.discord.statsbot.storage.MessageCodec;
+import org.praytic.discord.statsbot.storage.MessageStore;
+import org.praytic.discord.statsbot.storage.Snowflakes;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Guild-wide counters for leaderboards. Every ranking is a kind keyed by {@code guild:name} with an
+ * index on the count, so the top entries are read directly instead of aggregating channels:
+ * <ul>
+ *     <li>{@code guild-author-stats} - messages per author</li>
+ *     <li>{@code guild-emoji-stats} - reactions per emoji</li>
+ *     <li>{@code guild-mention-stats} - mentions per user</li>
+ * </ul>
+ * Channels are ranked by the totals of {@link ChannelStatsStore}. Counters are updated from live events
+ * through a scheduled flush, author counters are recounted from the stored messages by {@link #rebuildAuthors(String)}.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class GuildStatsStore {
+
+    private static final int MAX_BATCH_SIZE = 500;
+
+    private final Datastore datastore;
+    private final MessageStore messageStore;
+    private final ChannelStatsCache channelStatsCache;
+    private final MeterRegistry meterRegistry;
+    private final PendingCounters<Counter, Long> pending =
+            new PendingCounters<>("guild counters", MAX_BATCH_SIZE, Long::sum, Counter::getGuild);
+    private final Map<String, Rebuild> rebuilds = new ConcurrentHashMap<>();
+
+    @Getter
+    public enum Ranking {
+        AUTHORS("guild-author-stats", "author", "messagesCount"),
+        EMOJIS("guild-emoji-stats", "emoji", "reactionsCount"),
+        MENTIONS("guild-mention-stats", "user", "mentionsCount");
+
+        private final String kind;
+        private final String nameProperty;
+        private final String countProperty;
+
+        Ranking(String kind, String nameProperty, String countProperty) {
+            this.kind = kind;
+            this.nameProperty = nameProperty;
+            this.countProperty = countProperty;
+        }
+    }
+
+    /**
+     * Counts the author, mentioned users and reactions of a new message.
+     */
+    public void recordMessage(Message msg, @Nullable String guild) {
+        if (guild == null) {
+            return;
+        }
+        rebuilds.compute(guild, (key, rebuild) -> {
+            if (rebuild != null && Long.parseLong(msg.id()) <= rebuild.boundary) {
+                // Older than the boundary but counted live, so the recount has to leave it out.
+                rebuild.late.add(msg.id());
+            }
+            increment(Ranking.AUTHORS, guild, msg.author().id(), 1);
+            return rebuild;
+        });
+        recordMentions(msg, guild);
+        msg.reactions().forEach(reaction -> increment(Ranking.EMOJIS, guild, MessageCodec.emojiKey(reaction.emoji()), reaction.count()));
+    }
+
+    /**
+     * Counts the mentioned users and reactions of a message fetched by the initial load. Its author is
+     * counted by {@link #rebuildAuthors(String)} once the guild is loaded.
+     */
+    public void recordLoaded(Message msg, String guild) {
+        recordMentions(msg, guild);
+        msg.reactions().forEach(reaction -> increment(Ranking.EMOJIS, guild, MessageCodec.emojiKey(reaction.emoji()), reaction.count()));
+    }
+
+    /**
+     * Counts the mentioned users and reactions of a stored message, when the guild is recounted after its
+     * history is imported. Its author is counted by {@link #rebuildAuthors(String)}.
+     */
+    public void recordStored(StoredMessage msg, String guild) {
+        msg.getMentionedUsers().forEach(user -> increment(Ranking.MENTIONS, guild, user, 1));
+        msg.getReactions().forEach((emoji, count) -> increment(Ranking.EMOJIS, guild, emoji, count));
+    }
+
+    public void recordReaction(ReactionUpdate reaction, long delta) {
+        if (reaction.guildId() != null) {
+            increment(Ranking.EMOJIS, reaction.guildId(), MessageCodec.emojiKey(reaction.emoji()), delta);
+        }
+    }
+
+    /**
+     * @return up to {@code limit} entities of the ranking in descending order
+     */
+    public List<Entity> getTop(Ranking ranking, String guild, int limit) {
+        return top(ranking.getKind(), ranking.getCountProperty(), guild, limit);
+    }
+
+    /**
+     * @return up to {@code limit} {@code channel-stats} entities of the guild in descending order of messages
+     */
+    public List<Entity> getTopChannels(String guild, int limit) {
+        return top(ChannelStatsStore.CHANNEL_KIND, "messagesCount", guild, limit);
+    }
+
+    /**
+     * Replaces the author counters of the guild with a recount of the stored messages of its channels, up to
+     * the moment the rebuild started. Newer messages stay in the live counters, which are flushed once the
+     * recount is stored, so a message is counted either by the recount or live, never by both. The rebuild
+     * waits for a running flush of the guild, so no flush commits counts taken before it over the recount.
+     */
+    public void rebuildAuthors(String guild) throws InterruptedException {
+        Rebuild rebuild = new Rebuild(Snowflakes.last(System.currentTimeMillis()));
+        pending.exclusive(guild, () -> rebuilds.compute(guild, (key, previous) -> {
+            if (previous != null) {
+                throw new IllegalStateException("Author stats of guild " + guild + " are already being rebuilt");
+            }
+            pending.removeIf((counter, delta) -> counter.getRanking() == Ranking.AUTHORS && counter.getGuild().equals(guild));
+            return rebuild;
+        }));
+        try {
+            messageStore.flush();
+            Query<Key> channelsQuery = Query.newGqlQueryBuilder(
+                    Query.ResultType.KEY,
+                    "SELECT __key__ FROM `" + ChannelStatsStore.CHANNEL_KIND + "` WHERE guild=@guild")
+                    .setBinding("guild", guild)
+                    .build();
+            List<String> channels = new ArrayList<>();
+            datastore.run(channelsQuery).forEachRemaining(channel -> channels.add(channel.getName()));
+            Map<String, Long> authors = new HashMap<>();
+            for (String channel : channels) {
+                messageStore.streamChannelMessages(channel)
+                        .filter(message -> Long.parseLong(message.getId()) <= rebuild.boundary
+                                && !rebuild.late.contains(message.getId()))
+                        .doOnNext(message -> authors.merge(message.getAuthor(), 1L, Long::sum))
+                        .blockLast();
+            }
+
+            Set<Key> keys = new HashSet<>();
+            authors.keySet().forEach(author -> keys.add(key(new Counter(Ranking.AUTHORS, guild, author))));
+            Query<Key> staleQuery = Query.newGqlQueryBuilder(
+                    Query.ResultType.KEY,
+                    "SELECT __key__ FROM `" + Ranking.AUTHORS.getKind() + "` WHERE guild=@guild")
+                    .setBinding("guild", guild)
+                    .build();
+            List<Key> stale = new ArrayList<>();
+            datastore.run(staleQuery).forEachRemaining(key -> {
+                if (!keys.contains(key)) {
+                    stale.add(key);
+                }
+            });
+            Lists.partition(stale, MAX_BATCH_SIZE).forEach(batch -> datastore.delete(batch.toArray(new Key[0])));
+            for (List<String> batch : Lists.partition(new ArrayList<>(authors.keySet()), MAX_BATCH_SIZE)) {
+                transactionTimer().record(() -> datastore.runInTransaction(transaction -> {
+                    transaction.put(batch.stream()
+                            .map(author -> entity(new Counter(Ranking.AUTHORS, guild, author), null, authors.get(author)))
+                            .toArray(FullEntity<?>[]::new));
+                    return null;
+                }));
+            }
+            log.info("Rebuilt author stats for guild [{}] - {} authors in {} channels, {} messages stored late",
+                    guild, authors.size(), channels.size(), rebuild.late.size());
+        } finally {
+            rebuilds.remove(guild);
+            channelStatsCache.invalidate(guild);
+        }
+    }
+
+    /**
+     * Deletes the counters of the rankings in the guild, e.g. before its history is loaded again.
+     */
+    public void clear(String guild, Ranking... rankings) {
+        for (Ranking ranking : rankings) {
+            pending.removeIf((counter, delta) -> counter.getRanking() == ranking && counter.getGuild().equals(guild));
+            Query<Key> query = Query.newGqlQueryBuilder(
+                    Query.ResultType.KEY,
+                    "SELECT __key__ FROM `" + ranking.getKind() + "` WHERE guild=@guild")
+                    .setBinding("guild", guild)
+                    .build();
+            List<Key> keys = new ArrayList<>();
+            datastore.run(query).forEachRemaining(keys::add);
+            Lists.partition(keys, MAX_BATCH_SIZE).forEach(batch -> datastore.delete(batch.toArray(new Key[0])));
+        }
+        channelStatsCache.invalidate(guild);
+    }
+
+    @Scheduled(fixedDelayString = "${datastore.stats-flush-delay:5000}")
+    public void flush() {
+        pending.flush(counter -> counter.getRanking() == Ranking.AUTHORS && rebuilds.containsKey(counter.getGuild()), batch -> {
+            List<Counter> counters = new ArrayList<>(batch.keySet());
+            counters.removeIf(counter -> batch.get(counter) == 0);
+            if (counters.isEmpty()) {
+                return;
+            }
+            transactionTimer().record(() -> datastore.runInTransaction(transaction -> {
+                List<Entity> existing = transaction.fetch(counters.stream().map(this::key).toArray(Key[]::new));
+                List<FullEntity<?>> updates = new ArrayList<>();
+                List<Key> deletes = new ArrayList<>();
+                for (int i = 0; i < counters.size(); i++) {
+                    FullEntity<Key> updated = entity(counters.get(i), existing.get(i), batch.get(counters.get(i)));
+                    if (updated.getLong(counters.get(i).getRanking().getCountProperty()) > 0) {
+                        updates.add(updated);
+                    } else if (existing.get(i) != null) {
+                        deletes.add(existing.get(i).getKey());
+                    }
+                }
+                transaction.put(updates.toArray(new FullEntity<?>[0]));
+                transaction.delete(deletes.toArray(new Key[0]));
+                return null;
+            }));
+            counters.stream().map(Counter::getGuild).distinct().forEach(channelStatsCache::invalidate);
+        });
+    }
+
+    private void recordMentions(Message msg, String guild) {
+        msg.mentionedUsers().forEach(user -> increment(Ranking.MENTIONS, guild, user.id(), 1));
+    }
+
+    private void increment(Ranking ranking, String guild, String name, long delta) {
+        pending.merge(new Counter(ranking, guild, name), delta);
+    }
+
+    private List<Entity> top(String kind, String countProperty, String guild, int limit) {
+        Query<Entity> query = Query.newGqlQueryBuilder(
+                Query.ResultType.ENTITY,
+                "SELECT * FROM `" + kind + "` WHERE guild=@guild ORDER BY " + countProperty + " DESC LIMIT @limit")
+                .setBinding("guild", guild)
+                .setBinding("limit", limit)
+                .build();
+        List<Entity> entities = new ArrayList<>(limit);
+        Timer.builder("datastore.query").tag("kind", kind).register(meterRegistry)
+                .record(() -> datastore.run(query).forEachRemaining(entities::add));
+        return entities;
+    }
+
+    private Key key(Counter counter) {
+        return datastore.newKeyFactory()
+                .setKind(counter.getRanking().getKind())
+                .newKey(counter.getGuild() + ":" + counter.getName());
+    }
+
+    private FullEntity<Key> entity(Counter counter, @Nullable Entity existing, long delta) {
+        String countProperty = counter.getRanking().getCountProperty();
+        long stored = existing != null && existing.contains(countProperty) ? existing.getLong(countProperty) : 0;
+        return Entity.newBuilder(key(counter))
+                .set("guild", counter.getGuild())
+                .set(counter.getRanking().getNameProperty(), counter.getName())
+                .set(countProperty, stored + delta)
+                .build();
+    }
+
+    private Timer transactionTimer() {
+        return Timer.builder("datastore.transaction").tag("kind", "guild-stats").register(meterRegistry);
+    }
+
+    @Value
+    private static class Counter {
+        Ranking ranking;
+        String guild;
+        String name;
+    }
+
+    private static class Rebuild {
+        /**
+         * Snowflake of the start of the rebuild, newer messages are left to the live counters.
+         */
+        private final long boundary;
+        private final Set<String> late = ConcurrentHashMap.newKeySet();
+
+        private Rebuild(long boundary) {
+            this.boundary = boundary;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package org.praytic.discord.statsbot.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.KeyFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.config.properties.DatastoreProperties;
+import org.praytic.discord.statsbot.model.BackgroundJob;
+import org.praytic.discord.statsbot.storage.EntityJson;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports the message history to local files and imports it back, so a guild can be moved between
+ * projects or its aggregates rebuilt without loading it from Discord again.
+ * <p>
+ * An export is a directory {@code datastore.export-dir/name} with gzipped NDJSON chunks of
+ * {@code datastore.export-chunk-size} entities, named {@code kind-00000.ndjson.gz}, in the format of
+ * {@link EntityJson}. Kinds are exported and chunks imported in parallel, entities are streamed page by
+ * page on export and through the {@link DatastoreWriteBuffer} on import, so memory use doesn't depend
+ * on the size of the history, except for the ids of the messages of an exported guild.
+ */
+@Slf4j
+@Component
+public class HistoryTransfer {
+
+    public static final List<String> KINDS = Arrays.asList("message", "reaction", "mention", "attachment");
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_.-]+");
+    private static final String SUFFIX = ".ndjson.gz";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Datastore datastore;
+    private final DatastoreClient datastoreClient;
+    private final DatastoreWriteBuffer datastoreWriteBuffer;
+    private final ChannelStatsStore channelStatsStore;
+    private final GuildStatsStore guildStatsStore;
+    private final SketchStore sketchStore;
+    private final EngagementStore engagementStore;
+    private final BackgroundJobs backgroundJobs;
+    private final DatastoreProperties properties;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    private final ExecutorService transferExecutor;
+
+    public HistoryTransfer(Datastore datastore, DatastoreClient datastoreClient, DatastoreWriteBuffer datastoreWriteBuffer,
+                           ChannelStatsStore channelStatsStore, GuildStatsStore guildStatsStore,
+                           SketchStore sketchStore, EngagementStore engagementStore, BackgroundJobs backgroundJobs, DatastoreProperties properties,
+                           ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.datastore = datastore;
+        this.datastoreClient = datastoreClient;
+        this.datastoreWriteBuffer = datastoreWriteBuffer;
+        this.channelStatsStore = channelStatsStore;
+        this.guildStatsStore = guildStatsStore;
+        this.sketchStore = sketchStore;
+        this.engagementStore = engagementStore;
+        this.backgroundJobs = backgroundJobs;
+        this.properties = properties;
+        this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+        this.transferExecutor = Executors.newFixedThreadPool(properties.getTransferConcurrency());
+    }
+
+    /**
+     * Only messages store the guild, so the messages of a guild are exported first and the other kinds are
+     * queried by the ids of those messages. Attachments stored before they were linked to their message are
+     * left out of the export of a guild.
+     *
+     * @return a job with the number of exported entities per kind as its result
+     * @throws IllegalArgumentException if the name isn't a plain directory name or the export exists
+     */
+    public BackgroundJob startExport(String name, @Nullable String guild, List<String> kinds) {
+        Path directory = directory(name);
+        if (Files.exists(directory)) {
+            throw new IllegalArgumentException("Export " + name + " already exists");
+        }
+        return backgroundJobs.submit("export", name, () -> {
+            Files.createDirectories(directory);
+            Map<String, Long> exported = new LinkedHashMap<>();
+            Function<String, Flux<Entity>> entities = kind -> datastoreClient.streamEntities(kind, null, null);
+            if (guild != null) {
+                MessageIds messages = new MessageIds();
+                Flux<Entity> guildMessages = datastoreClient.streamEntities("message", guild, null)
+                        .doOnNext(entity -> messages.add(entity.getKey().getName()));
+                if (kinds.contains("message")) {
+                    exported.put("message", export(directory, "message", guildMessages));
+                } else {
+                    guildMessages.blockLast();
+                }
+                entities = kind -> datastoreClient.streamByMessage(kind, messages.stream());
+            }
+            Function<String, Flux<Entity>> exportedEntities = entities;
+            Map<String, Future<Long>> exports = new LinkedHashMap<>();
+            kinds.stream()
+                    .filter(kind -> !exported.containsKey(kind))
+                    .forEach(kind -> exports.put(kind, transferExecutor.submit(() -> export(directory, kind, exportedEntities.apply(kind)))));
+            exported.putAll(collect(exports));
+            return exported;
+        });
+    }
+
+    /**
+     * @param rebuild recount the stats of the imported channels and guilds afterwards, see {@link #recount(String)}.
+     *                Without it the counters kept from live events don't include the imported history.
+     * @return a job with the number of imported entities per file as its result. The job fails before the
+     *         rebuild if the write buffer dropped any entity, the import can then be run again.
+     * @throws IllegalArgumentException if the name isn't a plain directory name or there is no such export
+     */
+    public BackgroundJob startImport(String name, boolean rebuild) {
+        Path directory = directory(name);
+        if (!Files.isDirectory(directory)) {
+            throw new IllegalArgumentException("Export " + name + " doesn't exist");
+        }
+        return backgroundJobs.submit("import", name, () -> {
+            Set<String> channels = ConcurrentHashMap.newKeySet();
+            Set<String> guilds = ConcurrentHashMap.newKeySet();
+            Map<String, Long> read = new ConcurrentHashMap<>();
+            Map<String, Future<AtomicLong>> imports = new LinkedHashMap<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+                for (Path file : files) {
+                    String fileName = file.getFileName().toString();
+                    imports.put(fileName, transferExecutor.submit(() -> {
+                        AtomicLong persisted = new AtomicLong();
+                        read.put(fileName, importFile(file, channels, guilds, persisted));
+                        return persisted;
+                    }));
+                }
+            }
+            Map<String, AtomicLong> persisted = collect(imports);
+            datastoreWriteBuffer.flush();
+            Map<String, Long> imported = new LinkedHashMap<>();
+            persisted.forEach((file, count) -> imported.put(file, count.get()));
+            long dropped = read.values().stream().mapToLong(Long::longValue).sum()
+                    - imported.values().stream().mapToLong(Long::longValue).sum();
+            if (dropped > 0) {
+                throw new IllegalStateException("Unable to write " + dropped + " imported entities of " + name);
+            }
+            if (rebuild) {
+                for (String channel : channels) {
+                    channelStatsStore.rebuild(channel);
+                }
+                for (String guild : guilds) {
+                    recount(guild);
+                }
+            }
+            return imported;
+        });
+    }
+
+    @PreDestroy
+    public void close() {
+        transferExecutor.shutdownNow();
+    }
+
+    /**
+     * Recounts the counters of the guild kept from live events, like a restarted initial load: mention and
+     * emoji rankings, sketches and engagement are cleared and every stored message of the guild's channels
+     * is counted again, then the author ranking is rebuilt. Channel stats and rollups are rebuilt before.
+     */
+    private void recount(String guild) throws InterruptedException {
+        guildStatsStore.clear(guild, GuildStatsStore.Ranking.EMOJIS, GuildStatsStore.Ranking.MENTIONS);
+        if (sketchStore.isEnabled()) {
+            sketchStore.clear(guild);
+        }
+        if (engagementStore.isEnabled()) {
+            engagementStore.clear(guild);
+        }
+        for (String channel : channelStatsStore.getGuildChannels(guild)) {
+            datastoreClient.streamStoredMessages(channel)
+                    .doOnNext(msg -> {
+                        guildStatsStore.recordStored(msg, guild);
+                        sketchStore.recordStored(msg);
+                        engagementStore.recordStored(msg);
+                    })
+                    .blockLast();
+        }
+        guildStatsStore.rebuildAuthors(guild);
+        log.info("Recounted stats of guild [{}]", guild);
+    }
+
+    private long export(Path directory, String kind, Flux<Entity> entities) throws IOException {
+        long exported = 0;
+        Writer writer = null;
+        try {
+            for (Entity entity : entities.toIterable()) {
+                if (exported % properties.getExportChunkSize() == 0) {
+                    if (writer != null) {
+                        writer.close();
+                    }
+                    Path chunk = directory.resolve(String.format("%s-%05d%s", kind, exported / properties.getExportChunkSize(), SUFFIX));
+                    writer = new BufferedWriter(new OutputStreamWriter(
+                            new GZIPOutputStream(Files.newOutputStream(chunk), BUFFER_SIZE), StandardCharsets.UTF_8), BUFFER_SIZE);
+                }
+                writer.write(objectMapper.writeValueAsString(EntityJson.toJson(entity)));
+                writer.write('\n');
+                exported++;
+            }
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+        meterRegistry.counter("datastore.export.entities", "kind", kind).increment(exported);
+        log.info("Exported {} {} entities to {}", exported, kind, directory);
+        return exported;
+    }
+
+    /**
+     * @param persisted counts the entities once the write buffer persisted them
+     * @return the number of entities read from the file
+     */
+    private long importFile(Path file, Set<String> channels, Set<String> guilds, AtomicLong persisted) throws IOException {
+        String kind = file.getFileName().toString().replaceFirst("-\\d+" + Pattern.quote(SUFFIX) + "$", "");
+        KeyFactory keyFactory = datastore.newKeyFactory().setKind(kind);
+        long imported = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(file), BUFFER_SIZE), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                Entity entity = EntityJson.fromJson(objectMapper.readTree(line), keyFactory);
+                if ("message".equals(kind)) {
+                    channels.add(entity.getString("channel"));
+                    if (entity.contains("guild")) {
+                        guilds.add(entity.getString("guild"));
+                    }
+                }
+                datastoreWriteBuffer.write(entity, persisted::incrementAndGet);
+                imported++;
+            }
+        }
+        meterRegistry.counter("datastore.import.entities", "kind", kind).increment(imported);
+        log.info("Imported {} {} entities from {}", imported, kind, file);
+        return imported;
+    }
+
+    private Path directory(String name) {
+        if (!NAME.matcher(name).matches() || name.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid export name " + name);
+        }
+        return Paths.get(properties.getExportDir()).resolve(name);
+    }
+
+    /**
+     * Snowflake ids of exported messages, kept as numbers rather than strings.
+     */
+    private static final class MessageIds {
+
+        private long[] ids = new long[1024];
+        private int size;
+
+        private void add(String id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = Long.parseLong(id);
+        }
+
+        private Flux<String> stream() {
+            return Flux.range(0, size).map(i -> Long.toString(ids[i]));
+        }
+    }
+
+    private static <T> Map<String, T> collect(Map<String, Future<T>> futures) throws Exception {
+        Map<String, T> counts = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<String, Future<T>> future : futures.entrySet()) {
+                counts.put(future.getKey(), future.getValue().get());
+            }
+        } catch (ExecutionException e) {
+            futures.values().forEach(future -> future.cancel(true));
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+        return counts;
+    }
+}
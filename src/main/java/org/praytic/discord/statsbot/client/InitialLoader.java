@@ -0,0 +1,211 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.mewna.catnip.Catnip;
+import com.mewna.catnip.entity.channel.Channel;
+import com.mewna.catnip.entity.channel.GuildChannel;
+import com.mewna.catnip.entity.message.Message;
+import com.mewna.catnip.rest.ResponseException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Completable;
+import io.reactivex.schedulers.Schedulers;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.analytics.MessageAnalytics;
+import org.praytic.discord.statsbot.config.properties.BotProperties;
+import org.praytic.discord.statsbot.model.ChannelLoadStatus;
+import org.praytic.discord.statsbot.model.InitialLoadStatus;
+import org.praytic.discord.statsbot.model.LoadState;
+import org.praytic.discord.statsbot.storage.MessageStore;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the message history of all text channels of a guild. Channels are fetched with bounded
+ * concurrency and a shared page rate, and every channel keeps a checkpoint in {@link LoadCheckpoints}
+ * with the oldest persisted message, so an interrupted load continues from where it stopped.
+ * <p>
+ * Pages are requested through the {@link RestGateway} at backfill priority, so they share the channel's
+ * message bucket with the catch-up sync and yield to interactive requests. Each page waits for the
+ * shared page rate before it is requested, on the loading thread rather than a Catnip thread.
+ */
+@Slf4j
+@Component
+public class InitialLoader {
+
+    private static final int PAGE_SIZE = 100;
+    private static final int CHECKPOINT_INTERVAL = 1000;
+
+    private final Catnip catnip;
+    private final LoadCheckpoints loadCheckpoints;
+    private final MessageStore messageStore;
+    private final ChannelStatsStore channelStatsStore;
+    private final GuildStatsStore guildStatsStore;
+    private final SketchStore sketchStore;
+    private final EngagementStore engagementStore;
+    private final SyncCheckpoints syncCheckpoints;
+    private final SeenMessages seenMessages;
+    private final MessageAnalytics messageAnalytics;
+    private final BotProperties botProperties;
+    private final RestGateway restGateway;
+    private final RateLimiter pageRateLimiter;
+    private final Timer rateLimitWaits;
+    private final Map<String, InitialLoadStatus> statuses = new ConcurrentHashMap<>();
+
+    public InitialLoader(Catnip catnip, LoadCheckpoints loadCheckpoints, MessageStore messageStore,
+                         ChannelStatsStore channelStatsStore, GuildStatsStore guildStatsStore,
+                         SketchStore sketchStore, EngagementStore engagementStore,
+                         SyncCheckpoints syncCheckpoints, SeenMessages seenMessages,
+                         MessageAnalytics messageAnalytics,
+                         BotProperties botProperties, RestGateway restGateway, MeterRegistry meterRegistry) {
+        this.catnip = catnip;
+        this.loadCheckpoints = loadCheckpoints;
+        this.messageStore = messageStore;
+        this.channelStatsStore = channelStatsStore;
+        this.guildStatsStore = guildStatsStore;
+        this.sketchStore = sketchStore;
+        this.engagementStore = engagementStore;
+        this.syncCheckpoints = syncCheckpoints;
+        this.seenMessages = seenMessages;
+        this.messageAnalytics = messageAnalytics;
+        this.botProperties = botProperties;
+        this.restGateway = restGateway;
+        this.pageRateLimiter = RateLimiter.create(botProperties.getInitialLoadPagesPerSecond());
+        this.rateLimitWaits = meterRegistry.timer("bot.initial-load.rate-limit.wait");
+    }
+
+    /**
+     * Starts loading the guild unless a load of it is already running.
+     *
+     * @param restart ignore existing checkpoints and load every channel from the newest message
+     */
+    public InitialLoadStatus start(String guild, boolean restart) {
+        InitialLoadStatus status = new InitialLoadStatus(guild);
+        InitialLoadStatus current = statuses.compute(guild, (key, previous) ->
+                previous != null && previous.getState() == LoadState.RUNNING ? previous : status);
+        if (current != status) {
+            log.info("Initial load of guild {} is already running", guild);
+            return current;
+        }
+
+        if (restart) {
+            // Mentions, reactions and sketches of the whole history are counted again. Channel stats and
+            // rollups need no clearing, they are recounted from the stored messages once a channel is loaded.
+            guildStatsStore.clear(guild, GuildStatsStore.Ranking.EMOJIS, GuildStatsStore.Ranking.MENTIONS);
+            if (sketchStore.isEnabled()) {
+                sketchStore.clear(guild);
+            }
+            if (engagementStore.isEnabled()) {
+                engagementStore.clear(guild);
+            }
+        }
+        restGateway.fetchAll("guild-channels", guild, guild, RestGateway.Priority.BACKFILL,
+                        () -> catnip.rest().guild().getGuildChannels(guild))
+                .filter(Channel::isText)
+                .doOnNext(channel -> status.getChannels().put(channel.id(), new ChannelLoadStatus(channel.name())))
+                .toFlowable(BackpressureStrategy.BUFFER)
+                .flatMapCompletable(channel -> loadChannel(channel, status.getChannels().get(channel.id()), restart),
+                        false, botProperties.getInitialLoadConcurrency())
+                .andThen(Completable.fromAction(() -> guildStatsStore.rebuildAuthors(guild)))
+                .subscribe(() -> {
+                    status.setState(LoadState.COMPLETED);
+                    status.setFinishedAt(Instant.now());
+                    log.info("Initial load of guild {} completed", guild);
+                }, error -> {
+                    status.setState(LoadState.FAILED);
+                    status.setFinishedAt(Instant.now());
+                    log.error("Error occurred during initial load of guild {}.", guild, error);
+                });
+        return status;
+    }
+
+    @Nullable
+    public InitialLoadStatus getStatus(String guild) {
+        return statuses.get(guild);
+    }
+
+    private Completable loadChannel(GuildChannel channel, ChannelLoadStatus channelStatus, boolean restart) {
+        return Completable.fromAction(() -> {
+            LoadCheckpoints.Checkpoint checkpoint = restart ? null : loadCheckpoints.get(channel.id());
+            if (checkpoint != null && checkpoint.isComplete()) {
+                log.info("Channel {}:{} in guild {} is already loaded", channel.name(), channel.id(), channel.guildId());
+                channelStatus.setState(LoadState.SKIPPED);
+                return;
+            }
+
+            String oldestMessage = checkpoint == null ? null : checkpoint.getOldestMessage();
+            long loadedBefore = checkpoint == null ? 0 : checkpoint.getMessagesCount();
+            log.info("Updating channel {}:{} in guild {} starting before message {}",
+                    channel.name(), channel.id(), channel.guildId(), oldestMessage);
+            channelStatus.setState(LoadState.RUNNING);
+
+            while (true) {
+                double waited = pageRateLimiter.acquire();
+                rateLimitWaits.record((long) (waited * 1_000_000), TimeUnit.MICROSECONDS);
+                String before = oldestMessage;
+                List<Message> page = new ArrayList<>(PAGE_SIZE);
+                restGateway.stream("channel-messages", channel.id(), RestGateway.Priority.BACKFILL, () ->
+                        catnip.rest().channel().getChannelMessages(channel.id(), before, null, null, PAGE_SIZE))
+                        .blockingForEach(page::add);
+                // The history is loaded from the newest message backwards.
+                page.sort(Comparator.comparingLong((Message msg) -> Long.parseLong(msg.id())).reversed());
+                for (Message msg : page) {
+                    uploadMessage(msg, channel.guildId(), restart);
+                    oldestMessage = msg.id();
+                    long cur = channelStatus.getMessagesProcessed().incrementAndGet();
+                    if (cur % CHECKPOINT_INTERVAL == 0) {
+                        loadCheckpoints.save(channel.id(), channel.guildId(), oldestMessage, loadedBefore + cur, false);
+                        log.info("Messages processed for guild {} in channel {}:{} - {}",
+                                channel.guildId(), channel.name(), channel.id(), cur);
+                    }
+                }
+                if (page.size() < PAGE_SIZE) {
+                    break;
+                }
+            }
+            long total = loadedBefore + channelStatus.getMessagesProcessed().get();
+            loadCheckpoints.save(channel.id(), channel.guildId(), oldestMessage, total, true);
+            channelStatsStore.rebuild(channel.id());
+            channelStatus.setState(LoadState.COMPLETED);
+            log.info("Total messages processed for guild {} in channel {}:{} - {}",
+                    channel.guildId(), channel.name(), channel.id(), total);
+        }).subscribeOn(Schedulers.io()).onErrorComplete(error -> {
+            channelStatus.setState(LoadState.FAILED);
+            if (error instanceof ResponseException) {
+                ResponseException e = (ResponseException) error;
+                log.warn("Unable to fetch channel {}:{}. Error code {}. Reason: {}",
+                        channel.name(), channel.id(), e.statusCode(), e.statusMessage());
+            } else {
+                log.error("Error occurred during initial load of channel {}:{}.", channel.name(), channel.id(), error);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * @param restart the whole history is loaded again, so messages are stored and counted even if seen recently
+     */
+    private void uploadMessage(Message msg, String guildId, boolean restart) {
+        if (!seenMessages.markSeen(msg.id()) && !restart) {
+            return;
+        }
+        msg.reactions().forEach(reaction -> messageStore.saveReaction(reaction, msg));
+        msg.mentionedUsers().forEach(mention -> messageStore.saveMention(mention, msg));
+        msg.attachments().forEach(attachment -> messageStore.saveAttachment(attachment, msg));
+        messageStore.saveMessage(msg, guildId, null);
+        messageAnalytics.record(msg);
+        guildStatsStore.recordLoaded(msg, guildId);
+        sketchStore.recordMessage(msg, guildId);
+        engagementStore.recordMessage(msg, guildId);
+        syncCheckpoints.track(msg, guildId);
+    }
+}
@@ -0,0 +1,74 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import org.praytic.discord.statsbot.storage.MessageStore;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+
+/**
+ * Progress of the initial load per channel, stored as {@code channel-checkpoint} entities keyed by channel.
+ * The history is loaded from the newest message backwards, so a checkpoint holds the oldest loaded message.
+ * A checkpoint is written only after the messages before it are persisted, so a resumed load never skips
+ * messages.
+ */
+@RequiredArgsConstructor
+@Component
+public class LoadCheckpoints {
+
+    static final String KIND = "channel-checkpoint";
+
+    private final Datastore datastore;
+    private final MessageStore messageStore;
+
+    /**
+     * @return the stored checkpoint of the channel, {@code null} when its load never stored one
+     */
+    @Nullable
+    public Checkpoint get(String channel) {
+        Entity checkpoint = datastore.get(key(channel));
+        if (checkpoint == null) {
+            return null;
+        }
+        String oldestMessage = checkpoint.contains("oldestMessage") ? checkpoint.getString("oldestMessage") : null;
+        return new Checkpoint(oldestMessage, checkpoint.getLong("messagesCount"), checkpoint.getBoolean("complete"));
+    }
+
+    /**
+     * Flushes the messages stored so far, then stores the checkpoint.
+     */
+    public void save(String channel, String guild, @Nullable String oldestMessage, long messagesCount, boolean complete) {
+        try {
+            messageStore.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while flushing messages of channel " + channel, e);
+        }
+        Entity.Builder checkpoint = Entity.newBuilder(key(channel))
+                .set("guild", guild)
+                .set("messagesCount", messagesCount)
+                .set("complete", complete)
+                .set("updated", Timestamp.now());
+        if (oldestMessage != null) {
+            checkpoint.set("oldestMessage", oldestMessage);
+        }
+        datastore.put(checkpoint.build());
+    }
+
+    private Key key(String channel) {
+        return datastore.newKeyFactory().setKind(KIND).newKey(channel);
+    }
+
+    @Value
+    public static class Checkpoint {
+        @Nullable
+        String oldestMessage;
+        long messagesCount;
+        boolean complete;
+    }
+}
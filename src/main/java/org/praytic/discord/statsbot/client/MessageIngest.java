@@ -0,0 +1,63 @@
+package org.praytic.discord.statsbot.client;
+
+import com.mewna.catnip.entity.message.Message;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.analytics.MessageAnalytics;
+import org.praytic.discord.statsbot.storage.MessageStore;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import java.time.ZoneOffset;
+
+/**
+ * Persists a new message and adds it to every counter, for messages received over the gateway and
+ * messages fetched by the catch-up sync alike.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class MessageIngest {
+
+    private final MessageStore messageStore;
+    private final ChannelStatsStore channelStatsStore;
+    private final GuildStatsStore guildStatsStore;
+    private final SketchStore sketchStore;
+    private final EngagementStore engagementStore;
+    private final MessageAnalytics messageAnalytics;
+    private final ChannelStatsCache channelStatsCache;
+    private final UserNameResolver userNameResolver;
+    private final SyncCheckpoints syncCheckpoints;
+    private final SeenMessages seenMessages;
+
+    /**
+     * Messages seen recently are skipped.
+     *
+     * @param guild       guild of the channel, messages fetched over REST carry none
+     * @param onPersisted called once the message is stored
+     */
+    public void ingest(Message msg, @Nullable String guild, @Nullable Runnable onPersisted) {
+        if (!seenMessages.markSeen(msg.id())) {
+            log.debug("Skipping duplicate message {}", msg.id());
+            return;
+        }
+        String guildId = msg.guildId() != null ? msg.guildId() : guild;
+        // Gateway messages are new and have no reactions yet, fetched ones may have.
+        msg.reactions().forEach(reaction -> messageStore.saveReaction(reaction, msg));
+        msg.attachments().forEach(attachment -> messageStore.saveAttachment(attachment, msg));
+        messageStore.saveMessage(msg, guildId, onPersisted);
+        msg.mentionedUsers().forEach(mention -> messageStore.saveMention(mention, msg));
+        channelStatsStore.record(msg);
+        guildStatsStore.recordMessage(msg, guildId);
+        sketchStore.recordMessage(msg, guildId);
+        engagementStore.recordMessage(msg, guildId);
+        if (messageAnalytics.isEnabled()) {
+            messageAnalytics.record(msg);
+            long day = msg.timestamp().atZoneSameInstant(ZoneOffset.UTC).toLocalDate().toEpochDay();
+            channelStatsCache.invalidate(msg.channelId(), "all",
+                    (ChannelTotals totals) -> totals.withMessage(msg.author().id(), day));
+        }
+        userNameResolver.remember(msg.author());
+        syncCheckpoints.track(msg, guildId);
+    }
+}
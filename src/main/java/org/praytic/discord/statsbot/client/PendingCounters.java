@@ -0,0 +1,132 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.cloud.datastore.DatastoreException;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Striped;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Changes to stored counters collected in memory by key, which a scheduled flush applies to Datastore.
+ * A flush takes the pending changes of a batch of keys and writes them in one transaction. Changes of a
+ * failed transaction are merged back with the ones collected since, so the next flush retries them.
+ * <p>
+ * Keys may belong to a scope, e.g. a channel, which a flush locks while it writes changes of its keys.
+ * A rebuild that replaces the counters of a scope takes the lock in {@link #exclusive(Object, Runnable)},
+ * so a flush that already took changes can't commit them over the rebuilt counters.
+ */
+@Slf4j
+final class PendingCounters<K, V> {
+
+    private final String name;
+    private final int batchSize;
+    private final BinaryOperator<V> merge;
+    @Nullable
+    private final Function<? super K, ?> scope;
+    private final Map<K, V> pending = new ConcurrentHashMap<>();
+    private final Striped<Lock> locks = Striped.lock(64);
+
+    PendingCounters(String name, int batchSize, BinaryOperator<V> merge) {
+        this(name, batchSize, merge, null);
+    }
+
+    /**
+     * @param name what the counters are, for logging
+     * @param batchSize keys written in one transaction
+     * @param merge merges changes of the same key, the first argument may be updated and returned
+     * @param scope scope of a key, locked while its changes are flushed
+     */
+    PendingCounters(String name, int batchSize, BinaryOperator<V> merge, @Nullable Function<? super K, ?> scope) {
+        this.name = name;
+        this.batchSize = batchSize;
+        this.merge = merge;
+        this.scope = scope;
+    }
+
+    V compute(K key, BiFunction<? super K, ? super V, ? extends V> update) {
+        return pending.compute(key, update);
+    }
+
+    void merge(K key, V value) {
+        pending.merge(key, value, merge);
+    }
+
+    void removeIf(BiPredicate<? super K, ? super V> filter) {
+        pending.entrySet().removeIf(entry -> filter.test(entry.getKey(), entry.getValue()));
+    }
+
+    /**
+     * Runs the action while no flush writes changes of the scope. Flushes check which keys to skip under the
+     * same lock, so a scope marked for skipping in the action isn't flushed once it returns.
+     */
+    void exclusive(Object scope, Runnable action) {
+        Lock lock = locks.get(scope);
+        lock.lock();
+        try {
+            action.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void flush(Consumer<Map<K, V>> write) {
+        flush(key -> false, write);
+    }
+
+    /**
+     * @param skip keys to leave pending
+     * @param write writes the changes of a batch, a {@link DatastoreException} leaves them pending
+     */
+    void flush(Predicate<? super K> skip, Consumer<Map<K, V>> write) {
+        for (List<K> keys : Lists.partition(new ArrayList<>(pending.keySet()), batchSize)) {
+            // Striped returns the locks in a consistent order, so concurrent flushes don't deadlock.
+            Iterable<Lock> batchLocks = scope == null
+                    ? Collections.<Lock>emptyList()
+                    : locks.bulkGet(keys.stream().map(scope).collect(Collectors.toSet()));
+            batchLocks.forEach(Lock::lock);
+            try {
+                flush(keys, skip, write);
+            } finally {
+                batchLocks.forEach(Lock::unlock);
+            }
+        }
+    }
+
+    private void flush(List<K> keys, Predicate<? super K> skip, Consumer<Map<K, V>> write) {
+        Map<K, V> batch = new LinkedHashMap<>();
+        for (K key : keys) {
+            if (skip.test(key)) {
+                continue;
+            }
+            V value = pending.remove(key);
+            if (value != null) {
+                batch.put(key, value);
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            write.accept(batch);
+        } catch (DatastoreException e) {
+            log.warn("Unable to update {} {} starting with [{}], will retry. Reason: {}",
+                    batch.size(), name, batch.keySet().iterator().next(), e.getMessage());
+            batch.forEach(this::merge);
+        }
+    }
+}
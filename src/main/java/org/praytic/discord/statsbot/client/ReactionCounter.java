@@ -0,0 +1,211 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.cloud.datastore.*;
+import com.mewna.catnip.entity.message.Message;
+import com.mewna.catnip.entity.message.ReactionUpdate;
+import com.mewna.catnip.shard.DiscordEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.config.properties.DatastoreProperties;
+import org.praytic.discord.statsbot.storage.MessageCodec;
+import org.praytic.discord.statsbot.storage.MessageFormat;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts live reactions. Added and removed reactions are merged in memory per message and emoji,
+ * and the net change is periodically applied to the {@code reaction} entities in transactions,
+ * so a burst of reactions on one message costs a single write. In the compact format the entities hold
+ * changes to the counts embedded in the message, so a negative count is kept rather than deleted.
+ * <p>
+ * In the entities format the counts of reactions fetched with their message, e.g. by the initial load,
+ * are applied here too rather than written over the entity. A fetched count already includes the live
+ * reactions counted before, so the stored count becomes the larger of both, and changes counted after
+ * it was observed are added on top.
+ */
+@Slf4j
+@Component
+public class ReactionCounter {
+
+    private static final int MAX_BATCH_SIZE = 500;
+
+    private final Datastore datastore;
+    private final DatastoreClient datastoreClient;
+    private final DatastoreProperties datastoreProperties;
+    private final PendingCounters<Key, PendingReaction> pending = new PendingCounters<>("reaction counts", MAX_BATCH_SIZE, PendingReaction::merge);
+    private final Timer addPersistTimer;
+    private final Timer removePersistTimer;
+    private final Timer transactionTimer;
+
+    public ReactionCounter(Datastore datastore, DatastoreClient datastoreClient, DatastoreProperties datastoreProperties,
+                           MeterRegistry meterRegistry) {
+        this.datastore = datastore;
+        this.datastoreClient = datastoreClient;
+        this.datastoreProperties = datastoreProperties;
+        this.addPersistTimer = meterRegistry.timer("bot.event.persist", "event", DiscordEvent.MESSAGE_REACTION_ADD.key());
+        this.removePersistTimer = meterRegistry.timer("bot.event.persist", "event", DiscordEvent.MESSAGE_REACTION_REMOVE.key());
+        this.transactionTimer = meterRegistry.timer("datastore.transaction", "kind", "reaction");
+    }
+
+    public void add(ReactionUpdate reaction) {
+        record(reaction, 1);
+    }
+
+    public void remove(ReactionUpdate reaction) {
+        record(reaction, -1);
+    }
+
+    /**
+     * Records the count of a reaction fetched with its message.
+     */
+    public void observe(Message.Reaction reaction, Message msg) {
+        String emoji = MessageCodec.emojiKey(reaction.emoji());
+        pending.compute(datastoreClient.reactionKey(emoji, msg.id()), (key, pendingReaction) -> {
+            if (pendingReaction == null) {
+                pendingReaction = new PendingReaction(emoji, msg.id());
+            }
+            pendingReaction.observe(reaction.count());
+            return pendingReaction;
+        });
+    }
+
+    private void record(ReactionUpdate reaction, long delta) {
+        String emoji = MessageCodec.emojiKey(reaction.emoji());
+        String msgId = reaction.messageId();
+        long received = System.nanoTime();
+        pending.compute(datastoreClient.reactionKey(emoji, msgId), (key, pendingReaction) -> {
+            if (pendingReaction == null) {
+                pendingReaction = new PendingReaction(emoji, msgId);
+            }
+            pendingReaction.delta += delta;
+            if (delta > 0 && pendingReaction.firstAdded == 0) {
+                pendingReaction.firstAdded = received;
+            } else if (delta < 0 && pendingReaction.firstRemoved == 0) {
+                pendingReaction.firstRemoved = received;
+            }
+            return pendingReaction;
+        });
+    }
+
+    @Scheduled(fixedDelayString = "${datastore.stats-flush-delay:5000}")
+    public void flush() {
+        pending.flush(batch -> {
+            List<PendingReaction> reactions = new ArrayList<>(batch.values());
+            reactions.removeIf(reaction -> reaction.delta == 0 && reaction.observed < 0);
+            if (!reactions.isEmpty()) {
+                flush(reactions);
+            }
+        });
+    }
+
+    private void flush(List<PendingReaction> reactions) {
+        boolean compact = datastoreProperties.getMessageFormat() == MessageFormat.COMPACT;
+        transactionTimer.record(() -> datastore.runInTransaction(transaction -> {
+            Key[] keys = reactions.stream()
+                    .map(reaction -> datastoreClient.reactionKey(reaction.emoji, reaction.message))
+                    .toArray(Key[]::new);
+            List<Entity> entities = transaction.fetch(keys);
+            List<FullEntity<?>> updates = new ArrayList<>();
+            List<Key> deletes = new ArrayList<>();
+            for (int i = 0; i < keys.length; i++) {
+                Entity existing = entities.get(i);
+                long count = reactions.get(i).apply(existing == null ? 0 : existing.getLong("count"));
+                if (count > 0 || compact && count < 0) {
+                    updates.add(Entity.newBuilder(keys[i])
+                            .set("emoji", reactions.get(i).emoji)
+                            .set("count", count)
+                            .set("message", reactions.get(i).message)
+                            .build());
+                } else {
+                    deletes.add(keys[i]);
+                }
+            }
+            if (!updates.isEmpty()) {
+                transaction.put(updates.toArray(new FullEntity<?>[0]));
+            }
+            if (!deletes.isEmpty()) {
+                transaction.delete(deletes.toArray(new Key[0]));
+            }
+            return null;
+        }));
+        long persisted = System.nanoTime();
+        for (PendingReaction reaction : reactions) {
+            if (reaction.firstAdded != 0) {
+                addPersistTimer.record(persisted - reaction.firstAdded, TimeUnit.NANOSECONDS);
+            }
+            if (reaction.firstRemoved != 0) {
+                removePersistTimer.record(persisted - reaction.firstRemoved, TimeUnit.NANOSECONDS);
+            }
+        }
+        log.debug("Updated counts of {} reactions", reactions.size());
+    }
+
+    /**
+     * Turns a stored count {@code c} into {@code c + delta}, or once a count was observed into
+     * {@code max(c + before, observed) + delta}.
+     */
+    private static class PendingReaction {
+        private final String emoji;
+        private final String message;
+        private long before;
+        private long observed = -1;
+        private long delta;
+        private long firstAdded;
+        private long firstRemoved;
+
+        private PendingReaction(String emoji, String message) {
+            this.emoji = emoji;
+            this.message = message;
+        }
+
+        private void observe(long count) {
+            if (observed < 0) {
+                before = delta;
+                observed = count;
+            } else {
+                before += delta;
+                observed = Math.max(observed + delta, count);
+            }
+            delta = 0;
+        }
+
+        private long apply(long stored) {
+            return observed < 0 ? stored + delta : Math.max(stored + before, observed) + delta;
+        }
+
+        /**
+         * Puts the changes of a failed flush before the ones collected since.
+         */
+        private PendingReaction merge(PendingReaction older) {
+            if (older.observed < 0) {
+                if (observed < 0) {
+                    delta += older.delta;
+                } else {
+                    before += older.delta;
+                }
+            } else if (observed < 0) {
+                before = older.before;
+                observed = older.observed;
+                delta += older.delta;
+            } else {
+                observed = Math.max(older.observed + older.delta + before, observed);
+                before += older.before + older.delta;
+            }
+            firstAdded = earliest(firstAdded, older.firstAdded);
+            firstRemoved = earliest(firstRemoved, older.firstRemoved);
+            return this;
+        }
+
+        private static long earliest(long first, long second) {
+            if (first == 0 || second == 0) {
+                return first == 0 ? second : first;
+            }
+            return first - second < 0 ? first : second;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.reactivex.Completable;
+import io.reactivex.CompletableEmitter;
+import io.reactivex.Observable;
+import io.reactivex.Single;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.config.properties.BotProperties;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single entry point for Catnip REST calls. Like Discord's rate limits, requests are limited per bucket of
+ * a route and its major parameter, the channel or guild id, so backfilling one channel doesn't hold back
+ * the others. Every bucket is a token bucket of {@code bot.rest-route-rates} requests per second with a
+ * queue served in order of {@link Priority}, so interactive commands overtake backfill traffic waiting for
+ * the same bucket. All buckets are served by one dispatcher thread, idle buckets are retired.
+ * Catnip returns entities without the response headers, so Discord's {@code X-RateLimit-*} headers and
+ * 429 responses are still handled by Catnip's requester underneath, these rates keep requests below them.
+ * <p>
+ * Idempotent reads go through {@link #fetch} and {@link #fetchAll}: identical requests in flight share
+ * one call and results are served from a short-TTL cache. Calls are counted and timed per route as
+ * {@code discord.rest.requests}, the time spent in the route queue as {@code discord.rest.queue.wait}.
+ */
+@Slf4j
+@Component
+public class RestGateway {
+
+    public enum Priority {
+        INTERACTIVE,
+        BACKFILL
+    }
+
+    private final BotProperties properties;
+    private final MeterRegistry meterRegistry;
+    private static final long BUCKET_SWEEP_MINUTES = 1;
+
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final Map<String, Single<?>> inFlight = new ConcurrentHashMap<>();
+    private final Cache<String, Object> results;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Counter cacheHits;
+    private final Counter coalesced;
+    private final ScheduledExecutorService dispatcher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("rest-dispatcher").setDaemon(true).build());
+
+    public RestGateway(BotProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+        this.results = CacheBuilder.newBuilder()
+                .maximumSize(properties.getRestCacheSize())
+                .expireAfterWrite(properties.getRestCacheTtl())
+                .build();
+        this.cacheHits = meterRegistry.counter("discord.rest.cache.hits");
+        this.coalesced = meterRegistry.counter("discord.rest.coalesced");
+        dispatcher.scheduleWithFixedDelay(this::retireIdleBuckets, BUCKET_SWEEP_MINUTES, BUCKET_SWEEP_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Fetches a single entity, coalesced and cached by route and key.
+     *
+     * @param majorParameter channel or guild id the route's rate limit applies to, or null for a route without one
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Single<T> fetch(String route, @Nullable String majorParameter, String key, Priority priority,
+                               Callable<Single<T>> request) {
+        String cacheKey = route + ":" + key;
+        return Single.defer(() -> {
+            T cached = (T) results.getIfPresent(cacheKey);
+            if (cached != null) {
+                cacheHits.increment();
+                return Single.just(cached);
+            }
+            boolean[] created = new boolean[1];
+            Single<T> shared = (Single<T>) inFlight.computeIfAbsent(cacheKey, k -> {
+                created[0] = true;
+                return call(route, majorParameter, priority, request)
+                        .doOnSuccess(result -> results.put(k, result))
+                        .doFinally(() -> inFlight.remove(k))
+                        .cache();
+            });
+            if (!created[0]) {
+                coalesced.increment();
+            }
+            return shared;
+        });
+    }
+
+    /**
+     * Fetches a list of entities, coalesced and cached by route and key.
+     */
+    public <T> Observable<T> fetchAll(String route, @Nullable String majorParameter, String key, Priority priority,
+                                      Callable<Observable<T>> request) {
+        return this.<List<T>>fetch(route, majorParameter, key, priority, () -> request.call().toList())
+                .flattenAsObservable(items -> items);
+    }
+
+    /**
+     * Runs a request that must not be shared or cached, e.g. a page of messages.
+     */
+    public <T> Observable<T> stream(String route, @Nullable String majorParameter, Priority priority,
+                                    Callable<Observable<T>> request) {
+        return admit(route, majorParameter, priority).andThen(Observable.defer(() -> {
+            Timer.Sample sample = Timer.start(meterRegistry);
+            return request.call()
+                    .doOnComplete(() -> sample.stop(timer(route, "success")))
+                    .doOnError(error -> sample.stop(timer(route, "error")));
+        }));
+    }
+
+    public void invalidate(String route, String key) {
+        results.invalidate(route + ":" + key);
+    }
+
+    @PreDestroy
+    public void close() {
+        dispatcher.shutdownNow();
+    }
+
+    private <T> Single<T> call(String route, @Nullable String majorParameter, Priority priority, Callable<Single<T>> request) {
+        return admit(route, majorParameter, priority).andThen(Single.defer(() -> {
+            Timer.Sample sample = Timer.start(meterRegistry);
+            return request.call()
+                    .doOnSuccess(result -> sample.stop(timer(route, "success")))
+                    .doOnError(error -> sample.stop(timer(route, "error")));
+        }));
+    }
+
+    /**
+     * Completes once the bucket has a token for the request and no request of a higher priority waits.
+     */
+    private Completable admit(String route, @Nullable String majorParameter, Priority priority) {
+        String key = majorParameter == null ? route : route + ":" + majorParameter;
+        return Completable.create(emitter -> {
+            Ticket ticket = new Ticket(priority, sequence.incrementAndGet(), System.nanoTime(), emitter);
+            buckets.compute(key, (k, bucket) -> {
+                if (bucket == null) {
+                    bucket = new Bucket(k, route);
+                }
+                bucket.tickets.add(ticket);
+                if (!bucket.scheduled) {
+                    bucket.scheduled = true;
+                    dispatcher.execute(bucket);
+                }
+                return bucket;
+            });
+        });
+    }
+
+    /**
+     * Removes buckets without waiting requests once they are refilled, so a new bucket of the same key
+     * starting full doesn't exceed the rate.
+     */
+    private void retireIdleBuckets() {
+        for (String key : buckets.keySet()) {
+            buckets.computeIfPresent(key, (k, bucket) -> {
+                bucket.refill();
+                return bucket.scheduled || bucket.tokens < bucket.capacity ? bucket : null;
+            });
+        }
+    }
+
+    private double queueSize(String route) {
+        return buckets.values().stream()
+                .filter(bucket -> bucket.route.equals(route))
+                .mapToInt(bucket -> bucket.tickets.size())
+                .sum();
+    }
+
+    private Timer timer(String route, String outcome) {
+        return Timer.builder("discord.rest.requests")
+                .tag("route", route)
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Token bucket with the queue of its requests. Tokens are only touched by the dispatcher thread, requests
+     * are queued and {@code scheduled} is changed within {@code buckets.compute} of the bucket's key, so a
+     * request queued while the bucket is being served is never left without a scheduled run.
+     */
+    private final class Bucket implements Runnable {
+
+        private final String key;
+        private final String route;
+        private final double rate;
+        private final double capacity;
+        private final PriorityBlockingQueue<Ticket> tickets = new PriorityBlockingQueue<>();
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+        private boolean scheduled;
+
+        private Bucket(String key, String route) {
+            this.key = key;
+            this.route = route;
+            this.rate = properties.getRestRouteRates().getOrDefault(route, properties.getRestDefaultRate());
+            this.capacity = Math.max(1, rate);
+            this.tokens = capacity;
+            meterRegistry.gauge("discord.rest.queue.size", Tags.of("route", route), buckets, all -> queueSize(route));
+            log.debug("Started REST bucket {} at {} requests per second", key, rate);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+            refilledAt = now;
+        }
+
+        @Override
+        public void run() {
+            refill();
+            while (tokens >= 1) {
+                Ticket ticket = tickets.poll();
+                if (ticket == null) {
+                    break;
+                }
+                if (ticket.emitter.isDisposed()) {
+                    continue;
+                }
+                tokens--;
+                Timer.builder("discord.rest.queue.wait")
+                        .tag("route", route)
+                        .tag("priority", ticket.priority.name().toLowerCase())
+                        .register(meterRegistry)
+                        .record(System.nanoTime() - ticket.queuedAt, TimeUnit.NANOSECONDS);
+                ticket.emitter.onComplete();
+            }
+            buckets.compute(key, (k, bucket) -> {
+                if (tickets.isEmpty()) {
+                    scheduled = false;
+                } else {
+                    long delay = (long) Math.ceil(Math.max(0, 1 - tokens) / rate * TimeUnit.SECONDS.toNanos(1));
+                    dispatcher.schedule(this, delay, TimeUnit.NANOSECONDS);
+                }
+                return this;
+            });
+        }
+    }
+
+    private static final class Ticket implements Comparable<Ticket> {
+
+        private final Priority priority;
+        private final long sequence;
+        private final long queuedAt;
+        private final CompletableEmitter emitter;
+
+        private Ticket(Priority priority, long sequence, long queuedAt, CompletableEmitter emitter) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.queuedAt = queuedAt;
+            this.emitter = emitter;
+        }
+
+        @Override
+        public int compareTo(Ticket other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
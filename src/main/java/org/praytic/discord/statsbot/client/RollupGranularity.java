@@ -0,0 +1,60 @@
+package org.praytic.discord.statsbot.client;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Bucket sizes of the message rollups. Buckets are numbered from the epoch: hours and days since
+ * 1970-01-01 and calendar months since January 1970, all in UTC.
+ */
+public enum RollupGranularity {
+
+    HOUR {
+        @Override
+        public long bucket(long epochSecond) {
+            return Math.floorDiv(epochSecond, 3600);
+        }
+
+        @Override
+        public long start(long bucket) {
+            return bucket * 3600;
+        }
+    },
+    DAY {
+        @Override
+        public long bucket(long epochSecond) {
+            return Math.floorDiv(epochSecond, 86400);
+        }
+
+        @Override
+        public long start(long bucket) {
+            return bucket * 86400;
+        }
+    },
+    MONTH {
+        @Override
+        public long bucket(long epochSecond) {
+            LocalDateTime time = LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
+            return (time.getYear() - 1970) * 12L + time.getMonthValue() - 1;
+        }
+
+        @Override
+        public long start(long bucket) {
+            return EPOCH.plusMonths(bucket).toEpochDay() * 86400;
+        }
+    };
+
+    private static final LocalDate EPOCH = LocalDate.of(1970, 1, 1);
+
+    public abstract long bucket(long epochSecond);
+
+    /**
+     * @return epoch second at which the bucket starts
+     */
+    public abstract long start(long bucket);
+
+    public String key() {
+        return name().toLowerCase();
+    }
+}
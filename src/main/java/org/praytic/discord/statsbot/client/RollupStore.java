@@ -0,0 +1,260 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.cloud.datastore.*;
+import com.google.common.collect.Lists;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Message counters per channel and per channel author in hour, day and month buckets, so stats of
+ * a time window are read from the few coarsest buckets covering it instead of the message history.
+ * <ul>
+ *     <li>{@code channel-rollup} - messages per bucket, keyed by {@code channel:granularity:bucket}</li>
+ *     <li>{@code channel-author-rollup} - messages per bucket and author, keyed by {@code channel:granularity:bucket:author}</li>
+ * </ul>
+ * Live messages are counted in memory and added to the stored buckets by a scheduled flush, like
+ * {@link ChannelStatsStore}.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class RollupStore {
+
+    static final String CHANNEL_KIND = "channel-rollup";
+    static final String AUTHOR_KIND = "channel-author-rollup";
+    private static final int MAX_BATCH_SIZE = 500;
+
+    private final Datastore datastore;
+    private final MeterRegistry meterRegistry;
+    private final ChannelStatsCache channelStatsCache;
+    private final PendingCounters<Bucket, Long> pending =
+            new PendingCounters<>("rollup buckets", MAX_BATCH_SIZE, Long::sum, Bucket::getChannel);
+    private final Set<String> held = ConcurrentHashMap.newKeySet();
+
+    public void record(String channel, String author, long epochSecond) {
+        add(pending::merge, channel, author, epochSecond, 1);
+    }
+
+    /**
+     * Adds a message to every bucket containing it.
+     */
+    public static void add(Map<Bucket, Long> buckets, String channel, String author, long epochSecond, long count) {
+        add((bucket, messages) -> buckets.merge(bucket, messages, Long::sum), channel, author, epochSecond, count);
+    }
+
+    private static void add(BiConsumer<Bucket, Long> buckets, String channel, String author, long epochSecond, long count) {
+        for (RollupGranularity granularity : RollupGranularity.values()) {
+            long bucket = granularity.bucket(epochSecond);
+            buckets.accept(new Bucket(channel, granularity, bucket, null), count);
+            buckets.accept(new Bucket(channel, granularity, bucket, author), count);
+        }
+    }
+
+    /**
+     * Counts the messages of the channel sent within {@code [fromSecond, toSecond)}. The bounds are
+     * rounded out to whole hours.
+     */
+    public WindowTotals getTotals(String channel, long fromSecond, long toSecond) {
+        long from = RollupGranularity.HOUR.start(RollupGranularity.HOUR.bucket(fromSecond));
+        long to = RollupGranularity.HOUR.start(RollupGranularity.HOUR.bucket(toSecond - 1) + 1);
+        List<BucketRange> ranges = new ArrayList<>();
+        cover(from, to, RollupGranularity.MONTH, ranges);
+
+        WindowTotals totals = new WindowTotals(from, to);
+        for (BucketRange range : ranges) {
+            queryTimer(CHANNEL_KIND).record(() -> datastore.run(rangeQuery(CHANNEL_KIND, channel, range))
+                    .forEachRemaining(entity -> totals.messagesCount += entity.getLong("messagesCount")));
+            queryTimer(AUTHOR_KIND).record(() -> datastore.run(rangeQuery(AUTHOR_KIND, channel, range))
+                    .forEachRemaining(entity -> totals.authors.merge(
+                            entity.getString("author"), entity.getLong("messagesCount"), Long::sum)));
+        }
+        log.debug("Read {} bucket ranges for channel [{}] between {} and {}", ranges.size(), channel, from, to);
+        return totals;
+    }
+
+    /**
+     * Discards the pending counts of the channel, which are about to be recounted, and keeps new ones
+     * from being flushed until {@link #release(String)}. Waits for a running flush of the channel.
+     */
+    public void hold(String channel) {
+        pending.exclusive(channel, () -> {
+            held.add(channel);
+            pending.removeIf((bucket, count) -> bucket.getChannel().equals(channel));
+        });
+    }
+
+    public void release(String channel) {
+        held.remove(channel);
+    }
+
+    /**
+     * Replaces all buckets of the channel with the given counts, while the channel is held.
+     */
+    public void replace(String channel, Map<Bucket, Long> buckets) {
+        Set<Key> keys = new HashSet<>();
+        buckets.keySet().forEach(bucket -> keys.add(key(bucket)));
+        deleteStale(CHANNEL_KIND, channel, keys);
+        deleteStale(AUTHOR_KIND, channel, keys);
+        List<FullEntity<?>> entities = new ArrayList<>(buckets.size());
+        buckets.forEach((bucket, count) -> entities.add(entity(bucket, null, count)));
+        for (List<FullEntity<?>> batch : Lists.partition(entities, MAX_BATCH_SIZE)) {
+            transactionTimer().record(() -> datastore.runInTransaction(transaction -> {
+                transaction.put(batch.toArray(new FullEntity<?>[0]));
+                return null;
+            }));
+        }
+        log.info("Rebuilt {} rollup buckets for channel [{}]", buckets.size(), channel);
+    }
+
+    @Scheduled(fixedDelayString = "${datastore.stats-flush-delay:5000}")
+    public void flush() {
+        pending.flush(bucket -> held.contains(bucket.getChannel()), batch -> {
+            List<Bucket> buckets = new ArrayList<>(batch.keySet());
+            transactionTimer().record(() -> datastore.runInTransaction(transaction -> {
+                List<Entity> existing = transaction.fetch(buckets.stream().map(this::key).toArray(Key[]::new));
+                List<FullEntity<?>> updates = new ArrayList<>(buckets.size());
+                for (int i = 0; i < buckets.size(); i++) {
+                    updates.add(entity(buckets.get(i), existing.get(i), batch.get(buckets.get(i))));
+                }
+                transaction.put(updates.toArray(new FullEntity<?>[0]));
+                return null;
+            }));
+            buckets.stream().map(Bucket::getChannel).distinct().forEach(channelStatsCache::invalidate);
+        });
+    }
+
+    /**
+     * Covers {@code [from, to)} with whole buckets, using the coarsest granularity that fits and
+     * finer ones only at the edges.
+     */
+    static void cover(long from, long to, RollupGranularity granularity, List<BucketRange> ranges) {
+        if (from >= to) {
+            return;
+        }
+        if (granularity == RollupGranularity.HOUR) {
+            ranges.add(new BucketRange(granularity, granularity.bucket(from), granularity.bucket(to)));
+            return;
+        }
+        RollupGranularity finer = RollupGranularity.values()[granularity.ordinal() - 1];
+        long firstBucket = granularity.bucket(from);
+        if (granularity.start(firstBucket) < from) {
+            firstBucket++;
+        }
+        long lastBucket = granularity.bucket(to);
+        if (firstBucket >= lastBucket) {
+            cover(from, to, finer, ranges);
+            return;
+        }
+        cover(from, granularity.start(firstBucket), finer, ranges);
+        ranges.add(new BucketRange(granularity, firstBucket, lastBucket));
+        cover(granularity.start(lastBucket), to, finer, ranges);
+    }
+
+    private Query<Entity> rangeQuery(String kind, String channel, BucketRange range) {
+        return Query.newGqlQueryBuilder(
+                Query.ResultType.ENTITY,
+                "SELECT * FROM `" + kind + "` WHERE channel=@channel AND granularity=@granularity " +
+                        "AND bucket>=@from AND bucket<@to")
+                .setBinding("channel", channel)
+                .setBinding("granularity", range.getGranularity().key())
+                .setBinding("from", range.getFrom())
+                .setBinding("to", range.getTo())
+                .build();
+    }
+
+    private void deleteStale(String kind, String channel, Set<Key> actual) {
+        Query<Key> query = Query.newGqlQueryBuilder(
+                Query.ResultType.KEY,
+                "SELECT __key__ FROM `" + kind + "` WHERE channel=@channel")
+                .setBinding("channel", channel)
+                .build();
+        List<Key> stale = new ArrayList<>();
+        datastore.run(query).forEachRemaining(key -> {
+            if (!actual.contains(key)) {
+                stale.add(key);
+            }
+        });
+        Lists.partition(stale, MAX_BATCH_SIZE).forEach(keys -> datastore.delete(keys.toArray(new Key[0])));
+    }
+
+    private Key key(Bucket bucket) {
+        String name = bucket.getChannel() + ":" + bucket.getGranularity().key() + ":" + bucket.getBucket();
+        if (bucket.getAuthor() == null) {
+            return datastore.newKeyFactory().setKind(CHANNEL_KIND).newKey(name);
+        }
+        return datastore.newKeyFactory().setKind(AUTHOR_KIND).newKey(name + ":" + bucket.getAuthor());
+    }
+
+    private FullEntity<Key> entity(Bucket bucket, @Nullable Entity existing, long messages) {
+        long stored = existing != null && existing.contains("messagesCount") ? existing.getLong("messagesCount") : 0;
+        Entity.Builder builder = Entity.newBuilder(key(bucket))
+                .set("channel", bucket.getChannel())
+                .set("granularity", bucket.getGranularity().key())
+                .set("bucket", bucket.getBucket())
+                .set("messagesCount", messages + stored);
+        if (bucket.getAuthor() != null) {
+            builder.set("author", bucket.getAuthor());
+        }
+        return builder.build();
+    }
+
+    private Timer queryTimer(String kind) {
+        return Timer.builder("datastore.query").tag("kind", kind).register(meterRegistry);
+    }
+
+    private Timer transactionTimer() {
+        return Timer.builder("datastore.transaction").tag("kind", CHANNEL_KIND).register(meterRegistry);
+    }
+
+    /**
+     * A rollup bucket of the channel, or of one of its authors when {@code author} is set.
+     */
+    @Value
+    public static class Bucket {
+        String channel;
+        RollupGranularity granularity;
+        long bucket;
+        @Nullable
+        String author;
+    }
+
+    /**
+     * Buckets {@code [from, to)} of one granularity.
+     */
+    @Value
+    static class BucketRange {
+        RollupGranularity granularity;
+        long from;
+        long to;
+    }
+
+    @Getter
+    public static class WindowTotals {
+        /**
+         * Epoch second of the start of the window after rounding.
+         */
+        private final long from;
+        /**
+         * Epoch second of the end of the window after rounding.
+         */
+        private final long to;
+        private long messagesCount;
+        private final Map<String, Long> authors = new HashMap<>();
+
+        private WindowTotals(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.praytic.discord.statsbot.config.properties.BotProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded set of recently ingested message ids, so a message delivered by more than one source,
+ * e.g. the gateway and an overlapping catch-up or a resumed initial load, is stored and counted once.
+ * Only the least recently seen ids are forgotten, an unknown message is never skipped.
+ */
+@Component
+public class SeenMessages {
+
+    private final Cache<Long, Boolean> seen;
+    private final Counter duplicates;
+
+    public SeenMessages(BotProperties botProperties, MeterRegistry meterRegistry) {
+        this.seen = CacheBuilder.newBuilder()
+                .maximumSize(botProperties.getSeenMessagesSize())
+                .build();
+        this.duplicates = meterRegistry.counter("bot.ingest.duplicates");
+    }
+
+    /**
+     * @return {@code true} if the message wasn't seen recently
+     */
+    public boolean markSeen(String messageId) {
+        boolean added = seen.asMap().putIfAbsent(Long.parseLong(messageId), Boolean.TRUE) == null;
+        if (!added) {
+            duplicates.increment();
+        }
+        return added;
+    }
+}
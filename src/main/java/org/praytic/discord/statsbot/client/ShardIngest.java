@@ -0,0 +1,65 @@
+package org.praytic.discord.statsbot.client;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ingest pipelines of the shards run by this process. Every shard has its own bounded pool, so a
+ * busy shard slows down only its own event consumption. Events are counted in {@code bot.shard.events}
+ * and the time they wait in the queue is recorded in {@code bot.shard.ingest.lag}, both tagged by shard.
+ */
+@Slf4j
+public class ShardIngest {
+
+    private final int shardCount;
+    private final TreeMap<Integer, ExecutorService> executors;
+    private final Map<Integer, Counter> events = new HashMap<>();
+    private final Map<Integer, Timer> lags = new HashMap<>();
+
+    public ShardIngest(int shardCount, Map<Integer, ExecutorService> executors, MeterRegistry meterRegistry) {
+        this.shardCount = shardCount;
+        this.executors = new TreeMap<>(executors);
+        executors.keySet().forEach(shard -> {
+            events.put(shard, meterRegistry.counter("bot.shard.events", "shard", shard.toString()));
+            lags.put(shard, meterRegistry.timer("bot.shard.ingest.lag", "shard", shard.toString()));
+        });
+    }
+
+    /**
+     * Discord routes a guild to shard {@code (guild_id >> 22) % shard_count}, direct messages to shard 0.
+     */
+    public static int shardOf(@Nullable String guildId, int shardCount) {
+        if (guildId == null) {
+            return 0;
+        }
+        return (int) ((Long.parseLong(guildId) >> 22) % shardCount);
+    }
+
+    public void execute(@Nullable String guildId, Runnable task) {
+        int shard = shardOf(guildId, shardCount);
+        if (!executors.containsKey(shard)) {
+            // Direct messages reach every process, they go to its first shard.
+            shard = executors.firstKey();
+        }
+        long received = System.nanoTime();
+        events.get(shard).increment();
+        Timer lag = lags.get(shard);
+        executors.get(shard).execute(() -> {
+            lag.record(System.nanoTime() - received, TimeUnit.NANOSECONDS);
+            task.run();
+        });
+    }
+
+    public void shutdown() {
+        executors.values().forEach(ExecutorService::shutdown);
+    }
+}
@@ -0,0 +1,231 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.cloud.datastore.*;
+import com.google.common.collect.Lists;
+import com.mewna.catnip.entity.message.Message;
+import com.mewna.catnip.entity.message.ReactionUpdate;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.analytics.HyperLogLog;
+import org.praytic.discord.statsbot.analytics.SpaceSaving;
+import org.praytic.discord.statsbot.config.properties.AnalyticsProperties;
+import org.praytic.discord.statsbot.model.StoredMessage;
+import org.praytic.discord.statsbot.storage.MessageCodec;
+import org.praytic.discord.statsbot.storage.Snowflakes;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Approximate stats in constant memory per channel and epoch day, stored as {@code channel-day-sketch}
+ * entities keyed by {@code channel:day}: a HyperLogLog of active users and Space-Saving summaries of
+ * authors and emojis. Sketches of any channels and days can be merged, so a guild or a date range is
+ * answered by merging the sketches of its days.
+ * <p>
+ * Sketches only grow and removed reactions are not subtracted. A guild loaded again from the start is
+ * cleared first, so its messages aren't counted twice. Enabled with {@code analytics.sketches-enabled}.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class SketchStore {
+
+    static final String KIND = "channel-day-sketch";
+    private static final int MAX_BATCH_SIZE = 500;
+
+    private final Datastore datastore;
+    private final AnalyticsProperties properties;
+    private final ChannelStatsCache channelStatsCache;
+    private final MeterRegistry meterRegistry;
+    private final PendingCounters<DayKey, Sketches> pending = new PendingCounters<>("day sketches", 1, Sketches::merge);
+
+    public boolean isEnabled() {
+        return properties.isSketchesEnabled();
+    }
+
+    public void recordMessage(Message msg, @Nullable String guild) {
+        if (!isEnabled()) {
+            return;
+        }
+        long day = Math.floorDiv(msg.timestamp().toEpochSecond(), 86400);
+        pending.compute(new DayKey(msg.channelId(), day), (key, sketches) -> {
+            Sketches current = sketches != null ? sketches : newSketches(msg.guildId() != null ? msg.guildId() : guild);
+            current.users.add(msg.author().id());
+            current.authors.offer(msg.author().id(), 1);
+            msg.reactions().forEach(reaction -> current.emojis.offer(MessageCodec.emojiKey(reaction.emoji()), reaction.count()));
+            return current;
+        });
+    }
+
+    /**
+     * Counts a stored message, when the guild is recounted after its history is imported.
+     */
+    public void recordStored(StoredMessage msg) {
+        if (!isEnabled()) {
+            return;
+        }
+        long day = Math.floorDiv(msg.getTimestamp().getEpochSecond(), 86400);
+        pending.compute(new DayKey(msg.getChannel(), day), (key, sketches) -> {
+            Sketches current = sketches != null ? sketches : newSketches(msg.getGuild());
+            current.users.add(msg.getAuthor());
+            current.authors.offer(msg.getAuthor(), 1);
+            msg.getReactions().forEach(current.emojis::offer);
+            return current;
+        });
+    }
+
+    /**
+     * Counts the reaction on the day of the reacted message, which is encoded in its snowflake.
+     */
+    public void recordReaction(ReactionUpdate reaction) {
+        if (!isEnabled()) {
+            return;
+        }
+        long day = Math.floorDiv(Snowflakes.epochMilli(reaction.messageId()), 86400_000L);
+        pending.compute(new DayKey(reaction.channelId(), day), (key, sketches) -> {
+            if (sketches == null) {
+                sketches = newSketches(reaction.guildId());
+            }
+            sketches.users.add(reaction.userId());
+            sketches.emojis.offer(MessageCodec.emojiKey(reaction.emoji()), 1);
+            return sketches;
+        });
+    }
+
+    /**
+     * Merges the sketches of the channel between the epoch days, inclusive.
+     */
+    public Sketches getChannelSketches(String channel, long fromDay, long toDay) {
+        return merge("channel", channel, fromDay, toDay);
+    }
+
+    /**
+     * Merges the sketches of all channels of the guild between the epoch days, inclusive.
+     */
+    public Sketches getGuildSketches(String guild, long fromDay, long toDay) {
+        return merge("guild", guild, fromDay, toDay);
+    }
+
+    /**
+     * Deletes the sketches of the guild's channels, before its history is loaded again.
+     */
+    public void clear(String guild) {
+        pending.removeIf((dayKey, sketches) -> guild.equals(sketches.guild));
+        Query<Key> query = Query.newGqlQueryBuilder(
+                Query.ResultType.KEY,
+                "SELECT __key__ FROM `" + KIND + "` WHERE guild=@guild")
+                .setBinding("guild", guild)
+                .build();
+        List<Key> keys = new ArrayList<>();
+        datastore.run(query).forEachRemaining(keys::add);
+        Lists.partition(keys, MAX_BATCH_SIZE).forEach(batch -> datastore.delete(batch.toArray(new Key[0])));
+        channelStatsCache.invalidate(guild);
+        log.info("Cleared sketches of guild [{}] - {} entities", guild, keys.size());
+    }
+
+    @Scheduled(fixedDelayString = "${datastore.stats-flush-delay:5000}")
+    public void flush() {
+        pending.flush(batch -> batch.forEach((dayKey, sketches) -> {
+            transactionTimer().record(() -> datastore.runInTransaction(transaction -> {
+                Entity existing = transaction.get(key(dayKey));
+                Sketches merged = existing == null ? sketches : fromEntity(existing).merge(sketches);
+                transaction.put(toEntity(dayKey, merged));
+                return null;
+            }));
+            channelStatsCache.invalidate(dayKey.getChannel());
+            if (sketches.guild != null) {
+                channelStatsCache.invalidate(sketches.guild);
+            }
+        }));
+    }
+
+    private Sketches merge(String property, String value, long fromDay, long toDay) {
+        Query<Entity> query = Query.newGqlQueryBuilder(
+                Query.ResultType.ENTITY,
+                "SELECT * FROM `" + KIND + "` WHERE " + property + "=@value AND day>=@from AND day<=@to")
+                .setBinding("value", value)
+                .setBinding("from", fromDay)
+                .setBinding("to", toDay)
+                .build();
+        Sketches result = newSketches(null);
+        Timer.builder("datastore.query").tag("kind", KIND).register(meterRegistry)
+                .record(() -> datastore.run(query).forEachRemaining(entity -> result.merge(fromEntity(entity))));
+        return result;
+    }
+
+    private Sketches newSketches(@Nullable String guild) {
+        return new Sketches(guild,
+                new HyperLogLog(properties.getSketchPrecision()),
+                new SpaceSaving(properties.getSketchCapacity()),
+                new SpaceSaving(properties.getSketchCapacity()));
+    }
+
+    private Key key(DayKey dayKey) {
+        return datastore.newKeyFactory().setKind(KIND).newKey(dayKey.getChannel() + ":" + dayKey.getDay());
+    }
+
+    private FullEntity<Key> toEntity(DayKey dayKey, Sketches sketches) {
+        Entity.Builder builder = Entity.newBuilder(key(dayKey))
+                .set("channel", dayKey.getChannel())
+                .set("day", dayKey.getDay())
+                .set("users", blob(sketches.users.toBytes()))
+                .set("authors", blob(sketches.authors.toBytes()))
+                .set("emojis", blob(sketches.emojis.toBytes()));
+        if (sketches.guild != null) {
+            builder.set("guild", sketches.guild);
+        }
+        return builder.build();
+    }
+
+    private static BlobValue blob(byte[] bytes) {
+        return BlobValue.newBuilder(Blob.copyFrom(bytes)).setExcludeFromIndexes(true).build();
+    }
+
+    private static Sketches fromEntity(Entity entity) {
+        return new Sketches(
+                entity.contains("guild") ? entity.getString("guild") : null,
+                HyperLogLog.fromBytes(entity.getBlob("users").toByteArray()),
+                SpaceSaving.fromBytes(entity.getBlob("authors").toByteArray()),
+                SpaceSaving.fromBytes(entity.getBlob("emojis").toByteArray()));
+    }
+
+    private Timer transactionTimer() {
+        return Timer.builder("datastore.transaction").tag("kind", KIND).register(meterRegistry);
+    }
+
+    @Value
+    private static class DayKey {
+        String channel;
+        long day;
+    }
+
+    @Getter
+    public static class Sketches {
+        @Nullable
+        private final String guild;
+        private final HyperLogLog users;
+        private final SpaceSaving authors;
+        private final SpaceSaving emojis;
+
+        private Sketches(@Nullable String guild, HyperLogLog users, SpaceSaving authors, SpaceSaving emojis) {
+            this.guild = guild;
+            this.users = users;
+            this.authors = authors;
+            this.emojis = emojis;
+        }
+
+        private Sketches merge(Sketches other) {
+            users.merge(other.users);
+            authors.merge(other.authors);
+            emojis.merge(other.emojis);
+            return this;
+        }
+    }
+}
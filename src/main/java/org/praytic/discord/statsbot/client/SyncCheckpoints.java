@@ -0,0 +1,126 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.Key;
+import com.google.common.collect.Lists;
+import com.mewna.catnip.entity.message.Message;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.storage.MessageStore;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Newest ingested message per channel, stored as {@code channel-sync} entities keyed by channel. A stored
+ * checkpoint is written only after the messages up to it are persisted, so the catch-up sync can resume
+ * from it without gaps.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class SyncCheckpoints {
+
+    static final String KIND = "channel-sync";
+    private static final int MAX_BATCH_SIZE = 500;
+
+    private final Datastore datastore;
+    private final MessageStore messageStore;
+    private final Map<String, Long> newest = new ConcurrentHashMap<>();
+    private final Map<String, String> guilds = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> dirty = new ConcurrentHashMap<>();
+    private final Set<String> pausedGuilds = ConcurrentHashMap.newKeySet();
+
+    public void track(Message msg, @Nullable String guild) {
+        newest.merge(msg.channelId(), Long.parseLong(msg.id()), Math::max);
+        if (guild != null) {
+            guilds.put(msg.channelId(), guild);
+        }
+        dirty.put(msg.channelId(), Boolean.TRUE);
+    }
+
+    /**
+     * @return newest message per channel ingested by this process
+     */
+    public Map<String, Long> snapshot() {
+        return new HashMap<>(newest);
+    }
+
+    /**
+     * @return id of the newest message of the channel in the stored checkpoint, {@code null} when the
+     * channel was never synced
+     */
+    @Nullable
+    public Long getStored(String channel) {
+        Entity checkpoint = datastore.get(key(channel));
+        return checkpoint == null ? null : Long.parseLong(checkpoint.getString("newestMessage"));
+    }
+
+    /**
+     * Stops storing checkpoints of the guild's channels, so messages received during a catch-up don't
+     * move the stored checkpoints past the messages still being fetched.
+     */
+    public void pause(String guild) {
+        pausedGuilds.add(guild);
+    }
+
+    public void resume(String guild) {
+        pausedGuilds.remove(guild);
+    }
+
+    @PreDestroy
+    @Scheduled(fixedDelayString = "${bot.sync-checkpoint-delay:10000}")
+    public void save() {
+        List<String> channels = new ArrayList<>();
+        for (String channel : dirty.keySet()) {
+            String guild = guilds.get(channel);
+            if (guild == null || !pausedGuilds.contains(guild)) {
+                dirty.remove(channel);
+                channels.add(channel);
+            }
+        }
+        if (channels.isEmpty()) {
+            return;
+        }
+        List<FullEntity<?>> checkpoints = new ArrayList<>(channels.size());
+        for (String channel : channels) {
+            Entity.Builder checkpoint = Entity.newBuilder(key(channel))
+                    .set("newestMessage", Long.toString(newest.get(channel)))
+                    .set("updated", Timestamp.now());
+            String guild = guilds.get(channel);
+            if (guild != null) {
+                checkpoint.set("guild", guild);
+            }
+            checkpoints.add(checkpoint.build());
+        }
+        try {
+            messageStore.flush();
+            for (List<FullEntity<?>> batch : Lists.partition(checkpoints, MAX_BATCH_SIZE)) {
+                datastore.put(batch.toArray(new FullEntity<?>[0]));
+            }
+            log.debug("Saved sync checkpoints of {} channels", channels.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            channels.forEach(channel -> dirty.put(channel, Boolean.TRUE));
+        } catch (DatastoreException e) {
+            log.warn("Unable to save sync checkpoints, will retry. Reason: {}", e.getMessage());
+            channels.forEach(channel -> dirty.put(channel, Boolean.TRUE));
+        }
+    }
+
+    private Key key(String channel) {
+        return datastore.newKeyFactory().setKind(KIND).newKey(channel);
+    }
+}
@@ -0,0 +1,73 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mewna.catnip.Catnip;
+import com.mewna.catnip.entity.user.User;
+import io.reactivex.Observable;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.config.properties.BotProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+
+/**
+ * Resolves user names for stats. Names are looked up in a bounded cache, then in Catnip's gateway cache,
+ * and only the remaining users are requested over REST.
+ */
+@Slf4j
+@Component
+public class UserNameResolver {
+
+    private final Catnip catnip;
+    private final RestGateway restGateway;
+    private final Cache<String, String> userNames;
+
+    public UserNameResolver(Catnip catnip, RestGateway restGateway, BotProperties botProperties) {
+        this.catnip = catnip;
+        this.restGateway = restGateway;
+        this.userNames = CacheBuilder.newBuilder()
+                .maximumSize(botProperties.getUserNameCacheSize())
+                .expireAfterWrite(botProperties.getUserNameCacheTtl())
+                .build();
+    }
+
+    public void remember(User user) {
+        userNames.put(user.id(), user.username());
+    }
+
+    /**
+     * @return user names by user id, users that can't be resolved are mapped to their id
+     */
+    public Map<String, String> resolve(Collection<String> userIds) {
+        Map<String, String> resolved = new HashMap<>(userNames.getAllPresent(userIds));
+        List<String> missing = new ArrayList<>();
+        for (String userId : userIds) {
+            if (resolved.containsKey(userId)) {
+                continue;
+            }
+            User user = catnip.cache().user(userId);
+            if (user != null) {
+                remember(user);
+                resolved.put(userId, user.username());
+            } else {
+                missing.add(userId);
+            }
+        }
+        if (!missing.isEmpty()) {
+            log.debug("Fetching {} user names over REST", missing.size());
+            Observable.fromIterable(missing)
+                    .flatMapMaybe(userId -> restGateway.fetch("user", null, userId, RestGateway.Priority.INTERACTIVE,
+                            () -> catnip.rest().user().getUser(userId))
+                            .toMaybe()
+                            .doOnError(error -> log.debug("Unable to fetch user {}: {}", userId, error.getMessage()))
+                            .onErrorComplete())
+                    .blockingForEach(user -> {
+                        remember(user);
+                        resolved.put(user.id(), user.username());
+                    });
+        }
+        userIds.forEach(userId -> resolved.putIfAbsent(userId, userId));
+        return resolved;
+    }
+}
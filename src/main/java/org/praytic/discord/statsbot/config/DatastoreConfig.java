@@ -2,10 +2,12 @@ package org.praytic.discord.statsbot.config;
 
 import com.google.api.client.util.Value;
 import com.google.auth.oauth2.ServiceAccountCredentials;
+import com.google.cloud.NoCredentials;
 import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.DatastoreOptions;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.config.properties.DatastoreProperties;
 import org.praytic.discord.statsbot.config.properties.GoogleProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
@@ -20,14 +22,22 @@ import java.io.InputStream;
 @RequiredArgsConstructor
 @Slf4j
 @Configuration
-@EnableConfigurationProperties(GoogleProperties.class)
+@EnableConfigurationProperties({GoogleProperties.class, DatastoreProperties.class})
 public class DatastoreConfig {
 
     private final GoogleProperties googleProperties;
 
     @Bean
     public Datastore datastore() throws IOException {
-        if (googleProperties.getApplicationCredentials() == null) {
+        if (googleProperties.getEmulatorHost() != null) {
+            log.info("Using Datastore emulator at {}", googleProperties.getEmulatorHost());
+            return DatastoreOptions.newBuilder()
+                    .setProjectId(googleProperties.getProjectId())
+                    .setHost(googleProperties.getEmulatorHost())
+                    .setCredentials(NoCredentials.getInstance())
+                    .build()
+                    .getService();
+        } else if (googleProperties.getApplicationCredentials() == null) {
             return DatastoreOptions.getDefaultInstance().getService();
         } else {
             return DatastoreOptions.newBuilder()
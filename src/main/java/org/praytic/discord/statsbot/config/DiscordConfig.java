@@ -1,12 +1,15 @@
 package org.praytic.discord.statsbot.config;
 
 import com.mewna.catnip.Catnip;
+import com.mewna.catnip.CatnipOptions;
+import com.mewna.catnip.shard.manager.DefaultShardManager;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.praytic.discord.statsbot.config.properties.BotProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
 
 @Slf4j
 @RequiredArgsConstructor
@@ -17,8 +20,12 @@ public class DiscordConfig {
     private final BotProperties botProperties;
 
     @Bean
+    @Profile("!loadtest")
     public Catnip catnip() {
-        Catnip catnip = Catnip.catnip(botProperties.getToken());
+        log.info("Connecting shards {} of {}", botProperties.getManagedShards(), botProperties.getShardCount());
+        CatnipOptions options = new CatnipOptions(botProperties.getToken())
+                .shardManager(new DefaultShardManager(botProperties.getShardCount(), botProperties.getManagedShards()));
+        Catnip catnip = Catnip.catnip(options);
         return catnip.connect();
     }
 }
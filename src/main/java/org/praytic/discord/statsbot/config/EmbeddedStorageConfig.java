@@ -0,0 +1,17 @@
+package org.praytic.discord.statsbot.config;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+
+/**
+ * Creates the H2 data source of {@code spring.datasource.url} only for the embedded message store. The data
+ * source auto-configuration is excluded in {@link org.praytic.discord.statsbot.DiscordBot}, so with the
+ * Datastore store no database file is created and no database health indicator is registered.
+ */
+@Configuration
+@ConditionalOnProperty(name = "storage.type", havingValue = "embedded")
+@Import(DataSourceAutoConfiguration.class)
+public class EmbeddedStorageConfig {
+}
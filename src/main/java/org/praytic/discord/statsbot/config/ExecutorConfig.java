@@ -0,0 +1,84 @@
+package org.praytic.discord.statsbot.config;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.client.ShardIngest;
+import org.praytic.discord.statsbot.config.properties.BotProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pools which gateway events are handed off to, so Catnip's event threads never block
+ * on Datastore or REST calls. Queue size and active threads of all pools are published as
+ * {@code executor.*} metrics.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Configuration
+public class ExecutorConfig {
+
+    private final BotProperties botProperties;
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * Persists gateway events, with a pool per shard of this process. When the queue of a shard is full
+     * its event thread waits up to {@code bot.ingest-block-timeout} for space, so a burst slows down
+     * consumption of that shard only. Events still not queued are dropped and counted in
+     * {@code bot.shard.events.dropped}, which keeps a stalled Datastore from stalling the gateway.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ShardIngest shardIngest() {
+        Map<Integer, ExecutorService> executors = new HashMap<>();
+        for (int shard : botProperties.getManagedShards()) {
+            executors.put(shard, executor("ingest-" + shard, botProperties.getIngestThreads(),
+                    botProperties.getIngestQueueCapacity(), blockThenDrop(shard)));
+        }
+        return new ShardIngest(botProperties.getShardCount(), executors, meterRegistry);
+    }
+
+    /**
+     * Handles bot commands. Commands over the queue limit are rejected.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService commandExecutor() {
+        return executor("command", botProperties.getCommandThreads(), botProperties.getCommandQueueCapacity(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    private RejectedExecutionHandler blockThenDrop(int shard) {
+        Counter dropped = meterRegistry.counter("bot.shard.events.dropped", "shard", String.valueOf(shard));
+        long timeout = botProperties.getIngestBlockTimeout().toMillis();
+        return (task, executor) -> {
+            try {
+                if (!executor.isShutdown() && executor.getQueue().offer(task, timeout, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            dropped.increment();
+            log.warn("Ingest queue of shard {} is full, dropped an event", shard);
+        };
+    }
+
+    private ExecutorService executor(String name, int threads, int queueCapacity, RejectedExecutionHandler handler) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build(),
+                handler);
+        return ExecutorServiceMetrics.monitor(meterRegistry, executor, name, Collections.emptyList());
+    }
+}
@@ -0,0 +1,27 @@
+package org.praytic.discord.statsbot.config;
+
+import com.mewna.catnip.Catnip;
+import com.mewna.catnip.CatnipOptions;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.config.properties.LoadTestProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+/**
+ * Replaces the Discord connection with a local Catnip instance that never connects, the load generator
+ * dispatches events to it as the gateway would.
+ */
+@Slf4j
+@Configuration
+@Profile("loadtest")
+@EnableConfigurationProperties(LoadTestProperties.class)
+public class LoadTestConfig {
+
+    @Bean
+    public Catnip catnip() {
+        log.info("Using a local gateway stub for the load test");
+        return Catnip.catnip(new CatnipOptions("loadtest").validateToken(false));
+    }
+}
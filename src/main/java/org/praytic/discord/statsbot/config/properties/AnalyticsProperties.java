@@ -0,0 +1,57 @@
+package org.praytic.discord.statsbot.config.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "analytics")
+public class AnalyticsProperties {
+
+    /**
+     * Serve channel stats from the in-memory analytics engine instead of the stored counters.
+     */
+    private boolean enabled = false;
+    /**
+     * Number of threads scanning day partitions in parallel.
+     */
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    /**
+     * Minimum number of rows a scan task handles before it's split further.
+     */
+    private int scanThreshold = 100000;
+    /**
+     * Number of channels whose messages are kept in memory, the least recently queried one is dropped beyond it.
+     */
+    private int maxChannels = 1000;
+    /**
+     * Maintain per channel and day sketches for approximate distinct users and top authors and emojis.
+     */
+    private boolean sketchesEnabled = false;
+    /**
+     * HyperLogLog registers are {@code 2^precision}, the standard error is about {@code 1.04 / sqrt(2^precision)}.
+     */
+    private int sketchPrecision = 12;
+    /**
+     * Number of counters of the top authors, emojis and reacted messages summaries.
+     */
+    private int sketchCapacity = 200;
+    /**
+     * Maintain the interaction graph of every guild and top reacted messages and emojis per channel and guild.
+     */
+    private boolean engagementEnabled = false;
+    /**
+     * Only the heaviest interactions of a guild are kept above this number. A graph that still doesn't fit
+     * in an entity, as its users take space too, is pruned further.
+     */
+    private int graphMaxEdges = 40000;
+    /**
+     * Number of channels and guilds whose engagement is kept in memory.
+     */
+    private int engagementCacheSize = 1000;
+    /**
+     * Number of recent message authors kept to attribute live reactions to the author of the message.
+     */
+    private int messageAuthorCacheSize = 100000;
+}
@@ -4,10 +4,92 @@ import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
 @Data
 @Configuration
 @ConfigurationProperties(prefix = "bot")
 public class BotProperties {
 
     private String token;
+    /**
+     * Number of channels fetched in parallel by the initial load.
+     */
+    private int initialLoadConcurrency = 4;
+    /**
+     * Number of channels caught up in parallel after a shard becomes ready.
+     */
+    private int catchUpConcurrency = 4;
+    /**
+     * Message pages (up to 100 messages each) requested per second by the initial load across all channels.
+     */
+    private double initialLoadPagesPerSecond = 4;
+    private long userNameCacheSize = 10000;
+    /**
+     * Total number of gateway shards across all processes.
+     */
+    private int shardCount = 1;
+    /**
+     * Shards connected by this process, all shards when empty.
+     */
+    private List<Integer> shardIds = new ArrayList<>();
+    /**
+     * Ingest threads of each shard.
+     */
+    private int ingestThreads = 4;
+    /**
+     * Events of each shard that may wait for an ingest thread before the shard's event thread is blocked.
+     */
+    private int ingestQueueCapacity = 10000;
+    /**
+     * How long the event thread of a shard waits for space in its full ingest queue before the event is dropped.
+     */
+    private Duration ingestBlockTimeout = Duration.ofSeconds(5);
+    /**
+     * Number of recently ingested message ids remembered to skip duplicate deliveries.
+     */
+    private long seenMessagesSize = 100000;
+    private int commandThreads = 2;
+    /**
+     * Background jobs, e.g. deletions, imports and rebuilds, run at once. Further jobs wait for a thread.
+     */
+    private int jobConcurrency = 4;
+    /**
+     * How long a finished background job can be polled.
+     */
+    private Duration jobRetention = Duration.ofHours(1);
+    private int commandQueueCapacity = 100;
+    private Duration userNameCacheTtl = Duration.ofHours(1);
+    /**
+     * Number of computed channel stats (per channel and time window) kept in memory.
+     */
+    private long statsCacheSize = 1000;
+    private Duration statsCacheTtl = Duration.ofMinutes(10);
+    /**
+     * REST requests per second of routes without an entry in {@code restRouteRates}.
+     */
+    private double restDefaultRate = 5;
+    /**
+     * REST requests per second by route, e.g. {@code channel-messages}, applied to every channel or guild
+     * of the route separately.
+     */
+    private Map<String, Double> restRouteRates = new HashMap<>();
+    /**
+     * Number of REST results (guilds, channels, users) kept to answer repeated requests.
+     */
+    private long restCacheSize = 10000;
+    private Duration restCacheTtl = Duration.ofSeconds(30);
+
+    public List<Integer> getManagedShards() {
+        if (!shardIds.isEmpty()) {
+            return shardIds;
+        }
+        return IntStream.range(0, shardCount).boxed().collect(Collectors.toList());
+    }
 }
@@ -0,0 +1,48 @@
+package org.praytic.discord.statsbot.config.properties;
+
+import lombok.Data;
+import org.praytic.discord.statsbot.storage.MessageFormat;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "datastore")
+public class DatastoreProperties {
+
+    /**
+     * Maximum number of entities in a single put. Datastore rejects commits with more than 500 mutations.
+     */
+    private int writeBatchSize = 500;
+    /**
+     * Number of entities that may wait for a flush before writers are blocked.
+     */
+    private int writeQueueCapacity = 10000;
+    /**
+     * Maximum time an entity waits in the buffer before a partial batch is flushed.
+     */
+    private Duration writeFlushInterval = Duration.ofSeconds(1);
+    private int writeMaxRetries = 5;
+    /**
+     * Number of delete batches (up to 500 keys each) a deletion job keeps in flight.
+     */
+    private int deleteConcurrency = 4;
+    /**
+     * Format of new messages, messages in either format can be read.
+     */
+    private MessageFormat messageFormat = MessageFormat.ENTITIES;
+    /**
+     * Local directory holding one subdirectory per export.
+     */
+    private String exportDir = "export";
+    /**
+     * Number of entities per exported file.
+     */
+    private int exportChunkSize = 100000;
+    /**
+     * Number of kinds exported or files imported in parallel.
+     */
+    private int transferConcurrency = 4;
+}
@@ -11,4 +11,8 @@ public class GoogleProperties {
 
     private String projectId;
     private String applicationCredentials;
+    /**
+     * Host and port of a Datastore emulator, e.g. {@code localhost:8081}. Overrides the credentials when set.
+     */
+    private String emulatorHost;
 }
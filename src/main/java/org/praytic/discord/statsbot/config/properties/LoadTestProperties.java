@@ -0,0 +1,44 @@
+package org.praytic.discord.statsbot.config.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+/**
+ * Settings of the load test run with the {@code loadtest} profile.
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "loadtest")
+public class LoadTestProperties {
+
+    /**
+     * Gateway events dispatched per second.
+     */
+    private double rate = 1000;
+    private Duration duration = Duration.ofMinutes(1);
+    /**
+     * Recorded gateway dispatches to replay, one {@code {"t": ..., "d": ...}} payload per line.
+     * Synthetic events are generated when empty.
+     */
+    private String replayFile;
+    /**
+     * Share of synthetic events that are reactions to recent messages instead of new messages.
+     */
+    private double reactionRatio = 0.3;
+    /**
+     * Probability of a synthetic message mentioning another user.
+     */
+    private double mentionRatio = 0.1;
+    private int guilds = 1;
+    private int channelsPerGuild = 10;
+    private int users = 1000;
+    /**
+     * Maximum time to wait for the dispatched events to be persisted after the last one.
+     */
+    private Duration drainTimeout = Duration.ofMinutes(1);
+    private String reportFile = "loadtest-report.json";
+    private boolean exitOnFinish = true;
+}
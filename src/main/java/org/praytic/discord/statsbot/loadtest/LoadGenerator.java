@@ -0,0 +1,196 @@
+package org.praytic.discord.statsbot.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.RateLimiter;
+import com.grack.nanojson.JsonObject;
+import com.grack.nanojson.JsonParser;
+import com.grack.nanojson.JsonParserException;
+import com.mewna.catnip.Catnip;
+import com.mewna.catnip.entity.impl.EntityBuilder;
+import com.mewna.catnip.shard.DiscordEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.config.properties.LoadTestProperties;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatches gateway events to the local Catnip instance at a fixed rate, so they go through the same
+ * handlers and stores as production traffic, then reports the sustained throughput, event-to-persist
+ * latency percentiles and peak heap. Runs once the application is ready with the {@code loadtest} profile.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+@Profile("loadtest")
+public class LoadGenerator {
+
+    private static final long MB = 1024 * 1024;
+
+    private final Catnip catnip;
+    private final LoadTestProperties properties;
+    private final MeterRegistry meterRegistry;
+    private final ObjectMapper objectMapper;
+    private final ApplicationContext applicationContext;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        Thread generator = new Thread(this::run, "load-generator");
+        generator.setDaemon(true);
+        generator.start();
+    }
+
+    private void run() {
+        LoadTestReport report = new LoadTestReport();
+        report.setSource(properties.getReplayFile() != null ? properties.getReplayFile() : "synthetic");
+        report.setStorage(applicationContext.getEnvironment().getProperty("storage.type", "datastore"));
+        report.setTargetRate(properties.getRate());
+        AtomicLong heapPeak = new AtomicLong();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ScheduledExecutorService heapSampler = Executors.newSingleThreadScheduledExecutor();
+        heapSampler.scheduleAtFixedRate(() -> heapPeak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max),
+                0, 100, TimeUnit.MILLISECONDS);
+        try {
+            log.info("Starting load test from {} against {} storage at {} events per second for {}",
+                    report.getSource(), report.getStorage(), properties.getRate(), properties.getDuration());
+            long started = System.nanoTime();
+            dispatch(report);
+            long dispatched = System.nanoTime();
+            report.setDispatchSeconds((dispatched - started) / 1e9);
+            report.setDispatchedPerSecond((report.getMessagesDispatched() + report.getReactionsDispatched()) / report.getDispatchSeconds());
+            report.setDrained(drain(report.getMessagesDispatched()));
+            long finished = System.nanoTime();
+
+            Timer messages = persistTimer(DiscordEvent.MESSAGE_CREATE.key());
+            Timer reactions = persistTimer(DiscordEvent.MESSAGE_REACTION_ADD.key());
+            report.setMessagesPersisted(count(messages));
+            report.setReactionWrites(count(reactions));
+            report.setSustainedMessagesPerSecond(report.getMessagesPersisted() / ((finished - started) / 1e9));
+            percentiles(messages, report.getMessageLatencyMillis());
+            percentiles(reactions, report.getReactionLatencyMillis());
+            report.setHeapPeakMb(heapPeak.get() / MB);
+            report.setHeapMaxMb(memory.getHeapMemoryUsage().getMax() / MB);
+
+            String json = objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(report);
+            Files.write(Paths.get(properties.getReportFile()), json.getBytes(StandardCharsets.UTF_8));
+            log.info("Load test finished, report written to {}:\n{}", properties.getReportFile(), json);
+        } catch (IOException e) {
+            log.error("Load test failed", e);
+        } finally {
+            heapSampler.shutdown();
+        }
+        if (properties.isExitOnFinish()) {
+            System.exit(SpringApplication.exit(applicationContext));
+        }
+    }
+
+    private void dispatch(LoadTestReport report) throws IOException {
+        EntityBuilder entityBuilder = new EntityBuilder(catnip);
+        RateLimiter rateLimiter = RateLimiter.create(properties.getRate());
+        long deadline = System.nanoTime() + properties.getDuration().toNanos();
+        BufferedReader replay = properties.getReplayFile() != null
+                ? Files.newBufferedReader(Paths.get(properties.getReplayFile()), StandardCharsets.UTF_8)
+                : null;
+        try {
+            Iterator<JsonObject> events = replay != null ? recorded(replay) : new SyntheticEvents(properties);
+            while (events.hasNext() && System.nanoTime() < deadline) {
+                JsonObject event = events.next();
+                String type = event.getString("t");
+                JsonObject data = event.getObject("d");
+                rateLimiter.acquire();
+                if (DiscordEvent.MESSAGE_CREATE.key().equals(type)) {
+                    catnip.dispatchManager().dispatchEvent(type, entityBuilder.createMessage(data));
+                    report.setMessagesDispatched(report.getMessagesDispatched() + 1);
+                } else if (DiscordEvent.MESSAGE_REACTION_ADD.key().equals(type)) {
+                    catnip.dispatchManager().dispatchEvent(type, entityBuilder.createReactionUpdate(data));
+                    report.setReactionsDispatched(report.getReactionsDispatched() + 1);
+                } else {
+                    report.setEventsSkipped(report.getEventsSkipped() + 1);
+                }
+            }
+        } finally {
+            if (replay != null) {
+                replay.close();
+            }
+        }
+    }
+
+    /**
+     * Waits until every dispatched message is persisted. Duplicate messages of a replay are never persisted
+     * and end the wait by timeout.
+     */
+    private boolean drain(long messages) {
+        long deadline = System.nanoTime() + properties.getDrainTimeout().toNanos();
+        while (System.nanoTime() < deadline) {
+            if (count(persistTimer(DiscordEvent.MESSAGE_CREATE.key())) >= messages) {
+                return true;
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        log.warn("Not all dispatched messages were persisted within {}", properties.getDrainTimeout());
+        return false;
+    }
+
+    @Nullable
+    private Timer persistTimer(String event) {
+        return meterRegistry.find("bot.event.persist").tag("event", event).timer();
+    }
+
+    private static long count(@Nullable Timer timer) {
+        return timer == null ? 0 : timer.count();
+    }
+
+    private static void percentiles(@Nullable Timer timer, Map<String, Double> latencies) {
+        if (timer == null) {
+            return;
+        }
+        for (ValueAtPercentile percentile : timer.takeSnapshot().percentileValues()) {
+            String name = BigDecimal.valueOf(Math.round(percentile.percentile() * 1000) / 10.0).stripTrailingZeros().toPlainString();
+            latencies.put("p" + name, percentile.value(TimeUnit.MILLISECONDS));
+        }
+        latencies.put("max", timer.max(TimeUnit.MILLISECONDS));
+        latencies.put("mean", timer.mean(TimeUnit.MILLISECONDS));
+    }
+
+    private static Iterator<JsonObject> recorded(BufferedReader reader) {
+        return reader.lines()
+                .filter(line -> !line.isEmpty())
+                .map(line -> {
+                    try {
+                        return JsonParser.object().from(line);
+                    } catch (JsonParserException e) {
+                        throw new UncheckedIOException(new IOException("Invalid recorded event: " + line, e));
+                    }
+                })
+                .iterator();
+    }
+}
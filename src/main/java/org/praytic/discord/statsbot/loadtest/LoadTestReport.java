@@ -0,0 +1,39 @@
+package org.praytic.discord.statsbot.loadtest;
+
+import lombok.Data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Outcome of a load test. Latencies are from the moment the handler received the event until it was
+ * stored, in milliseconds by percentile.
+ */
+@Data
+public class LoadTestReport {
+    private String source;
+    /**
+     * Message store the latencies were measured against, {@code datastore} or {@code embedded}.
+     */
+    private String storage;
+    private double targetRate;
+    private long messagesDispatched;
+    private long reactionsDispatched;
+    private long eventsSkipped;
+    private double dispatchSeconds;
+    private double dispatchedPerSecond;
+    private long messagesPersisted;
+    /**
+     * Reactions to the same message and emoji are merged before they're written, so this counts writes.
+     */
+    private long reactionWrites;
+    /**
+     * Persisted messages per second from the first dispatch until the last message was persisted.
+     */
+    private double sustainedMessagesPerSecond;
+    private boolean drained;
+    private Map<String, Double> messageLatencyMillis = new LinkedHashMap<>();
+    private Map<String, Double> reactionLatencyMillis = new LinkedHashMap<>();
+    private long heapPeakMb;
+    private long heapMaxMb;
+}
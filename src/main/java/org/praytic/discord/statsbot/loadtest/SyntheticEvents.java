@@ -0,0 +1,120 @@
+package org.praytic.discord.statsbot.loadtest;
+
+import com.grack.nanojson.JsonArray;
+import com.grack.nanojson.JsonObject;
+import com.mewna.catnip.shard.DiscordEvent;
+import org.praytic.discord.statsbot.config.properties.LoadTestProperties;
+import org.praytic.discord.statsbot.storage.Snowflakes;
+
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.SplittableRandom;
+
+/**
+ * Endless stream of gateway dispatches shaped like Discord's: new messages from users picked with a
+ * skewed distribution, some mentioning another user, and reactions to recently sent messages.
+ */
+final class SyntheticEvents implements Iterator<JsonObject> {
+
+    private static final long GUILD_BASE = 100000000000000000L;
+    private static final long USER_BASE = 600000000000000000L;
+    private static final String[] EMOJIS = {"👍", "😂", "❤️", "🎉", "👀", "🔥"};
+    private static final int RECENT_MESSAGES = 1024;
+
+    private final LoadTestProperties properties;
+    private final SplittableRandom random = new SplittableRandom(42);
+    private final JsonObject[] recent = new JsonObject[RECENT_MESSAGES];
+    private long sequence;
+    private int sent;
+
+    SyntheticEvents(LoadTestProperties properties) {
+        this.properties = properties;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return true;
+    }
+
+    @Override
+    public JsonObject next() {
+        if (sent > 0 && random.nextDouble() < properties.getReactionRatio()) {
+            return dispatch(DiscordEvent.MESSAGE_REACTION_ADD.key(), reaction(recent[random.nextInt(Math.min(sent, RECENT_MESSAGES))]));
+        }
+        JsonObject message = message();
+        recent[sent++ % RECENT_MESSAGES] = message;
+        return dispatch(DiscordEvent.MESSAGE_CREATE.key(), message);
+    }
+
+    private JsonObject message() {
+        long guild = GUILD_BASE + random.nextInt(properties.getGuilds());
+        long channel = guild * 100 + random.nextInt(properties.getChannelsPerGuild());
+        JsonArray mentions = new JsonArray();
+        if (random.nextDouble() < properties.getMentionRatio()) {
+            mentions.add(user(randomUser()));
+        }
+        Instant now = Instant.now();
+        JsonObject message = new JsonObject();
+        message.put("id", Long.toString(snowflake(now)));
+        message.put("channel_id", Long.toString(channel));
+        message.put("guild_id", Long.toString(guild));
+        message.put("author", user(randomUser()));
+        message.put("content", "synthetic message " + sequence);
+        message.put("timestamp", now.toString());
+        message.put("edited_timestamp", null);
+        message.put("tts", false);
+        message.put("mention_everyone", false);
+        message.put("mentions", mentions);
+        message.put("mention_roles", new JsonArray());
+        message.put("attachments", new JsonArray());
+        message.put("embeds", new JsonArray());
+        message.put("reactions", new JsonArray());
+        message.put("pinned", false);
+        message.put("type", 0);
+        return message;
+    }
+
+    private JsonObject reaction(JsonObject message) {
+        JsonObject emoji = new JsonObject();
+        emoji.put("id", null);
+        emoji.put("name", EMOJIS[random.nextInt(EMOJIS.length)]);
+        JsonObject reaction = new JsonObject();
+        reaction.put("user_id", Long.toString(randomUser()));
+        reaction.put("channel_id", message.getString("channel_id"));
+        reaction.put("message_id", message.getString("id"));
+        reaction.put("guild_id", message.getString("guild_id"));
+        reaction.put("emoji", emoji);
+        return reaction;
+    }
+
+    /**
+     * Users are skewed like real channels, where a few users send most of the messages.
+     */
+    private long randomUser() {
+        return USER_BASE + (long) (properties.getUsers() * Math.pow(random.nextDouble(), 3));
+    }
+
+    private static JsonObject user(long id) {
+        JsonObject user = new JsonObject();
+        user.put("id", Long.toString(id));
+        user.put("username", "user" + (id - USER_BASE));
+        user.put("discriminator", "0001");
+        user.put("avatar", null);
+        user.put("bot", false);
+        return user;
+    }
+
+    /**
+     * Unique per event and ordered by time, like real message ids.
+     */
+    private long snowflake(Instant time) {
+        return Snowflakes.of(time.toEpochMilli(), sequence++);
+    }
+
+    private static JsonObject dispatch(String type, JsonObject data) {
+        JsonObject dispatch = new JsonObject();
+        dispatch.put("t", type);
+        dispatch.put("d", data);
+        return dispatch;
+    }
+}
@@ -0,0 +1,22 @@
+package org.praytic.discord.statsbot.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Stats estimated from sketches: the distinct users count has a relative error of about 1.6% with the
+ * default precision, top counts may be overestimated.
+ */
+@AllArgsConstructor
+@Data
+public class ApproximateStats {
+    private String name;
+    private LocalDate from;
+    private LocalDate to;
+    private long distinctActiveUsers;
+    private List<UserStats> topUsersByTotalMessages;
+    private List<RankedItem> topEmojisByReactions;
+}
@@ -0,0 +1,23 @@
+package org.praytic.discord.statsbot.model;
+
+import lombok.Data;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Data
+public class BackgroundJob {
+    private final String id;
+    private final String type;
+    private final String target;
+    private final Instant startedAt = Instant.now();
+    private volatile Instant finishedAt;
+    private volatile JobState state = JobState.RUNNING;
+    private volatile boolean cancelRequested;
+    /**
+     * Units of work done so far, e.g. deleted entities, for jobs that report it.
+     */
+    private final AtomicLong progress = new AtomicLong();
+    private volatile Object result;
+    private volatile String error;
+}
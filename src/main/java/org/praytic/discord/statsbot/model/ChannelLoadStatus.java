@@ -0,0 +1,12 @@
+package org.praytic.discord.statsbot.model;
+
+import lombok.Data;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+@Data
+public class ChannelLoadStatus {
+    private final String channelName;
+    private volatile LoadState state = LoadState.PENDING;
+    private final AtomicLong messagesProcessed = new AtomicLong();
+}
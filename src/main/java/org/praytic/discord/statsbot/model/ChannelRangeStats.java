@@ -0,0 +1,20 @@
+package org.praytic.discord.statsbot.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.LocalDate;
+import java.util.List;
+
+@AllArgsConstructor
+@Data
+public class ChannelRangeStats {
+    private String channelName;
+    private LocalDate from;
+    private LocalDate to;
+    private long messagesCount;
+    private double messagesPerDay;
+    private long reactionsCount;
+    private long mentionsCount;
+    private List<UserStats> topUsersByTotalMessages;
+}
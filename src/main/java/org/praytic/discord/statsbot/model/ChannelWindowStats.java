@@ -0,0 +1,19 @@
+package org.praytic.discord.statsbot.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.Instant;
+import java.util.List;
+
+@AllArgsConstructor
+@Data
+public class ChannelWindowStats {
+    private String channelName;
+    private String window;
+    private Instant from;
+    private Instant to;
+    private long messagesCount;
+    private double messagesPerDay;
+    private List<UserStats> topUsersByTotalMessages;
+}
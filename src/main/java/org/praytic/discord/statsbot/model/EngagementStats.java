@@ -0,0 +1,22 @@
+package org.praytic.discord.statsbot.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Top counts are estimated by Space-Saving summaries and may be overestimated, interactions are only
+ * known within guilds.
+ */
+@AllArgsConstructor
+@Data
+public class EngagementStats {
+    private String name;
+    /**
+     * Message ids with their number of reactions.
+     */
+    private List<RankedItem> topReactedMessages;
+    private List<RankedItem> topEmojisByReactions;
+    private List<Interaction> topInteractions;
+}
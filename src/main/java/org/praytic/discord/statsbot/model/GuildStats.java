@@ -0,0 +1,16 @@
+package org.praytic.discord.statsbot.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+@AllArgsConstructor
+@Data
+public class GuildStats {
+    private String guildName;
+    private List<UserStats> topUsersByTotalMessages;
+    private List<RankedItem> topChannelsByTotalMessages;
+    private List<RankedItem> topEmojisByReactions;
+    private List<RankedItem> topMentionedUsers;
+}
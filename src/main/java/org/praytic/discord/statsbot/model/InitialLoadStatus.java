@@ -0,0 +1,16 @@
+package org.praytic.discord.statsbot.model;
+
+import lombok.Data;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+@Data
+public class InitialLoadStatus {
+    private final String guild;
+    private final Instant startedAt = Instant.now();
+    private volatile Instant finishedAt;
+    private volatile LoadState state = LoadState.RUNNING;
+    private final Map<String, ChannelLoadStatus> channels = new ConcurrentSkipListMap<>();
+}
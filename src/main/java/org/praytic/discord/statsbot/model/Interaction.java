@@ -0,0 +1,12 @@
+package org.praytic.discord.statsbot.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@AllArgsConstructor
+@Data
+public class Interaction {
+    private String fromUserName;
+    private String toUserName;
+    private long count;
+}
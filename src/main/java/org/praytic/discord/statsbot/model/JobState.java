@@ -0,0 +1,8 @@
+package org.praytic.discord.statsbot.model;
+
+public enum JobState {
+    RUNNING,
+    COMPLETED,
+    CANCELLED,
+    FAILED
+}
@@ -0,0 +1,9 @@
+package org.praytic.discord.statsbot.model;
+
+public enum LoadState {
+    PENDING,
+    RUNNING,
+    SKIPPED,
+    COMPLETED,
+    FAILED
+}
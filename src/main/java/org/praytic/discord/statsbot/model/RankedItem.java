@@ -0,0 +1,11 @@
+package org.praytic.discord.statsbot.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@AllArgsConstructor
+@Data
+public class RankedItem {
+    private String name;
+    private long count;
+}
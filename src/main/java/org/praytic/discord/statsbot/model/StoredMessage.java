@@ -0,0 +1,37 @@
+package org.praytic.discord.statsbot.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persisted message with its reactions, mentions and attachments, whatever format it's stored in.
+ */
+@NoArgsConstructor
+@Data
+public class StoredMessage {
+    private String id;
+    private String channel;
+    private String guild;
+    private String author;
+    private Instant timestamp;
+    private String content;
+    private Map<String, Integer> reactions = new LinkedHashMap<>();
+    private List<String> mentionedUsers = new ArrayList<>();
+    private List<Attachment> attachments = new ArrayList<>();
+
+    @AllArgsConstructor
+    @NoArgsConstructor
+    @Data
+    public static class Attachment {
+        private String id;
+        private String fileName;
+        private String url;
+    }
+}
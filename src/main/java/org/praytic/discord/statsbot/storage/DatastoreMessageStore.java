@@ -0,0 +1,87 @@
+package org.praytic.discord.statsbot.storage;
+
+import com.mewna.catnip.entity.message.Message;
+import com.mewna.catnip.entity.user.User;
+import lombok.RequiredArgsConstructor;
+import org.praytic.discord.statsbot.client.DatastoreClient;
+import org.praytic.discord.statsbot.client.DatastoreWriteBuffer;
+import org.praytic.discord.statsbot.client.ReactionCounter;
+import org.praytic.discord.statsbot.config.properties.DatastoreProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Set;
+
+@RequiredArgsConstructor
+@Component
+@ConditionalOnProperty(name = "storage.type", havingValue = "datastore", matchIfMissing = true)
+public class DatastoreMessageStore implements MessageStore {
+
+    private final DatastoreClient datastoreClient;
+    private final DatastoreWriteBuffer datastoreWriteBuffer;
+    private final ReactionCounter reactionCounter;
+    private final DatastoreProperties datastoreProperties;
+
+    /**
+     * In the compact format the reactions, mentions and attachments are stored with the message itself.
+     */
+    @Override
+    public void saveMessage(Message msg, @Nullable String guildId, @Nullable Runnable onPersisted) {
+        if (isCompact()) {
+            datastoreClient.uploadCompactEntity(msg, guildId, onPersisted);
+        } else {
+            datastoreClient.uploadEntity(msg, guildId, onPersisted);
+        }
+    }
+
+    @Override
+    public void saveReaction(Message.Reaction reaction, Message msg) {
+        if (!isCompact()) {
+            reactionCounter.observe(reaction, msg);
+        }
+    }
+
+    @Override
+    public void saveMention(User mentionedUser, Message msg) {
+        if (!isCompact()) {
+            datastoreClient.uploadEntity(mentionedUser, msg);
+        }
+    }
+
+    @Override
+    public void saveAttachment(Message.Attachment attachment, Message msg) {
+        if (!isCompact()) {
+            datastoreClient.uploadEntity(attachment, msg);
+        }
+    }
+
+    @Override
+    public void flush() throws InterruptedException {
+        datastoreWriteBuffer.flush();
+        reactionCounter.flush();
+    }
+
+    @Override
+    public Set<String> findStored(Collection<String> messageIds) {
+        return datastoreClient.getStoredMessageIds(messageIds);
+    }
+
+    @Override
+    public Flux<MessageRecord> streamChannelMessages(String channel) {
+        return datastoreClient.streamChannelMessages(channel)
+                .map(entity -> new MessageRecord(entity.getKey().getName(), entity.getString("author"), entity.getTimestamp("timestamp").getSeconds()));
+    }
+
+    @Nullable
+    @Override
+    public String getChannelGuild(String channel) {
+        return datastoreClient.getChannelGuild(channel);
+    }
+
+    private boolean isCompact() {
+        return datastoreProperties.getMessageFormat() == MessageFormat.COMPACT;
+    }
+}
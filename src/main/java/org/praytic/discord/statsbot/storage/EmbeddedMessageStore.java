@@ -0,0 +1,263 @@
+package org.praytic.discord.statsbot.storage;
+
+import com.mewna.catnip.entity.message.Message;
+import com.mewna.catnip.entity.user.User;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.praytic.discord.statsbot.config.properties.DatastoreProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+import javax.annotation.Nullable;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Stores messages in the embedded H2 database configured with {@code spring.datasource.url}.
+ * Writes are upserts keyed like the Datastore entities, so replayed messages overwrite themselves.
+ * Rows are queued and written by a single writer in JDBC batches of {@code datastore.write-batch-size},
+ * with the queue capacity and flush interval of the {@link org.praytic.discord.statsbot.client.DatastoreWriteBuffer}.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "storage.type", havingValue = "embedded")
+public class EmbeddedMessageStore implements MessageStore {
+
+    private static final String MERGE_MESSAGE = "MERGE INTO message (id, channel, guild, author, epoch_second, content) KEY (id) " +
+            "VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String MERGE_REACTION = "MERGE INTO reaction (message, emoji, reaction_count) KEY (message, emoji) " +
+            "VALUES (?, ?, ?)";
+    private static final String MERGE_MENTION = "MERGE INTO mention (message, mentioned_user, author) KEY (message, mentioned_user) " +
+            "VALUES (?, ?, ?)";
+    private static final String MERGE_ATTACHMENT = "MERGE INTO attachment (id, author, file_name, url) KEY (id) VALUES (?, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final DatastoreProperties properties;
+    private final BlockingQueue<PendingRow> queue;
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final Counter dropped;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    public EmbeddedMessageStore(JdbcTemplate jdbcTemplate, DatastoreProperties properties, MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.properties = properties;
+        this.queue = new ArrayBlockingQueue<>(properties.getWriteQueueCapacity());
+        this.dropped = meterRegistry.counter("embedded.write.dropped");
+        meterRegistry.gauge("embedded.write.queue.size", queue, BlockingQueue::size);
+        this.writer = new Thread(this::run, "embedded-writer");
+        this.writer.setDaemon(true);
+    }
+
+    @PostConstruct
+    public void createSchema() {
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS message (" +
+                "id VARCHAR(20) PRIMARY KEY, channel VARCHAR(20) NOT NULL, guild VARCHAR(20), " +
+                "author VARCHAR(20) NOT NULL, epoch_second BIGINT NOT NULL, content CLOB)");
+        jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS message_channel ON message (channel)");
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS reaction (" +
+                "message VARCHAR(20) NOT NULL, emoji VARCHAR(100) NOT NULL, reaction_count INT NOT NULL, " +
+                "PRIMARY KEY (message, emoji))");
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS mention (" +
+                "message VARCHAR(20) NOT NULL, mentioned_user VARCHAR(20) NOT NULL, author VARCHAR(20) NOT NULL, " +
+                "PRIMARY KEY (message, mentioned_user))");
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS attachment (" +
+                "id VARCHAR(20) PRIMARY KEY, author VARCHAR(20) NOT NULL, file_name VARCHAR(1024), url VARCHAR(2048))");
+        writer.start();
+        log.info("Using embedded message store");
+    }
+
+    @Override
+    public void saveMessage(Message msg, @Nullable String guildId, @Nullable Runnable onPersisted) {
+        enqueue(MERGE_MESSAGE, onPersisted, msg.id(), msg.channelId(), msg.guildId() != null ? msg.guildId() : guildId,
+                msg.author().id(), msg.timestamp().toEpochSecond(), msg.content());
+    }
+
+    @Override
+    public void saveReaction(Message.Reaction reaction, Message msg) {
+        enqueue(MERGE_REACTION, null, msg.id(), MessageCodec.emojiKey(reaction.emoji()), reaction.count());
+    }
+
+    @Override
+    public void saveMention(User mentionedUser, Message msg) {
+        enqueue(MERGE_MENTION, null, msg.id(), mentionedUser.id(), msg.author().id());
+    }
+
+    @Override
+    public void saveAttachment(Message.Attachment attachment, Message msg) {
+        enqueue(MERGE_ATTACHMENT, null, attachment.id(), msg.author().id(), attachment.fileName(), attachment.proxyUrl());
+    }
+
+    /**
+     * @throws IllegalStateException if the writer has stopped, so the rows may never be written
+     */
+    @Override
+    public void flush() throws InterruptedException {
+        long target = enqueued.get();
+        synchronized (completed) {
+            while (completed.get() < target) {
+                if (!writer.isAlive()) {
+                    throw new IllegalStateException("Embedded writer stopped with " + (target - completed.get()) + " rows unwritten");
+                }
+                completed.wait(properties.getWriteFlushInterval().toMillis());
+            }
+        }
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        running = false;
+        writer.join();
+    }
+
+    /**
+     * Only finds written rows, queued ones are lost on a crash anyway.
+     */
+    @Override
+    public Set<String> findStored(Collection<String> messageIds) {
+        if (messageIds.isEmpty()) {
+            return Collections.emptySet();
+        }
+        String placeholders = String.join(", ", Collections.nCopies(messageIds.size(), "?"));
+        return new HashSet<>(jdbcTemplate.queryForList("SELECT id FROM message WHERE id IN (" + placeholders + ")",
+                String.class, messageIds.toArray()));
+    }
+
+    @Override
+    public Flux<MessageRecord> streamChannelMessages(String channel) {
+        return Flux.create(sink -> {
+            try {
+                jdbcTemplate.query("SELECT id, author, epoch_second FROM message WHERE channel = ?",
+                        (RowCallbackHandler) rs -> sink.next(new MessageRecord(rs.getString(1), rs.getString(2), rs.getLong(3))),
+                        channel);
+                sink.complete();
+            } catch (RuntimeException e) {
+                sink.error(e);
+            }
+        });
+    }
+
+    @Nullable
+    @Override
+    public String getChannelGuild(String channel) {
+        List<String> guilds = jdbcTemplate.queryForList(
+                "SELECT guild FROM message WHERE channel = ? AND guild IS NOT NULL LIMIT 1", String.class, channel);
+        return guilds.isEmpty() ? null : guilds.get(0);
+    }
+
+    /**
+     * Blocks while the queue is full.
+     *
+     * @throws IllegalStateException if the store is closed
+     */
+    private void enqueue(String sql, @Nullable Runnable onPersisted, Object... args) {
+        PendingRow row = new PendingRow(sql, args, onPersisted);
+        try {
+            do {
+                if (!running || !writer.isAlive()) {
+                    throw new IllegalStateException("Embedded message store is closed");
+                }
+            } while (!queue.offer(row, properties.getWriteFlushInterval().toMillis(), TimeUnit.MILLISECONDS));
+            enqueued.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for space in the embedded write queue", e);
+        }
+    }
+
+    private void run() {
+        int batchSize = properties.getWriteBatchSize();
+        long flushInterval = properties.getWriteFlushInterval().toMillis();
+        List<PendingRow> batch = new ArrayList<>(batchSize);
+        try {
+            while (running || !queue.isEmpty()) {
+                PendingRow first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                try {
+                    write(batch);
+                } finally {
+                    complete(batch.size());
+                    batch.clear();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            queue.drainTo(batch);
+            if (!batch.isEmpty()) {
+                log.error("Embedded writer stopped, dropping {} queued rows", batch.size());
+                dropped.increment(batch.size());
+            }
+            complete(batch.size());
+        }
+    }
+
+    /**
+     * Writes the rows of every statement in one JDBC batch, in the order they were queued. A failed batch is
+     * dropped, and the callbacks of its rows aren't run.
+     */
+    private void write(List<PendingRow> batch) {
+        Map<String, List<PendingRow>> statements = new LinkedHashMap<>();
+        batch.forEach(row -> statements.computeIfAbsent(row.sql, sql -> new ArrayList<>()).add(row));
+        statements.forEach((sql, rows) -> {
+            try {
+                jdbcTemplate.batchUpdate(sql, rows.stream().map(row -> row.args).collect(Collectors.toList()));
+            } catch (DataAccessException e) {
+                log.error("Unable to write {} rows of [{}]", rows.size(), sql, e);
+                dropped.increment(rows.size());
+                return;
+            }
+            for (PendingRow row : rows) {
+                if (row.onPersisted != null) {
+                    try {
+                        row.onPersisted.run();
+                    } catch (RuntimeException e) {
+                        log.error("Callback of persisted row failed", e);
+                    }
+                }
+            }
+        });
+    }
+
+    private void complete(int count) {
+        synchronized (completed) {
+            completed.addAndGet(count);
+            completed.notifyAll();
+        }
+    }
+
+    private static final class PendingRow {
+        private final String sql;
+        private final Object[] args;
+        private final Runnable onPersisted;
+
+        private PendingRow(String sql, Object[] args, @Nullable Runnable onPersisted) {
+            this.sql = sql;
+            this.args = args;
+            this.onPersisted = onPersisted;
+        }
+    }
+}
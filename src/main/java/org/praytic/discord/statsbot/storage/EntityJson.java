@@ -0,0 +1,120 @@
+package org.praytic.discord.statsbot.storage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.*;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JSON form of an entity that keeps the type and indexing of every property, so an exported entity is
+ * imported unchanged: {@code {"name": "...", "properties": {"channel": {"type": "STRING", "value": "..."}}}}.
+ * Keys are written without project and namespace and are created in the importing project.
+ */
+public final class EntityJson {
+
+    private static final JsonNodeFactory JSON = JsonNodeFactory.instance;
+
+    private EntityJson() {
+    }
+
+    public static ObjectNode toJson(Entity entity) {
+        ObjectNode node = JSON.objectNode();
+        Key key = entity.getKey();
+        if (key.hasName()) {
+            node.put("name", key.getName());
+        } else {
+            node.put("id", key.getId());
+        }
+        ObjectNode properties = node.putObject("properties");
+        for (Map.Entry<String, Value<?>> property : entity.getProperties().entrySet()) {
+            properties.set(property.getKey(), toJson(property.getValue()));
+        }
+        return node;
+    }
+
+    public static Entity fromJson(JsonNode node, KeyFactory keyFactory) {
+        Key key = node.has("name")
+                ? keyFactory.newKey(node.get("name").asText())
+                : keyFactory.newKey(node.get("id").asLong());
+        Entity.Builder builder = Entity.newBuilder(key);
+        Iterator<Map.Entry<String, JsonNode>> properties = node.get("properties").fields();
+        while (properties.hasNext()) {
+            Map.Entry<String, JsonNode> property = properties.next();
+            builder.set(property.getKey(), fromJson(property.getValue()));
+        }
+        return builder.build();
+    }
+
+    private static ObjectNode toJson(Value<?> value) {
+        ObjectNode node = JSON.objectNode();
+        node.put("type", value.getType().name());
+        if (value.excludeFromIndexes()) {
+            node.put("excluded", true);
+        }
+        switch (value.getType()) {
+            case NULL:
+                break;
+            case STRING:
+                node.put("value", ((StringValue) value).get());
+                break;
+            case LONG:
+                node.put("value", ((LongValue) value).get());
+                break;
+            case DOUBLE:
+                node.put("value", ((DoubleValue) value).get());
+                break;
+            case BOOLEAN:
+                node.put("value", ((BooleanValue) value).get());
+                break;
+            case TIMESTAMP:
+                node.put("value", ((TimestampValue) value).get().toString());
+                break;
+            case BLOB:
+                node.put("value", Base64.getEncoder().encodeToString(((BlobValue) value).get().toByteArray()));
+                break;
+            case LIST:
+                ArrayNode values = node.putArray("value");
+                ((ListValue) value).get().forEach(element -> values.add(toJson(element)));
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported property type " + value.getType());
+        }
+        return node;
+    }
+
+    private static Value<?> fromJson(JsonNode node) {
+        boolean excluded = node.path("excluded").asBoolean(false);
+        JsonNode value = node.get("value");
+        switch (ValueType.valueOf(node.get("type").asText())) {
+            case NULL:
+                return NullValue.newBuilder().setExcludeFromIndexes(excluded).build();
+            case STRING:
+                return StringValue.newBuilder(value.asText()).setExcludeFromIndexes(excluded).build();
+            case LONG:
+                return LongValue.newBuilder(value.asLong()).setExcludeFromIndexes(excluded).build();
+            case DOUBLE:
+                return DoubleValue.newBuilder(value.asDouble()).setExcludeFromIndexes(excluded).build();
+            case BOOLEAN:
+                return BooleanValue.newBuilder(value.asBoolean()).setExcludeFromIndexes(excluded).build();
+            case TIMESTAMP:
+                return TimestampValue.newBuilder(Timestamp.parseTimestamp(value.asText())).setExcludeFromIndexes(excluded).build();
+            case BLOB:
+                return BlobValue.newBuilder(Blob.copyFrom(Base64.getDecoder().decode(value.asText())))
+                        .setExcludeFromIndexes(excluded).build();
+            case LIST:
+                List<Value<?>> values = new ArrayList<>(value.size());
+                value.forEach(element -> values.add(fromJson(element)));
+                return ListValue.newBuilder().set(values).setExcludeFromIndexes(excluded).build();
+            default:
+                throw new IllegalArgumentException("Unsupported property type " + node.get("type").asText());
+        }
+    }
+}
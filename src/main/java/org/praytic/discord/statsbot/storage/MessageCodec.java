@@ -0,0 +1,172 @@
+package org.praytic.discord.statsbot.storage;
+
+import com.mewna.catnip.entity.message.Message;
+import com.mewna.catnip.entity.misc.Emoji;
+import org.praytic.discord.statsbot.model.StoredMessage;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary encoding of the unindexed part of a message: content, reactions, mentioned users and attachments.
+ * The payload is deflated when that makes it smaller, a leading flag byte tells which.
+ */
+public final class MessageCodec {
+
+    private static final byte VERSION = 1;
+    private static final byte RAW = 0;
+    private static final byte DEFLATED = 1;
+
+    private MessageCodec() {
+    }
+
+    public static StoredMessage fromMessage(Message msg, @Nullable String guildId) {
+        StoredMessage stored = new StoredMessage();
+        stored.setId(msg.id());
+        stored.setChannel(msg.channelId());
+        stored.setGuild(msg.guildId() != null ? msg.guildId() : guildId);
+        stored.setAuthor(msg.author().id());
+        stored.setTimestamp(msg.timestamp().toInstant());
+        stored.setContent(msg.content());
+        msg.reactions().forEach(reaction -> stored.getReactions().put(emojiKey(reaction.emoji()), reaction.count()));
+        msg.mentionedUsers().forEach(user -> stored.getMentionedUsers().add(user.id()));
+        msg.attachments().forEach(attachment -> stored.getAttachments().add(
+                new StoredMessage.Attachment(attachment.id(), attachment.fileName(), attachment.proxyUrl())));
+        return stored;
+    }
+
+    /**
+     * Identifies the emoji of a reaction: the id of a custom emoji, as several may share a name,
+     * and the name of a unicode emoji, which has no id.
+     */
+    public static String emojiKey(Emoji emoji) {
+        return emoji.id() != null ? emoji.id() : emoji.name();
+    }
+
+    public static byte[] encode(StoredMessage msg) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            writeString(out, msg.getContent());
+            out.writeShort(msg.getReactions().size());
+            for (Map.Entry<String, Integer> reaction : msg.getReactions().entrySet()) {
+                writeString(out, reaction.getKey());
+                out.writeInt(reaction.getValue());
+            }
+            out.writeShort(msg.getMentionedUsers().size());
+            for (String user : msg.getMentionedUsers()) {
+                out.writeLong(Long.parseLong(user));
+            }
+            out.writeShort(msg.getAttachments().size());
+            for (StoredMessage.Attachment attachment : msg.getAttachments()) {
+                out.writeLong(Long.parseLong(attachment.getId()));
+                writeString(out, attachment.getFileName());
+                writeString(out, attachment.getUrl());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return compress(bytes.toByteArray());
+    }
+
+    /**
+     * Fills the unindexed fields of the message from the payload.
+     */
+    public static void decode(byte[] payload, StoredMessage msg) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(decompress(payload)))) {
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported message payload version " + version);
+            }
+            msg.setContent(readString(in));
+            int reactions = in.readUnsignedShort();
+            for (int i = 0; i < reactions; i++) {
+                msg.getReactions().put(readString(in), in.readInt());
+            }
+            int mentions = in.readUnsignedShort();
+            for (int i = 0; i < mentions; i++) {
+                msg.getMentionedUsers().add(Long.toString(in.readLong()));
+            }
+            int attachments = in.readUnsignedShort();
+            for (int i = 0; i < attachments; i++) {
+                msg.getAttachments().add(new StoredMessage.Attachment(Long.toString(in.readLong()), readString(in), readString(in)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] compress(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] buffer = new byte[raw.length];
+            int length = deflater.deflate(buffer);
+            byte[] result;
+            if (deflater.finished() && length + 5 < raw.length) {
+                result = new byte[length + 5];
+                result[0] = DEFLATED;
+                // Original length, so the payload is inflated into a buffer of the right size.
+                result[1] = (byte) (raw.length >>> 24);
+                result[2] = (byte) (raw.length >>> 16);
+                result[3] = (byte) (raw.length >>> 8);
+                result[4] = (byte) raw.length;
+                System.arraycopy(buffer, 0, result, 5, length);
+            } else {
+                result = new byte[raw.length + 1];
+                result[0] = RAW;
+                System.arraycopy(raw, 0, result, 1, raw.length);
+            }
+            return result;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] payload) {
+        if (payload[0] == RAW) {
+            byte[] raw = new byte[payload.length - 1];
+            System.arraycopy(payload, 1, raw, 0, raw.length);
+            return raw;
+        }
+        int length = (payload[1] & 0xFF) << 24 | (payload[2] & 0xFF) << 16 | (payload[3] & 0xFF) << 8 | (payload[4] & 0xFF);
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(payload, 5, payload.length - 5);
+            byte[] raw = new byte[length];
+            inflater.inflate(raw);
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupted message payload", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Nullable
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,17 @@
+package org.praytic.discord.statsbot.storage;
+
+/**
+ * How the Datastore message store persists messages.
+ */
+public enum MessageFormat {
+    /**
+     * A {@code message} entity with its content plus separate {@code reaction}, {@code mention} and
+     * {@code attachment} entities.
+     */
+    ENTITIES,
+    /**
+     * A single {@code message} entity with only the indexed fields as properties and everything else
+     * in a compressed {@link MessageCodec} payload.
+     */
+    COMPACT
+}
@@ -0,0 +1,12 @@
+package org.praytic.discord.statsbot.storage;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@AllArgsConstructor
+@Data
+public class MessageRecord {
+    private String id;
+    private String author;
+    private long epochSecond;
+}
@@ -0,0 +1,50 @@
+package org.praytic.discord.statsbot.storage;
+
+import com.mewna.catnip.entity.message.Message;
+import com.mewna.catnip.entity.user.User;
+import reactor.core.publisher.Flux;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Persistence of ingested messages and the reactions, mentions and attachments they carry.
+ * The implementation is selected with the {@code storage.type} property.
+ * <p>
+ * Only messages are behind this interface. Aggregates, reaction counters and sync checkpoints are always
+ * kept in Datastore, so the embedded store still needs a Datastore, e.g. the emulator at
+ * {@code google.emulator-host}.
+ */
+public interface MessageStore {
+
+    /**
+     * @param guildId     guild to store when the message itself has none, e.g. messages fetched over REST
+     * @param onPersisted called once the message is stored
+     */
+    void saveMessage(Message msg, @Nullable String guildId, @Nullable Runnable onPersisted);
+
+    void saveReaction(Message.Reaction reaction, Message msg);
+
+    void saveMention(User mentionedUser, Message msg);
+
+    void saveAttachment(Message.Attachment attachment, Message msg);
+
+    /**
+     * Blocks until everything saved before this call is stored.
+     */
+    void flush() throws InterruptedException;
+
+    /**
+     * @return ids of the messages that are already stored
+     */
+    Set<String> findStored(Collection<String> messageIds);
+
+    /**
+     * Streams the id, author and time of every stored message in the channel without loading the channel into memory.
+     */
+    Flux<MessageRecord> streamChannelMessages(String channel);
+
+    @Nullable
+    String getChannelGuild(String channel);
+}
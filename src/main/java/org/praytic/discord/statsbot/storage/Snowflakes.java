@@ -0,0 +1,48 @@
+package org.praytic.discord.statsbot.storage;
+
+/**
+ * Discord ids are snowflakes: milliseconds since the Discord epoch in the upper 42 bits, then worker,
+ * process and sequence numbers. Ids are therefore ordered by creation time, and a point in time maps to
+ * the range of ids created in its millisecond.
+ */
+public final class Snowflakes {
+
+    /**
+     * First millisecond of 2015, in milliseconds since the Unix epoch.
+     */
+    public static final long DISCORD_EPOCH = 1420070400000L;
+    private static final int TIMESTAMP_SHIFT = 22;
+    private static final long SEQUENCE_MASK = (1L << TIMESTAMP_SHIFT) - 1;
+
+    private Snowflakes() {
+    }
+
+    public static long epochMilli(long snowflake) {
+        return (snowflake >> TIMESTAMP_SHIFT) + DISCORD_EPOCH;
+    }
+
+    public static long epochMilli(String snowflake) {
+        return epochMilli(Long.parseLong(snowflake));
+    }
+
+    /**
+     * @return the lowest id that can be created at the epoch millisecond
+     */
+    public static long first(long epochMilli) {
+        return (epochMilli - DISCORD_EPOCH) << TIMESTAMP_SHIFT;
+    }
+
+    /**
+     * @return the highest id that can be created at the epoch millisecond
+     */
+    public static long last(long epochMilli) {
+        return first(epochMilli) | SEQUENCE_MASK;
+    }
+
+    /**
+     * @return an id created at the epoch millisecond, with the low bits of {@code sequence} as the rest
+     */
+    public static long of(long epochMilli, long sequence) {
+        return first(epochMilli) | (sequence & SEQUENCE_MASK);
+    }
+}
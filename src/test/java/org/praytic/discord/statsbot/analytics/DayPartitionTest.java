@@ -0,0 +1,68 @@
+package org.praytic.discord.statsbot.analytics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DayPartitionTest {
+
+    @Test
+    void scansChannelWithinSecondsOfDay() {
+        DayPartition partition = new DayPartition(18641);
+        partition.append(1, 0, 0, 0, 2, 1);
+        partition.append(2, 0, 1, 3600, 0, 0);
+        partition.append(3, 1, 0, 7200, 5, 5);
+        partition.append(4, 0, 0, 86399, 1, 0);
+
+        ScanResult result = new ScanResult(2);
+        partition.scan(0, 0, 86399, result);
+
+        assertEquals(2, result.messages);
+        assertEquals(1, result.activeDays);
+        assertEquals(2, result.reactions);
+        assertEquals(1, result.mentions);
+        assertEquals(1, result.authorCounts[0]);
+        assertEquals(1, result.authorCounts[1]);
+    }
+
+    @Test
+    void updatesCountsOfAppendedMessage() {
+        DayPartition partition = new DayPartition(18641);
+        assertTrue(partition.append(1, 0, 0, 0, 1, 0));
+        assertFalse(partition.append(1, 0, 0, 0, 3, 2));
+        partition.addReactions(1, -1);
+
+        ScanResult result = new ScanResult(1);
+        partition.scan(0, 0, 86400, result);
+
+        assertEquals(1, result.messages);
+        assertEquals(2, result.reactions);
+        assertEquals(2, result.mentions);
+    }
+
+    @Test
+    void removesChannelAndKeepsOthersUpdatable() {
+        DayPartition partition = new DayPartition(18641);
+        for (int i = 1; i <= 200; i++) {
+            partition.append(i, i % 2, 0, i, 0, 0);
+        }
+
+        assertEquals(100, partition.removeChannel(1));
+        assertEquals(100, partition.size());
+        partition.addReactions(2, 1);
+        assertFalse(partition.append(4, 0, 0, 4, 0, 1));
+        assertTrue(partition.append(1, 1, 0, 1, 0, 0));
+
+        ScanResult removed = new ScanResult(1);
+        partition.scan(1, 0, 86400, removed);
+        ScanResult kept = new ScanResult(1);
+        partition.scan(0, 0, 86400, kept);
+
+        assertEquals(1, removed.messages);
+        assertEquals(100, kept.messages);
+        assertEquals(1, kept.reactions);
+        assertEquals(1, kept.mentions);
+    }
+}
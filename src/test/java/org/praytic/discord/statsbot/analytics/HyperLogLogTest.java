@@ -0,0 +1,72 @@
+package org.praytic.discord.statsbot.analytics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HyperLogLogTest {
+
+    @Test
+    void estimatesSmallCardinality() {
+        HyperLogLog hll = new HyperLogLog(14);
+        add(hll, 0, 1_000);
+
+        assertEquals(1_000, hll.estimate(), 1_000 * 0.02);
+    }
+
+    @Test
+    void estimatesLargeCardinality() {
+        HyperLogLog hll = new HyperLogLog(14);
+        add(hll, 0, 500_000);
+
+        assertEquals(500_000, hll.estimate(), 500_000 * 0.03);
+    }
+
+    @Test
+    void ignoresDuplicates() {
+        HyperLogLog hll = new HyperLogLog(12);
+        add(hll, 0, 10_000);
+        long estimate = hll.estimate();
+        add(hll, 0, 10_000);
+
+        assertEquals(estimate, hll.estimate());
+    }
+
+    @Test
+    void mergesToEstimateOfUnion() {
+        HyperLogLog first = new HyperLogLog(14);
+        add(first, 0, 60_000);
+        HyperLogLog second = new HyperLogLog(14);
+        add(second, 40_000, 100_000);
+        HyperLogLog union = new HyperLogLog(14);
+        add(union, 0, 100_000);
+
+        assertEquals(union.estimate(), first.merge(second).estimate());
+        assertEquals(100_000, union.estimate(), 100_000 * 0.03);
+    }
+
+    @Test
+    void refusesToMergeDifferentPrecision() {
+        assertThrows(IllegalArgumentException.class, () -> new HyperLogLog(12).merge(new HyperLogLog(14)));
+    }
+
+    @Test
+    void roundTripsSparseAndDenseRegisters() {
+        HyperLogLog sparse = new HyperLogLog(14);
+        add(sparse, 0, 100);
+        HyperLogLog dense = new HyperLogLog(14);
+        add(dense, 0, 100_000);
+
+        assertEquals(sparse.estimate(), HyperLogLog.fromBytes(sparse.toBytes()).estimate());
+        assertEquals(dense.estimate(), HyperLogLog.fromBytes(dense.toBytes()).estimate());
+        assertTrue(sparse.toBytes().length < dense.toBytes().length);
+    }
+
+    private static void add(HyperLogLog hll, int from, int to) {
+        for (int i = from; i < to; i++) {
+            hll.add("user-" + i);
+        }
+    }
+}
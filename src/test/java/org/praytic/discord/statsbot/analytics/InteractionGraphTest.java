@@ -0,0 +1,124 @@
+package org.praytic.discord.statsbot.analytics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InteractionGraphTest {
+
+    @Test
+    void sumsInteractionsOfSamePair() {
+        InteractionGraph graph = InteractionGraph.builder()
+                .add("1", "2", 2)
+                .add("1", "2", 3)
+                .add("2", "3", 1)
+                .add("3", "3", 7)
+                .build(100);
+
+        assertEquals(3, graph.userCount());
+        assertEquals(2, graph.edgeCount());
+        assertEquals(Arrays.asList(new InteractionGraph.Edge("1", "2", 5), new InteractionGraph.Edge("2", "3", 1)),
+                graph.top(10));
+    }
+
+    @Test
+    void findsPartnersInBothDirections() {
+        InteractionGraph graph = InteractionGraph.builder()
+                .add("10", "20", 4)
+                .add("20", "10", 1)
+                .add("30", "20", 2)
+                .add("20", "40", 3)
+                .add("30", "40", 9)
+                .build(100);
+
+        Map<String, Long> partners = graph.partners("20", 10);
+        assertEquals(Arrays.asList("10", "40", "30"), new ArrayList<>(partners.keySet()));
+        assertEquals(5, (long) partners.get("10"));
+        assertEquals(3, (long) partners.get("40"));
+        assertEquals(2, (long) partners.get("30"));
+        assertEquals(1, graph.partners("20", 1).size());
+        assertTrue(graph.partners("50", 10).isEmpty());
+    }
+
+    @Test
+    void findsSamePartnersAsFullScan() {
+        Random random = new Random(7);
+        InteractionGraph.Builder builder = InteractionGraph.builder();
+        Map<String, Map<String, Long>> expected = new HashMap<>();
+        for (int i = 0; i < 5_000; i++) {
+            String from = Integer.toString(1 + random.nextInt(200));
+            String to = Integer.toString(1 + random.nextInt(200));
+            builder.add(from, to, 1);
+            if (!from.equals(to)) {
+                expected.computeIfAbsent(from, user -> new HashMap<>()).merge(to, 1L, Long::sum);
+                expected.computeIfAbsent(to, user -> new HashMap<>()).merge(from, 1L, Long::sum);
+            }
+        }
+        InteractionGraph graph = InteractionGraph.fromBytes(builder.build(100_000).toBytes());
+
+        expected.forEach((user, partners) -> assertEquals(partners, new HashMap<>(graph.partners(user, 200)), user));
+    }
+
+    @Test
+    void keepsHeaviestInteractionsAboveMaxEdges() {
+        InteractionGraph graph = InteractionGraph.builder()
+                .add("1", "2", 1)
+                .add("2", "3", 5)
+                .add("3", "4", 3)
+                .build(2);
+
+        assertEquals(Arrays.asList(new InteractionGraph.Edge("2", "3", 5), new InteractionGraph.Edge("3", "4", 3)),
+                graph.top(10));
+        assertEquals(3, graph.userCount());
+        assertTrue(graph.partners("1", 10).isEmpty());
+    }
+
+    @Test
+    void dropsPairsWithoutPositiveCount() {
+        InteractionGraph stored = InteractionGraph.builder()
+                .add("1", "2", 1)
+                .add("1", "3", 2)
+                .build(100);
+        InteractionGraph graph = InteractionGraph.builder()
+                .addAll(stored)
+                .add("1", "2", -1)
+                .add("1", "3", -1)
+                .add("2", "3", -1)
+                .build(100);
+
+        assertEquals(Arrays.asList(new InteractionGraph.Edge("1", "3", 1)), graph.top(10));
+        assertEquals(2, graph.userCount());
+    }
+
+    @Test
+    void roundTripsThroughBytes() {
+        InteractionGraph graph = InteractionGraph.builder()
+                .add("80351110224678912", "80351110224678913", 3)
+                .add("80351110224678913", "80351110224678914", 1)
+                .add("80351110224678914", "80351110224678912", 2)
+                .build(100);
+        byte[] bytes = graph.toBytes();
+        InteractionGraph copy = InteractionGraph.fromBytes(bytes);
+
+        assertEquals(graph.encodedSize(), bytes.length);
+        assertEquals(graph.top(10), copy.top(10));
+        assertEquals(graph.partners("80351110224678912", 10), copy.partners("80351110224678912", 10));
+    }
+
+    @Test
+    void emptyGraphHasNoPartners() {
+        List<InteractionGraph.Edge> top = InteractionGraph.empty().top(10);
+
+        assertTrue(top.isEmpty());
+        assertTrue(InteractionGraph.empty().partners("1", 10).isEmpty());
+        assertEquals(InteractionGraph.empty().toBytes().length, InteractionGraph.empty().encodedSize());
+    }
+}
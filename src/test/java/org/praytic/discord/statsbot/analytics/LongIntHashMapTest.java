@@ -0,0 +1,52 @@
+package org.praytic.discord.statsbot.analytics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LongIntHashMapTest {
+
+    @Test
+    void keepsEntriesAcrossResizes() {
+        LongIntHashMap map = new LongIntHashMap(1);
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            long key = 1 + (random.nextLong() & Long.MAX_VALUE - 1);
+            map.put(key, i);
+            expected.put(key, i);
+        }
+
+        assertEquals(expected.size(), map.size());
+        expected.forEach((key, value) -> assertEquals((int) value, map.get(key)));
+        assertEquals(-1, map.get(7));
+    }
+
+    @Test
+    void probesPastCollidingKeys() {
+        // Eight keys fill half of the 16 slots before the first resize, so some share a probe sequence.
+        LongIntHashMap map = new LongIntHashMap(1);
+        for (int i = 1; i <= 8; i++) {
+            map.put(i * 16L, i);
+        }
+
+        for (int i = 1; i <= 8; i++) {
+            assertEquals(i, map.get(i * 16L));
+        }
+        assertEquals(-1, map.get(9 * 16L));
+    }
+
+    @Test
+    void overwritesValueOfExistingKey() {
+        LongIntHashMap map = new LongIntHashMap(4);
+        map.put(805431937347895306L, 1);
+        map.put(805431937347895306L, 2);
+
+        assertEquals(1, map.size());
+        assertEquals(2, map.get(805431937347895306L));
+    }
+}
@@ -0,0 +1,87 @@
+package org.praytic.discord.statsbot.analytics;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.praytic.discord.statsbot.config.properties.AnalyticsProperties;
+import org.praytic.discord.statsbot.storage.MessageRecord;
+import org.praytic.discord.statsbot.storage.MessageStore;
+import org.praytic.discord.statsbot.storage.Snowflakes;
+import reactor.core.publisher.Flux;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class MessageAnalyticsTest {
+
+    private static final Instant MIDNIGHT = Instant.parse("2021-01-15T00:00:00Z");
+
+    private final MessageStore messageStore = mock(MessageStore.class);
+    private final AnalyticsProperties properties = new AnalyticsProperties();
+    private MessageAnalytics analytics;
+
+    @AfterEach
+    void close() {
+        analytics.close();
+    }
+
+    @Test
+    void scansRangeAcrossDayEdges() throws InterruptedException {
+        // Every partition is scanned by its own task, so the results of the days are merged.
+        properties.setScanThreshold(0);
+        List<MessageRecord> records = new ArrayList<>();
+        records.add(record(MIDNIGHT.minusSeconds(86401), "a"));
+        records.add(record(MIDNIGHT.minusSeconds(1), "a"));
+        records.add(record(MIDNIGHT, "b"));
+        records.add(record(MIDNIGHT.plusSeconds(86399), "a"));
+        records.add(record(MIDNIGHT.plusSeconds(86400), "b"));
+        when(messageStore.streamChannelMessages("c")).thenReturn(Flux.fromIterable(records));
+        analytics = new MessageAnalytics(messageStore, properties);
+
+        ChannelSummary summary = summarize("c", MIDNIGHT.minusSeconds(1), MIDNIGHT.plusSeconds(86400));
+
+        assertEquals(3, summary.getMessagesCount());
+        assertEquals(2, summary.getActiveDays());
+        assertEquals(2L, summary.getTopAuthors().get("a"));
+        assertEquals(1L, summary.getTopAuthors().get("b"));
+    }
+
+    @Test
+    void dropsLeastRecentlyQueriedChannel() throws InterruptedException {
+        properties.setMaxChannels(1);
+        when(messageStore.streamChannelMessages(anyString()))
+                .thenAnswer(invocation -> Flux.just(record(MIDNIGHT, "a")));
+        analytics = new MessageAnalytics(messageStore, properties);
+
+        assertEquals(1, summarize("c1", MIDNIGHT, MIDNIGHT.plusSeconds(1)).getMessagesCount());
+        assertEquals(1, summarize("c2", MIDNIGHT, MIDNIGHT.plusSeconds(1)).getMessagesCount());
+
+        assertFalse(analytics.summarize("c1", MIDNIGHT, MIDNIGHT.plusSeconds(1), 10).isPresent());
+        assertEquals(1, summarize("c1", MIDNIGHT, MIDNIGHT.plusSeconds(1)).getMessagesCount());
+        verify(messageStore, times(2)).streamChannelMessages("c1");
+    }
+
+    private ChannelSummary summarize(String channel, Instant from, Instant to) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        Optional<ChannelSummary> summary;
+        while (!(summary = analytics.summarize(channel, from, to, 10)).isPresent()) {
+            assertTrue(System.currentTimeMillis() < deadline, "channel " + channel + " loaded");
+            Thread.sleep(10);
+        }
+        return summary.get();
+    }
+
+    private static MessageRecord record(Instant sent, String author) {
+        return new MessageRecord(Long.toString(Snowflakes.of(sent.toEpochMilli(), author.hashCode())), author, sent.getEpochSecond());
+    }
+}
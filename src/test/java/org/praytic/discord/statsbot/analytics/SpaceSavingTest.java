@@ -0,0 +1,145 @@
+package org.praytic.discord.statsbot.analytics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpaceSavingTest {
+
+    @Test
+    void countsExactlyBelowCapacity() {
+        SpaceSaving summary = new SpaceSaving(10);
+        summary.offer("a", 3);
+        summary.offer("b", 1);
+        summary.offer("a", 2);
+        summary.offer("c", 4);
+
+        Map<String, Long> top = summary.top(10);
+        assertEquals(List.of("a", "c", "b"), new ArrayList<>(top.keySet()));
+        assertEquals(5, (long) top.get("a"));
+        assertEquals(0, summary.error("a"));
+    }
+
+    @Test
+    void replacesSmallestCounterWhenFull() {
+        SpaceSaving summary = new SpaceSaving(2);
+        summary.offer("a", 5);
+        summary.offer("b", 2);
+        summary.offer("c", 1);
+
+        Map<String, Long> top = summary.top(10);
+        assertEquals(2, top.size());
+        assertEquals(5, (long) top.get("a"));
+        assertEquals(3, (long) top.get("c"));
+        assertEquals(2, summary.error("c"));
+    }
+
+    @Test
+    void findsHeavyHittersWithinErrorBound() {
+        int capacity = 50;
+        List<String> stream = zipf(100_000, 1_000, new Random(1));
+        Map<String, Long> exact = count(stream);
+        SpaceSaving summary = new SpaceSaving(capacity);
+        stream.forEach(item -> summary.offer(item, 1));
+
+        assertBounds(summary, exact, stream.size(), capacity);
+    }
+
+    @Test
+    void mergesWithinErrorBound() {
+        int capacity = 50;
+        List<String> first = zipf(60_000, 1_000, new Random(2));
+        List<String> second = zipf(40_000, 1_000, new Random(3));
+        SpaceSaving merged = new SpaceSaving(capacity);
+        first.forEach(item -> merged.offer(item, 1));
+        SpaceSaving other = new SpaceSaving(capacity);
+        second.forEach(item -> other.offer(item, 1));
+        merged.merge(other);
+
+        List<String> all = new ArrayList<>(first);
+        all.addAll(second);
+        assertBounds(merged, count(all), all.size(), capacity);
+    }
+
+    @Test
+    void roundTripsThroughBytes() {
+        SpaceSaving summary = new SpaceSaving(3);
+        for (String item : List.of("a", "b", "a", "c", "d", "a", "d")) {
+            summary.offer(item, 1);
+        }
+        SpaceSaving copy = SpaceSaving.fromBytes(summary.toBytes());
+
+        assertEquals(summary.top(3), copy.top(3));
+        for (String item : List.of("a", "b", "c", "d")) {
+            assertEquals(summary.error(item), copy.error(item), item);
+        }
+    }
+
+    @Test
+    void decrementsOnlyTrackedItems() {
+        SpaceSaving summary = new SpaceSaving(2);
+        summary.offer("a", 5);
+        summary.offer("b", 2);
+        summary.offer("c", 1);
+        summary.decrement("a", 4);
+        summary.decrement("c", 10);
+        summary.decrement("b", 1);
+
+        Map<String, Long> top = summary.top(10);
+        assertEquals(List.of("a", "c"), new ArrayList<>(top.keySet()));
+        assertEquals(1, (long) top.get("a"));
+        assertEquals(0, (long) top.get("c"));
+        assertEquals(0, summary.error("c"));
+    }
+
+    /**
+     * Every item more frequent than {@code n / capacity} is tracked, and tracked counts overestimate by at most their error.
+     */
+    private static void assertBounds(SpaceSaving summary, Map<String, Long> exact, int n, int capacity) {
+        Map<String, Long> top = summary.top(capacity);
+        exact.forEach((item, count) -> {
+            if (count > n / capacity) {
+                assertTrue(top.containsKey(item), "heavy hitter " + item + " with " + count);
+            }
+        });
+        top.forEach((item, estimate) -> {
+            long count = exact.getOrDefault(item, 0L);
+            assertTrue(estimate >= count, item + " underestimated");
+            assertTrue(estimate - summary.error(item) <= count, item + " error too small");
+        });
+    }
+
+    private static List<String> zipf(int size, int items, Random random) {
+        double[] weights = new double[items];
+        double total = 0;
+        for (int i = 0; i < items; i++) {
+            total += 1.0 / (i + 1);
+            weights[i] = total;
+        }
+        List<String> stream = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            double value = random.nextDouble() * total;
+            int index = 0;
+            while (weights[index] < value) {
+                index++;
+            }
+            stream.add("item-" + index);
+        }
+        Collections.shuffle(stream, random);
+        return stream;
+    }
+
+    private static Map<String, Long> count(List<String> stream) {
+        Map<String, Long> counts = new HashMap<>();
+        stream.forEach(item -> counts.merge(item, 1L, Long::sum));
+        return counts;
+    }
+}
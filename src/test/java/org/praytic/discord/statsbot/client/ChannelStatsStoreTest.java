@@ -0,0 +1,152 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Transaction;
+import com.mewna.catnip.entity.message.Message;
+import com.mewna.catnip.entity.user.User;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.praytic.discord.statsbot.storage.MessageStore;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ChannelStatsStoreTest {
+
+    private static final OffsetDateTime TIME = OffsetDateTime.of(2021, 1, 14, 12, 0, 0, 0, ZoneOffset.UTC);
+
+    private final Map<Key, Entity> stored = new HashMap<>();
+    private final AtomicInteger transactions = new AtomicInteger();
+    private int failingTransaction = -1;
+
+    @Test
+    void retriesOnlyAuthorsLeftUnwrittenByFailedFlush() {
+        ChannelStatsStore store = store();
+        for (int author = 0; author < 501; author++) {
+            store.record(message(Integer.toString(author), "u" + author));
+        }
+        // Totals commit first, then authors in batches of 500, the second author batch fails.
+        failingTransaction = 2;
+        store.flush();
+
+        assertEquals(501, channel().getLong("messagesCount"));
+        assertEquals(1, channel().getLong("days"));
+        assertEquals(500, authorCount());
+
+        store.flush();
+
+        assertEquals(501, channel().getLong("messagesCount"), "totals are not counted twice");
+        assertEquals(1, channel().getLong("days"));
+        assertEquals(501, day().getLong("messagesCount"));
+        assertEquals(501, authorCount());
+        stored.forEach((key, entity) -> {
+            if (ChannelStatsStore.AUTHOR_KIND.equals(key.getKind())) {
+                assertEquals(1, entity.getLong("messagesCount"), key.getName());
+            }
+        });
+    }
+
+    @Test
+    void retriesWholeFlushWhenTotalsFail() {
+        ChannelStatsStore store = store();
+        store.record(message("1", "a"));
+        store.record(message("2", "a"));
+        failingTransaction = 0;
+        store.flush();
+
+        assertNull(channel());
+
+        store.record(message("3", "b"));
+        store.flush();
+
+        assertEquals(3, channel().getLong("messagesCount"));
+        assertEquals(3, day().getLong("messagesCount"));
+        assertEquals(2, stored.get(key(ChannelStatsStore.AUTHOR_KIND, "c:a")).getLong("messagesCount"));
+        assertEquals(1, stored.get(key(ChannelStatsStore.AUTHOR_KIND, "c:b")).getLong("messagesCount"));
+    }
+
+    private ChannelStatsStore store() {
+        Datastore datastore = mock(Datastore.class, invocation -> {
+            switch (invocation.getMethod().getName()) {
+                case "newKeyFactory":
+                    return new KeyFactory("test");
+                case "runInTransaction":
+                    return runInTransaction((Datastore.TransactionCallable<?>) invocation.getArgument(0));
+                default:
+                    return null;
+            }
+        });
+        return new ChannelStatsStore(datastore, mock(MessageStore.class), mock(RollupStore.class),
+                mock(ChannelStatsCache.class), new SimpleMeterRegistry());
+    }
+
+    private Object runInTransaction(Datastore.TransactionCallable<?> callable) throws Exception {
+        Map<Key, Entity> writes = new HashMap<>();
+        Transaction transaction = mock(Transaction.class, invocation -> {
+            Object[] arguments = invocation.getRawArguments();
+            switch (invocation.getMethod().getName()) {
+                case "get":
+                    return stored.get((Key) arguments[0]);
+                case "fetch":
+                    List<Entity> entities = new ArrayList<>();
+                    Arrays.stream((Key[]) arguments[0]).forEach(key -> entities.add(stored.get(key)));
+                    return entities;
+                case "put":
+                    Arrays.stream((FullEntity<?>[]) arguments[0]).forEach(entity -> writes.put((Key) entity.getKey(), (Entity) entity));
+                    return null;
+                default:
+                    return null;
+            }
+        });
+        Object result = callable.run(transaction);
+        if (transactions.getAndIncrement() == failingTransaction) {
+            throw new DatastoreException(10, "aborted", "ABORTED");
+        }
+        stored.putAll(writes);
+        return result;
+    }
+
+    private Entity channel() {
+        return stored.get(key(ChannelStatsStore.CHANNEL_KIND, "c"));
+    }
+
+    private Entity day() {
+        return stored.get(key(ChannelStatsStore.DAY_KIND, "c:" + TIME.toLocalDate().toEpochDay()));
+    }
+
+    private long authorCount() {
+        return stored.keySet().stream().filter(key -> ChannelStatsStore.AUTHOR_KIND.equals(key.getKind())).count();
+    }
+
+    private static Key key(String kind, String name) {
+        return new KeyFactory("test").setKind(kind).newKey(name);
+    }
+
+    private static Message message(String id, String author) {
+        User user = mock(User.class);
+        when(user.id()).thenReturn(author);
+        Message message = mock(Message.class);
+        when(message.id()).thenReturn(id);
+        when(message.channelId()).thenReturn("c");
+        when(message.guildId()).thenReturn("g");
+        when(message.author()).thenReturn(user);
+        when(message.timestamp()).thenReturn(TIME);
+        return message;
+    }
+}
@@ -0,0 +1,61 @@
+package org.praytic.discord.statsbot.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ChannelTotalsTest {
+
+    private static final long TODAY = 18641;
+
+    @Test
+    void movesAuthorUpWhenOvertakingOthers() {
+        ChannelTotals totals = live(authors("a", 3L, "b", 2L, "c", 2L), 3, true);
+
+        ChannelTotals updated = totals.withMessage("c", TODAY);
+
+        assertEquals(8, updated.getMessagesCount());
+        assertEquals(2, updated.getActiveDays());
+        assertEquals(Arrays.asList("a", "c", "b"), Arrays.asList(updated.getTopAuthors().keySet().toArray()));
+        assertEquals(authors("a", 3L, "c", 3L, "b", 2L), updated.getTopAuthors());
+    }
+
+    @Test
+    void countsNewActiveDayOnce() {
+        ChannelTotals totals = live(authors("a", 1L), 10, false);
+
+        ChannelTotals updated = totals.withMessage("b", TODAY).withMessage("b", TODAY);
+
+        assertEquals(3, updated.getActiveDays());
+        assertEquals(authors("b", 2L, "a", 1L), updated.getTopAuthors());
+        assertEquals(4, updated.withMessage("a", TODAY + 1).getActiveDays());
+    }
+
+    @Test
+    void computesAgainWhenNotExact() {
+        ChannelTotals full = live(authors("a", 3L, "b", 2L), 2, true);
+
+        assertNull(full.withMessage("c", TODAY), "an author outside the top may overtake the last one");
+        assertNull(full.withMessage("a", TODAY - 1), "older days may have no messages");
+        assertNull(new ChannelTotals(5, 2, authors("a", 5L), 10, TODAY, true, false).withMessage("a", TODAY),
+                "stored counters change on flush");
+    }
+
+    private static ChannelTotals live(Map<String, Long> authors, int limit, boolean todayActive) {
+        long messages = authors.values().stream().mapToLong(Long::longValue).sum();
+        return new ChannelTotals(messages, 2, authors, limit, TODAY, todayActive, true);
+    }
+
+    private static Map<String, Long> authors(Object... authorCounts) {
+        Map<String, Long> authors = new LinkedHashMap<>();
+        for (int i = 0; i < authorCounts.length; i += 2) {
+            authors.put((String) authorCounts[i], (Long) authorCounts[i + 1]);
+        }
+        return authors;
+    }
+}
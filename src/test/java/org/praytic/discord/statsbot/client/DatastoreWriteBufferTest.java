@@ -0,0 +1,122 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.Key;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.praytic.discord.statsbot.config.properties.DatastoreProperties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class DatastoreWriteBufferTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final List<Integer> puts = Collections.synchronizedList(new ArrayList<>());
+    private DatastoreWriteBuffer buffer;
+
+    @AfterEach
+    void close() throws InterruptedException {
+        buffer.close();
+    }
+
+    @Test
+    void failsWholeBatchWhenRetriesAreUsedUp() throws InterruptedException {
+        buffer = buffer(entities -> {
+            throw new DatastoreException(14, "unavailable", "UNAVAILABLE");
+        });
+        Set<String> persisted = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < 8; i++) {
+            String name = Integer.toString(i);
+            buffer.write(entity(name), () -> persisted.add(name));
+        }
+        buffer.flush();
+
+        assertEquals(Arrays.asList(8, 8, 8), puts, "retried without splitting");
+        assertTrue(persisted.isEmpty());
+        assertEquals(8, meterRegistry.counter("datastore.write.dropped").count());
+        assertEquals(2, meterRegistry.counter("datastore.write.retries").count());
+    }
+
+    @Test
+    void splitsBatchToIsolateRefusedEntity() throws InterruptedException {
+        buffer = buffer(entities -> {
+            if (Arrays.stream(entities).anyMatch(entity -> "bad".equals(((Key) entity.getKey()).getName()))) {
+                throw new DatastoreException(3, "entity too big", "INVALID_ARGUMENT");
+            }
+            return null;
+        });
+        Set<String> persisted = ConcurrentHashMap.newKeySet();
+        for (String name : Arrays.asList("1", "2", "bad", "3")) {
+            buffer.write(entity(name), () -> persisted.add(name));
+        }
+        buffer.flush();
+
+        assertEquals(new HashSet<>(Arrays.asList("1", "2", "3")), persisted);
+        assertEquals(1, meterRegistry.counter("datastore.write.dropped").count());
+        assertEquals(0, meterRegistry.counter("datastore.write.retries").count());
+    }
+
+    @Test
+    void failingCallbackDoesNotDropBatch() throws InterruptedException {
+        buffer = buffer(entities -> null);
+        Set<String> persisted = ConcurrentHashMap.newKeySet();
+        buffer.write(entity("1"), () -> {
+            throw new IllegalStateException("callback failed");
+        });
+        buffer.write(entity("2"), () -> persisted.add("2"));
+        buffer.flush();
+
+        assertEquals(Collections.singleton("2"), persisted);
+        assertEquals(0, meterRegistry.counter("datastore.write.dropped").count());
+    }
+
+    @Test
+    void refusesWritesAndFlushesOnceClosed() throws InterruptedException {
+        buffer = buffer(entities -> null);
+        Set<String> persisted = ConcurrentHashMap.newKeySet();
+        buffer.write(entity("1"), () -> persisted.add("1"));
+        buffer.close();
+
+        assertEquals(Collections.singleton("1"), persisted, "buffered entities are flushed on close");
+        assertThrows(IllegalStateException.class, () -> buffer.write(entity("2")));
+        assertThrows(IllegalStateException.class, buffer::flush);
+    }
+
+    private DatastoreWriteBuffer buffer(Function<FullEntity<?>[], Object> put) {
+        DatastoreProperties properties = new DatastoreProperties();
+        properties.setWriteFlushInterval(Duration.ofMillis(50));
+        properties.setWriteMaxRetries(2);
+        Datastore datastore = mock(Datastore.class, invocation -> {
+            if (!"put".equals(invocation.getMethod().getName())) {
+                return null;
+            }
+            FullEntity<?>[] entities = (FullEntity<?>[]) invocation.getRawArguments()[0];
+            puts.add(entities.length);
+            return put.apply(entities);
+        });
+        return new DatastoreWriteBuffer(datastore, properties, meterRegistry);
+    }
+
+    private static Entity entity(String name) {
+        return Entity.newBuilder(Key.newBuilder("test", "message", name).build())
+                .set("channel", "1")
+                .build();
+    }
+}
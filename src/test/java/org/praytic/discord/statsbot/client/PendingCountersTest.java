@@ -0,0 +1,85 @@
+package org.praytic.discord.statsbot.client;
+
+import com.google.cloud.datastore.DatastoreException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PendingCountersTest {
+
+    private final PendingCounters<String, Long> counters =
+            new PendingCounters<>("test", 10, Long::sum, key -> key.substring(0, key.indexOf(':')));
+
+    @Test
+    void mergesFailedBatchWithNewChanges() {
+        counters.merge("a:1", 1L);
+        counters.flush(batch -> {
+            throw new DatastoreException(10, "aborted", "ABORTED");
+        });
+        counters.merge("a:1", 2L);
+        Map<String, Long> written = new HashMap<>();
+        counters.flush(written::putAll);
+
+        assertEquals(Collections.singletonMap("a:1", 3L), written);
+    }
+
+    @Test
+    void leavesSkippedKeysPending() {
+        Set<String> rebuilding = ConcurrentHashMap.newKeySet();
+        counters.merge("a:1", 1L);
+        counters.merge("b:1", 2L);
+        counters.exclusive("a", () -> rebuilding.add("a"));
+        Map<String, Long> written = new HashMap<>();
+        counters.flush(key -> rebuilding.contains(key.substring(0, 1)), written::putAll);
+
+        assertEquals(Collections.singletonMap("b:1", 2L), written);
+
+        rebuilding.clear();
+        written.clear();
+        counters.flush(written::putAll);
+
+        assertEquals(Collections.singletonMap("a:1", 1L), written);
+    }
+
+    @Test
+    void exclusiveWaitsForRunningFlushOfScope() throws InterruptedException {
+        counters.merge("a:1", 1L);
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch commit = new CountDownLatch(1);
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        Thread flush = new Thread(() -> counters.flush(batch -> {
+            writing.countDown();
+            try {
+                commit.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            events.add("flushed");
+        }));
+        flush.start();
+        writing.await();
+        counters.exclusive("b", () -> events.add("other scope"));
+        Thread rebuild = new Thread(() -> counters.exclusive("a", () -> events.add("rebuilt")));
+        rebuild.start();
+        rebuild.join(200);
+
+        assertTrue(rebuild.isAlive(), "rebuild waits for the flush of its scope");
+
+        commit.countDown();
+        flush.join();
+        rebuild.join();
+
+        assertEquals(Arrays.asList("other scope", "flushed", "rebuilt"), events);
+    }
+}
@@ -0,0 +1,76 @@
+package org.praytic.discord.statsbot.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RollupStoreTest {
+
+    @Test
+    void coversWindowWithCoarsestBuckets() {
+        long from = second(2021, 1, 30, 22);
+        long to = second(2021, 3, 2, 3);
+
+        assertEquals(Arrays.asList(
+                range(RollupGranularity.HOUR, from, second(2021, 1, 31, 0)),
+                range(RollupGranularity.DAY, second(2021, 1, 31, 0), second(2021, 2, 1, 0)),
+                range(RollupGranularity.MONTH, second(2021, 2, 1, 0), second(2021, 3, 1, 0)),
+                range(RollupGranularity.DAY, second(2021, 3, 1, 0), second(2021, 3, 2, 0)),
+                range(RollupGranularity.HOUR, second(2021, 3, 2, 0), to)
+        ), cover(from, to));
+    }
+
+    @Test
+    void coversWindowWithinDayWithHours() {
+        long from = second(2021, 1, 14, 5);
+        long to = second(2021, 1, 14, 9);
+
+        assertEquals(Arrays.asList(range(RollupGranularity.HOUR, from, to)), cover(from, to));
+    }
+
+    @Test
+    void coversEmptyWindowWithoutBuckets() {
+        long from = second(2021, 1, 14, 5);
+
+        assertTrue(cover(from, from).isEmpty());
+    }
+
+    @Test
+    void coversRandomWindowsExactly() {
+        Random random = new Random(42);
+        long start = second(2019, 1, 1, 0) / 3600;
+        for (int i = 0; i < 1000; i++) {
+            long from = (start + random.nextInt(24 * 800)) * 3600;
+            long to = from + random.nextInt(24 * 400) * 3600L;
+            long cursor = from;
+            for (RollupStore.BucketRange range : cover(from, to)) {
+                assertTrue(range.getFrom() < range.getTo(), range.toString());
+                assertEquals(cursor, range.getGranularity().start(range.getFrom()), range.toString());
+                cursor = range.getGranularity().start(range.getTo());
+            }
+            assertEquals(to, cursor);
+        }
+    }
+
+    private static List<RollupStore.BucketRange> cover(long from, long to) {
+        List<RollupStore.BucketRange> ranges = new ArrayList<>();
+        RollupStore.cover(from, to, RollupGranularity.MONTH, ranges);
+        return ranges;
+    }
+
+    private static RollupStore.BucketRange range(RollupGranularity granularity, long from, long to) {
+        return new RollupStore.BucketRange(granularity, granularity.bucket(from), granularity.bucket(to));
+    }
+
+    private static long second(int year, int month, int day, int hour) {
+        return LocalDateTime.of(year, month, day, hour, 0).toEpochSecond(ZoneOffset.UTC);
+    }
+}
@@ -0,0 +1,62 @@
+package org.praytic.discord.statsbot.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.Blob;
+import com.google.cloud.datastore.BlobValue;
+import com.google.cloud.datastore.BooleanValue;
+import com.google.cloud.datastore.DoubleValue;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.ListValue;
+import com.google.cloud.datastore.LongValue;
+import com.google.cloud.datastore.NullValue;
+import com.google.cloud.datastore.StringValue;
+import com.google.cloud.datastore.TimestampValue;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EntityJsonTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final KeyFactory keyFactory = new KeyFactory("test").setKind("message");
+
+    @Test
+    void roundTripsAllPropertyTypes() throws IOException {
+        Entity entity = Entity.newBuilder(keyFactory.newKey("805431937347895306"))
+                .set("channel", StringValue.of("80351110224678912"))
+                .set("count", LongValue.of(-3))
+                .set("score", DoubleValue.of(0.25))
+                .set("compact", BooleanValue.of(true))
+                .set("time", TimestampValue.of(Timestamp.parseTimestamp("2021-01-14T12:00:00.123456Z")))
+                .set("body", BlobValue.newBuilder(Blob.copyFrom(new byte[]{0, 1, -1, 127})).setExcludeFromIndexes(true).build())
+                .set("users", ListValue.of(StringValue.of("a"), LongValue.of(2)))
+                .set("edited", NullValue.of())
+                .build();
+
+        Entity copy = roundTrip(entity);
+
+        assertEquals(entity, copy);
+        assertTrue(copy.getValue("body").excludeFromIndexes());
+        assertFalse(copy.getValue("channel").excludeFromIndexes());
+    }
+
+    @Test
+    void roundTripsNamedAndNumericKeys() throws IOException {
+        Entity named = Entity.newBuilder(keyFactory.newKey("c:g")).build();
+        Entity numeric = Entity.newBuilder(keyFactory.newKey(42L)).build();
+
+        assertEquals(named.getKey(), roundTrip(named).getKey());
+        assertEquals(numeric.getKey(), roundTrip(numeric).getKey());
+    }
+
+    private Entity roundTrip(Entity entity) throws IOException {
+        String line = objectMapper.writeValueAsString(EntityJson.toJson(entity));
+        return EntityJson.fromJson(objectMapper.readTree(line), keyFactory);
+    }
+}
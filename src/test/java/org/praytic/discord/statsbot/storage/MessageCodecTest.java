@@ -0,0 +1,72 @@
+package org.praytic.discord.statsbot.storage;
+
+import com.mewna.catnip.entity.misc.Emoji;
+import org.junit.jupiter.api.Test;
+import org.praytic.discord.statsbot.model.StoredMessage;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MessageCodecTest {
+
+    @Test
+    void roundTripsAllFields() {
+        StoredMessage msg = new StoredMessage();
+        msg.setContent("hello \uD83D\uDC4B world");
+        msg.getReactions().put("\uD83D\uDC4D", 3);
+        msg.getReactions().put("805431937347895306", 1);
+        msg.getMentionedUsers().addAll(Arrays.asList("80351110224678912", "80351110224678913"));
+        msg.getAttachments().add(new StoredMessage.Attachment("805431937347895307", "cat.png", "https://media.example/cat.png"));
+
+        StoredMessage decoded = new StoredMessage();
+        MessageCodec.decode(MessageCodec.encode(msg), decoded);
+
+        assertEquals(msg.getContent(), decoded.getContent());
+        assertEquals(msg.getReactions(), decoded.getReactions());
+        assertEquals(msg.getMentionedUsers(), decoded.getMentionedUsers());
+        assertEquals(msg.getAttachments(), decoded.getAttachments());
+    }
+
+    @Test
+    void roundTripsEmptyMessage() {
+        StoredMessage decoded = new StoredMessage();
+        MessageCodec.decode(MessageCodec.encode(new StoredMessage()), decoded);
+
+        assertNull(decoded.getContent());
+        assertTrue(decoded.getReactions().isEmpty());
+        assertTrue(decoded.getMentionedUsers().isEmpty());
+        assertTrue(decoded.getAttachments().isEmpty());
+    }
+
+    @Test
+    void deflatesRepetitiveContent() {
+        StoredMessage msg = new StoredMessage();
+        msg.setContent(String.join("", Collections.nCopies(200, "spam ")));
+
+        byte[] payload = MessageCodec.encode(msg);
+        StoredMessage decoded = new StoredMessage();
+        MessageCodec.decode(payload, decoded);
+
+        assertTrue(payload.length < msg.getContent().length() / 4, "payload of " + payload.length + " bytes");
+        assertEquals(msg.getContent(), decoded.getContent());
+    }
+
+    @Test
+    void keysCustomEmojisById() {
+        assertEquals("805431937347895306", MessageCodec.emojiKey(emoji("805431937347895306", "pog")));
+        assertEquals("\uD83D\uDC4D", MessageCodec.emojiKey(emoji(null, "\uD83D\uDC4D")));
+    }
+
+    private static Emoji emoji(String id, String name) {
+        Emoji emoji = mock(Emoji.class);
+        when(emoji.id()).thenReturn(id);
+        when(emoji.name()).thenReturn(name);
+        return emoji;
+    }
+}
@@ -0,0 +1,28 @@
+package org.praytic.discord.statsbot.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnowflakesTest {
+
+    @Test
+    void readsCreationTimeOfDiscordId() {
+        // Example from the Discord API reference.
+        assertEquals(Instant.parse("2016-04-30T11:18:25.796Z").toEpochMilli(), Snowflakes.epochMilli("175928847299117063"));
+    }
+
+    @Test
+    void boundsIdsOfMillisecond() {
+        long millis = Instant.parse("2021-01-14T12:00:00Z").toEpochMilli();
+
+        assertEquals(millis, Snowflakes.epochMilli(Snowflakes.first(millis)));
+        assertEquals(millis, Snowflakes.epochMilli(Snowflakes.last(millis)));
+        assertEquals(Snowflakes.first(millis + 1), Snowflakes.last(millis) + 1);
+        assertTrue(Snowflakes.first(millis) <= Snowflakes.of(millis, 7) && Snowflakes.of(millis, 7) <= Snowflakes.last(millis));
+        assertEquals(Snowflakes.first(millis), Snowflakes.of(millis, 1L << 22));
+    }
+}